@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.jwplayer.southpaw.index.BaseIndex;
+import com.jwplayer.southpaw.json.Relation;
+import com.jwplayer.southpaw.record.BaseRecord;
+import com.jwplayer.southpaw.topic.BaseTopic;
+import com.jwplayer.southpaw.util.ByteArray;
+
+
+/**
+ * A compiled execution plan for the top level relations. It is built once and resolves the topic and indices of
+ * every relation ahead of time. Processing a record then needs no relation tree walks, index name building or index
+ * lookups by name.
+ */
+public class RelationPlan {
+    /**
+     * A relation in the plan, along with its resolved topic and indices
+     */
+    public static class Node {
+        /**
+         * The nodes of the child relations, in the same order as the relation's children
+         */
+        public final List<Node> children = new ArrayList<>();
+        /**
+         * The join index of this relation (child PKs by join key). Null for a root.
+         */
+        public final BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> joinIndex;
+        /**
+         * The node of the parent relation. Null for a root.
+         */
+        public final Node parent;
+        /**
+         * The parent index of the root, parent and this relation (root PKs by parent key). Null for a root.
+         */
+        public final BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> parentIndex;
+        /**
+         * The relation this node was compiled from
+         */
+        public final Relation relation;
+        /**
+         * The node of the top level relation this node belongs to
+         */
+        public final Node root;
+        /**
+         * The input topic of this relation's entity
+         */
+        public final BaseTopic<BaseRecord, BaseRecord> topic;
+
+        /**
+         * Constructor
+         * @param relation - The relation this node is compiled from
+         * @param parent - The node of the parent relation, or null for a root
+         * @param topic - The input topic of this relation's entity
+         * @param joinIndex - The join index of this relation, or null for a root
+         * @param parentIndex - The parent index of the root, parent and this relation, or null for a root
+         */
+        public Node(
+                Relation relation,
+                Node parent,
+                BaseTopic<BaseRecord, BaseRecord> topic,
+                BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> joinIndex,
+                BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> parentIndex) {
+            this.relation = Preconditions.checkNotNull(relation);
+            this.parent = parent;
+            this.root = parent == null ? this : parent.root;
+            this.topic = Preconditions.checkNotNull(topic);
+            this.joinIndex = joinIndex;
+            this.parentIndex = parentIndex;
+        }
+
+        /**
+         * Whether this node is a top level relation
+         * @return True if this node is a root
+         */
+        public boolean isRoot() {
+            return parent == null;
+        }
+    }
+
+    /**
+     * The nodes of the top level relations
+     */
+    protected final Node[] roots;
+    /**
+     * For each entity, the node of that entity in each root (same order as the roots), or null if the root
+     * doesn't contain the entity.
+     */
+    protected final Map<String, Node[]> routesByEntity = new HashMap<>();
+    /**
+     * Returned for entities not contained in any root
+     */
+    protected final Node[] noRoutes;
+
+    /**
+     * Constructor
+     * @param roots - The compiled nodes of the top level relations
+     */
+    public RelationPlan(Node[] roots) {
+        this.roots = Preconditions.checkNotNull(roots);
+        this.noRoutes = new Node[roots.length];
+        for(int i = 0; i < roots.length; i++) {
+            addRoutes(roots[i], i);
+        }
+    }
+
+    /**
+     * Adds the routes for the given node and its children. If an entity appears more than once in a root, the first
+     * node found in a depth first search wins.
+     * @param node - The node to add routes for
+     * @param rootIndex - The index of the node's root
+     */
+    protected void addRoutes(Node node, int rootIndex) {
+        Node[] routes = routesByEntity.computeIfAbsent(node.relation.getEntity(), k -> new Node[roots.length]);
+        if(routes[rootIndex] == null) routes[rootIndex] = node;
+        for(Node child: node.children) {
+            addRoutes(child, rootIndex);
+        }
+    }
+
+    /**
+     * Gets the node of the given top level relation
+     * @param root - The top level relation
+     * @return The node of the top level relation, or null if it isn't part of this plan
+     */
+    public Node getRoot(Relation root) {
+        for(Node node: roots) {
+            if(node.relation == root) return node;
+        }
+        return null;
+    }
+
+    /**
+     * Accessor for the nodes of the top level relations
+     * @return The root nodes, in the same order as the relations they were compiled from
+     */
+    public Node[] getRoots() {
+        return roots;
+    }
+
+    /**
+     * Gets the node of the given entity in each root.
+     * @param entity - The entity to get the nodes for
+     * @return The node of the given entity in each root (same order as the roots), or null for roots that don't
+     * contain the entity. Must not be modified.
+     */
+    public Node[] getRoutes(String entity) {
+        return routesByEntity.getOrDefault(entity, noRoutes);
+    }
+}
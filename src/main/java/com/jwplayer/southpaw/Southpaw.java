@@ -22,15 +22,22 @@ import java.net.URISyntaxException;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.time.StopWatch;
@@ -40,13 +47,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.Yaml;
 
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jwplayer.southpaw.filter.BaseFilter;
 import com.jwplayer.southpaw.index.BaseIndex;
-import com.jwplayer.southpaw.index.MultiIndex;
 import com.jwplayer.southpaw.index.Reversible;
 import com.jwplayer.southpaw.json.ChildRecords;
 import com.jwplayer.southpaw.json.DenormalizedRecord;
@@ -55,15 +64,20 @@ import com.jwplayer.southpaw.json.Relation;
 import com.jwplayer.southpaw.metric.Metrics;
 import com.jwplayer.southpaw.metric.StaticGauge;
 import com.jwplayer.southpaw.record.BaseRecord;
+import com.jwplayer.southpaw.record.LazyRecord;
 import com.jwplayer.southpaw.serde.BaseSerde;
 import com.jwplayer.southpaw.state.BaseState;
+import com.jwplayer.southpaw.state.KeySpace;
 import com.jwplayer.southpaw.state.RocksDBState;
+import com.jwplayer.southpaw.topic.AsyncTopicWriter;
 import com.jwplayer.southpaw.topic.BaseTopic;
 import com.jwplayer.southpaw.topic.ConsumerRecordIterator;
+import com.jwplayer.southpaw.topic.InMemoryTopic;
 import com.jwplayer.southpaw.topic.TopicConfig;
 import com.jwplayer.southpaw.util.ByteArray;
 import com.jwplayer.southpaw.util.ByteArraySet;
 import com.jwplayer.southpaw.util.FileHelper;
+import com.jwplayer.southpaw.util.PendingKeyQueue;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -80,6 +94,15 @@ import joptsimple.OptionSet;
  * various indices and within the denormalized records themselves.
  */
 public class Southpaw {
+    /**
+     * Fingerprint, a hash of the last denormalized record written for a PK
+     */
+    public static final String FP = "FP";
+    /**
+     * The number of pending fingerprints that forces the output topics to be flushed so the fingerprints can be
+     * stored, keeping the pending fingerprints from growing unbounded between commits
+     */
+    public static final int FINGERPRINTS_FLUSH_SIZE = 100000;
     /**
      * Join key, the key in the child record used in joins (PaK == JK)
      */
@@ -92,6 +115,10 @@ public class Southpaw {
      * Parent key, the key in the parent record used in joins (PaK == JK)
      */
     public static final String PaK = "PaK";
+    /**
+     * Prefix of the names of the state keyspaces storing the PKs of the denormalized records yet to be created
+     */
+    public static final String PENDING_PKS_KEYSPACE = "__southpaw.pending";
     /**
      * Primary key
      */
@@ -100,6 +127,10 @@ public class Southpaw {
      * Separator used by constructor keys and other things
      */
     public static final String SEP = "|";
+    /**
+     * The value stored for each PK in the pending PK key spaces, which only need the keys
+     */
+    protected static final byte[] EMPTY_VALUE = new byte[0];
     /**
      * Le Logger
      */
@@ -114,15 +145,24 @@ public class Southpaw {
      */
     protected final Config config;
     /**
-     * The PKs of the denormalized records yet to be created
+     * Worker pool used to build denormalized records concurrently. Null if records are built on the calling thread.
+     */
+    protected final ExecutorService createRecordsExecutor;
+    /**
+     * The PKs of the denormalized records yet to be created, oldest first
      */
-    protected Map<Relation, ByteArraySet> dePKsByType = new HashMap<>();
+    protected Map<Relation, PendingKeyQueue> dePKsByType = new HashMap<>();
     /**
      * A map of foreign key indices needed by Southpaw. This includes parent indices (points at the root
      * records) and join indices (points at the child records). The key is the index name. Multiple offsets
      * can be stored per key.
      */
     protected final Map<String, BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>>> fkIndices = new HashMap<>();
+    /**
+     * The key spaces storing the fingerprints of the written denormalized records, for each output topic. Null if
+     * disabled.
+     */
+    protected Map<String, KeySpace> fingerprintKeySpaces;
     /**
      * A map of all input topics needed by Southpaw. The key is the short name of the topic.
      */
@@ -131,15 +171,47 @@ public class Southpaw {
      * Simple metrics class for Southpaw
      */
     protected final Metrics metrics = new Metrics();
+    /**
+     * The key space storing Southpaw's own metadata, such as the queued denormalized record PKs
+     */
+    protected KeySpace metadataKeySpace;
+    /**
+     * The key spaces storing the PKs of the denormalized records yet to be created, one key per PK, for each root
+     * relation. Changes to the queued PKs are written on commit.
+     */
+    protected Map<Relation, KeySpace> pendingPKKeySpaces = new HashMap<>();
     /**
      * A map of the output topics needed where the denormalized records are written. The key is the short name of
      * the topic.
      */
     protected Map<String, BaseTopic<byte[], DenormalizedRecord>> outputTopics;
+    /**
+     * Writes denormalized records to the output topics on a separate thread. Null if records are written on the
+     * calling thread.
+     */
+    protected final AsyncTopicWriter outputWriter;
+    /**
+     * Fingerprints of the written denormalized records by PK, for each output topic, that are not stored in the
+     * state yet. They are only stored after the output topics are flushed, so records that were never produced
+     * aren't skipped after a restart. A null fingerprint deletes the stored fingerprint. Null if disabled.
+     */
+    protected Map<String, Map<ByteArray, byte[]>> pendingFingerprints;
+    /**
+     * The total number of pending fingerprints
+     */
+    protected int pendingFingerprintsSize = 0;
     /**
      * Tells the run() method to process records. If this is set to false, it will stop.
      */
     protected boolean processRecords = true;
+    /**
+     * The compiled execution plan for the top level relations
+     */
+    protected RelationPlan plan;
+    /**
+     * Child subtrees built since the last flush, reused for other denormalized records. Null if disabled.
+     */
+    protected SubtreeCache subtreeCache;
     /**
      * The configuration for Southpaw. Mostly Kafka and topic configuration. See
      * test/test-resources/config.sample.yaml for an example.
@@ -168,8 +240,22 @@ public class Southpaw {
         public static final int BACKUP_TIME_S_DEFAULT = 1800;
         public static final String COMMIT_TIME_S_CONFIG = "commit.time.s";
         public static final int COMMIT_TIME_S_DEFAULT = 0;
+        public static final String CREATE_RECORDS_BATCH_SIZE_CONFIG = "create.records.batch.size";
+        public static final int CREATE_RECORDS_BATCH_SIZE_DEFAULT = 1000;
+        public static final String CREATE_RECORDS_THREADS_CONFIG = "create.records.threads";
+        public static final int CREATE_RECORDS_THREADS_DEFAULT = 1;
+        public static final String CREATE_RECORDS_MAX_LATENCY_MS_CONFIG = "create.records.max.latency.ms";
+        public static final int CREATE_RECORDS_MAX_LATENCY_MS_DEFAULT = 0;
         public static final String CREATE_RECORDS_TRIGGER_CONFIG = "create.records.trigger";
         public static final int CREATE_RECORDS_TRIGGER_DEFAULT = 250000;
+        public static final String INDEX_CLASS_CONFIG = "index.class";
+        public static final String INDEX_CLASS_DEFAULT = "com.jwplayer.southpaw.index.MultiIndex";
+        public static final String OUTPUT_FINGERPRINTS_CONFIG = "output.fingerprints";
+        public static final boolean OUTPUT_FINGERPRINTS_DEFAULT = false;
+        public static final String OUTPUT_QUEUE_SIZE_CONFIG = "output.queue.size";
+        public static final int OUTPUT_QUEUE_SIZE_DEFAULT = 0;
+        public static final String SUBTREE_CACHE_SIZE_CONFIG = "subtree.cache.size";
+        public static final int SUBTREE_CACHE_SIZE_DEFAULT = 0;
         public static final String TOTAL_LAG_TRIGGER_CONFIG = "total.lag.trigger";
         public static final int TOTAL_LAG_TRIGGER_DEFAULT = 2000;
 
@@ -183,11 +269,46 @@ public class Southpaw {
          */
         public int commitTimeS;
 
+        /**
+         * The number of root PKs in each range of denormalized records built by a single worker
+         */
+        public int createRecordsBatchSize;
+
+        /**
+         * The maximum time (roughly) a denormalized record stays queued before it is created. 0 disables the limit.
+         */
+        public int createRecordsMaxLatencyMs;
+
+        /**
+         * The number of worker threads used to build denormalized records
+         */
+        public int createRecordsThreads;
+
         /**
          * Config for when to create denormalized records once the number of records to create has exceeded a certain amount
          */
         public int createRecordsTrigger;
 
+        /**
+         * The class used for the FK indices
+         */
+        public Class indexClass;
+
+        /**
+         * Whether to skip writing denormalized records identical to the last record written for the same PK
+         */
+        public boolean outputFingerprints;
+
+        /**
+         * The number of denormalized records to queue for the output writer thread
+         */
+        public int outputQueueSize;
+
+        /**
+         * The maximum number of built child subtrees to reuse between commits. 0 disables the cache.
+         */
+        public int subtreeCacheSize;
+
         /**
          * Config for when to switch from one topic to the next (or to stop processing a topic entirely), when lag drops below this value
          */
@@ -196,7 +317,14 @@ public class Southpaw {
         public Config(Map<String, Object> rawConfig) throws ClassNotFoundException {
             this.backupTimeS = (int) rawConfig.getOrDefault(BACKUP_TIME_S_CONFIG, BACKUP_TIME_S_DEFAULT);
             this.commitTimeS = (int) rawConfig.getOrDefault(COMMIT_TIME_S_CONFIG, COMMIT_TIME_S_DEFAULT);
+            this.createRecordsBatchSize = (int) rawConfig.getOrDefault(CREATE_RECORDS_BATCH_SIZE_CONFIG, CREATE_RECORDS_BATCH_SIZE_DEFAULT);
+            this.createRecordsMaxLatencyMs = (int) rawConfig.getOrDefault(CREATE_RECORDS_MAX_LATENCY_MS_CONFIG, CREATE_RECORDS_MAX_LATENCY_MS_DEFAULT);
+            this.createRecordsThreads = (int) rawConfig.getOrDefault(CREATE_RECORDS_THREADS_CONFIG, CREATE_RECORDS_THREADS_DEFAULT);
             this.createRecordsTrigger = (int) rawConfig.getOrDefault(CREATE_RECORDS_TRIGGER_CONFIG, CREATE_RECORDS_TRIGGER_DEFAULT);
+            this.indexClass = Class.forName(rawConfig.getOrDefault(INDEX_CLASS_CONFIG, INDEX_CLASS_DEFAULT).toString());
+            this.outputFingerprints = (boolean) rawConfig.getOrDefault(OUTPUT_FINGERPRINTS_CONFIG, OUTPUT_FINGERPRINTS_DEFAULT);
+            this.outputQueueSize = (int) rawConfig.getOrDefault(OUTPUT_QUEUE_SIZE_CONFIG, OUTPUT_QUEUE_SIZE_DEFAULT);
+            this.subtreeCacheSize = (int) rawConfig.getOrDefault(SUBTREE_CACHE_SIZE_CONFIG, SUBTREE_CACHE_SIZE_DEFAULT);
             this.totalLagTrigger = (int) rawConfig.getOrDefault(TOTAL_LAG_TRIGGER_CONFIG, TOTAL_LAG_TRIGGER_DEFAULT);
         }
     }
@@ -225,10 +353,25 @@ public class Southpaw {
 
         this.rawConfig = Preconditions.checkNotNull(rawConfig);
         this.config = new Config(rawConfig);
+        Preconditions.checkArgument(config.createRecordsBatchSize > 0, "create.records.batch.size must be positive");
+        Preconditions.checkArgument(config.createRecordsMaxLatencyMs >= 0, "create.records.max.latency.ms must not be negative");
+        if(config.createRecordsThreads > 1) {
+            this.createRecordsExecutor = Executors.newFixedThreadPool(
+                    config.createRecordsThreads,
+                    new ThreadFactoryBuilder().setNameFormat("southpaw-create-records-%d").setDaemon(true).build()
+            );
+        } else {
+            this.createRecordsExecutor = null;
+        }
+        if(config.outputQueueSize > 0) {
+            this.outputWriter = new AsyncTopicWriter(config.outputQueueSize, "southpaw-output-writer");
+        } else {
+            this.outputWriter = null;
+        }
         this.relations = Preconditions.checkNotNull(relations);
         this.state = new RocksDBState(rawConfig);
         this.state.open();
-        this.state.createKeySpace(METADATA_KEYSPACE);
+        this.metadataKeySpace = this.state.createKeySpace(METADATA_KEYSPACE);
         this.inputTopics = new HashMap<>();
         this.outputTopics = new HashMap<>();
         for(Relation root: this.relations) {
@@ -236,6 +379,15 @@ public class Southpaw {
             this.outputTopics.put(root.getDenormalizedName(), createOutputTopic(root.getDenormalizedName()));
             this.metrics.registerOutputTopic(root.getDenormalizedName());
         }
+        if(config.outputFingerprints) {
+            this.fingerprintKeySpaces = new HashMap<>();
+            this.pendingFingerprints = new HashMap<>();
+            for(Relation root: this.relations) {
+                this.fingerprintKeySpaces.put(
+                        root.getDenormalizedName(), this.state.createKeySpace(createFingerprintKeySpaceName(root)));
+                this.pendingFingerprints.put(root.getDenormalizedName(), new HashMap<>());
+            }
+        }
         try {
             this.inputTopics.put(TRANSACTIONS, createTopic(TRANSACTIONS));
         } catch (NullPointerException e) {
@@ -246,12 +398,53 @@ public class Southpaw {
             this.metrics.registerInputTopic(entry.getKey());
         }
         createIndices();
+        this.plan = compilePlan();
+        if(config.subtreeCacheSize > 0) {
+            this.subtreeCache = new SubtreeCache(plan, config.subtreeCacheSize);
+        }
 
         // Load any previous denormalized record PKs that have yet to be created
+        long nowMs = System.currentTimeMillis();
         for (Relation root : relations) {
-            byte[] bytes = state.get(METADATA_KEYSPACE, createDePKEntryName(root).getBytes());
-            dePKsByType.put(root, ByteArraySet.deserialize(bytes));
+            KeySpace keySpace = state.createKeySpace(createPendingPKKeySpaceName(root));
+            pendingPKKeySpaces.put(root, keySpace);
+            dePKsByType.put(root, loadPendingPKs(root, keySpace, nowMs));
+        }
+    }
+
+    /**
+     * Loads the queued PKs of the denormalized records yet to be created for a root relation. PKs stored as a single
+     * serialized set in the metadata key space by previous versions are migrated to the given key space.
+     * @param root - The root relation
+     * @param keySpace - The key space storing the PKs, one key per PK
+     * @param nowMs - The current time in milliseconds, used as the enqueue time of the loaded PKs
+     * @return The loaded PKs
+     */
+    protected PendingKeyQueue loadPendingPKs(Relation root, KeySpace keySpace, long nowMs) {
+        PendingKeyQueue queue = new PendingKeyQueue();
+        BaseState.Iterator iter = state.iterate(keySpace);
+        try {
+            while(iter.hasNext()) {
+                queue.add(new ByteArray(iter.next().getKey()), nowMs);
+            }
+        } finally {
+            iter.close();
+        }
+        queue.clearChanges();
+
+        byte[] legacyEntryName = createDePKEntryName(root).getBytes();
+        byte[] bytes = state.get(metadataKeySpace, legacyEntryName);
+        if(bytes != null) {
+            logger.info("Migrating the pending PKs of " + root.getDenormalizedName() + " to their own key space");
+            for(ByteArray primaryKey: ByteArraySet.deserialize(bytes)) {
+                queue.add(primaryKey, nowMs);
+            }
+            // The queue isn't in dePKsByType yet, so store it directly
+            storePendingPKs(queue, keySpace);
+            state.delete(metadataKeySpace, legacyEntryName);
+            state.flush();
         }
+        return queue;
     }
 
     class RecordHolder implements Comparable<RecordHolder> {
@@ -323,6 +516,104 @@ public class Southpaw {
         }
     }
 
+    /**
+     * A denormalized record built for a root PK, along with the parent index entries found while building it.
+     * Building a record only reads from the state, so records can be built concurrently, while the parent index
+     * entries are applied by the single thread that writes the record.
+     */
+    protected static class CreatedRecord {
+        /**
+         * The parent index entries (parent key -> root PK) needed by this record
+         */
+        public final List<ParentIndexEntry> parentIndexEntries = new ArrayList<>();
+        /**
+         * The fingerprint of the denormalized record, if fingerprints are enabled and the record exists
+         */
+        public byte[] fingerprint;
+        /**
+         * The denormalized record, or null if the root record does not exist
+         */
+        public DenormalizedRecord record;
+        /**
+         * The PK of the root / denormalized record (or of the child record, for a child subtree)
+         */
+        public final ByteArray rootPrimaryKey;
+
+        public CreatedRecord(ByteArray rootPrimaryKey) {
+            this.rootPrimaryKey = rootPrimaryKey;
+        }
+    }
+
+    /**
+     * A parent key found while building a denormalized record, to be added to the parent index of the given child
+     */
+    protected static class ParentIndexEntry {
+        public final RelationPlan.Node child;
+        public final ByteArray parentKey;
+
+        public ParentIndexEntry(RelationPlan.Node child, ByteArray parentKey) {
+            this.child = child;
+            this.parentKey = parentKey;
+        }
+    }
+
+    /**
+     * A child subtree built while building a denormalized record, to be cached once fully built
+     */
+    protected static class CreatedSubtree {
+        /**
+         * The plan node of the child relation
+         */
+        public final RelationPlan.Node child;
+        /**
+         * The record being built that the subtree belongs to
+         */
+        public final CreatedRecord parent;
+        /**
+         * The subtree, with its own parent index entries
+         */
+        public final CreatedRecord subtree;
+
+        public CreatedSubtree(RelationPlan.Node child, CreatedRecord subtree, CreatedRecord parent) {
+            this.child = child;
+            this.parent = parent;
+            this.subtree = subtree;
+        }
+    }
+
+    /**
+     * The child records of a denormalized record for a single child relation, still to be built
+     */
+    protected static class PendingChildRecords {
+        /**
+         * The plan node of the child relation
+         */
+        public final RelationPlan.Node child;
+        /**
+         * The record being built that the children belong to
+         */
+        public final CreatedRecord createdRecord;
+        /**
+         * The join key of the child records
+         */
+        public final ByteArray parentKey;
+        /**
+         * The list (already set in the parent's children) to fill with the child records, ordered by PK
+         */
+        public final List<DenormalizedRecord> records;
+
+        public PendingChildRecords(
+                RelationPlan.Node child,
+                ByteArray parentKey,
+                List<DenormalizedRecord> records,
+                CreatedRecord createdRecord) {
+            this.child = child;
+            this.createdRecord = createdRecord;
+            this.parentKey = parentKey;
+            this.records = records;
+        }
+    }
+
     /**
      * Reads batches of new records from each of the input topics and creates the appropriate denormalized
      * records according to the top level relations. Performs a full commit and backup before returning.
@@ -353,6 +644,15 @@ public class Southpaw {
 
         Map<String, Integer> transactionEvents = new HashMap<>();
 
+        // Resolve everything needed per root up front, so processing a record doesn't need to look it up
+        Relation[] roots = relations;
+        PendingKeyQueue[] pendingPKs = new PendingKeyQueue[roots.length];
+        List<StaticGauge<Long>> toCreateGauges = new ArrayList<>(roots.length);
+        for (int i = 0; i < roots.length; i++) {
+            pendingPKs[i] = dePKsByType.get(roots[i]);
+            toCreateGauges.add(metrics.denormalizedRecordsToCreateByTopic.get(roots[i].getDenormalizedName()));
+        }
+
         probe: while(processRecords) {
             //TODO: these metrics are computed too often
             calculateRecordsToCreate();
@@ -473,54 +773,56 @@ public class Southpaw {
                 long topicLag = inputTopics.get(entity).getLag();
                 metrics.topicLagByTopic.get(entity).update(topicLag);
 
+                long nowMs = System.currentTimeMillis();
                 ByteArray primaryKey = newRecord.key().toByteArray();
-                for (Relation root : relations) {
-                    Set<ByteArray> dePrimaryKeys = dePKsByType.get(root);
-                    if (root.getEntity().equals(entity)) {
+                if (subtreeCache != null) {
+                    subtreeCache.invalidate(entity, primaryKey);
+                }
+                RelationPlan.Node[] routes = plan.getRoutes(entity);
+                for (int i = 0; i < roots.length; i++) {
+                    Relation root = roots[i];
+                    PendingKeyQueue dePrimaryKeys = pendingPKs[i];
+                    RelationPlan.Node child = routes[i];
+                    if (child != null && child.isRoot()) {
                         // The top level relation is the relation of the input record
-                        dePrimaryKeys.add(primaryKey);
-                    } else {
-                        // Check the child relations instead
-                        AbstractMap.SimpleEntry<Relation, Relation> child = getRelation(root, entity);
-                        if (child != null && child.getValue() != null) {
-                            BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> parentIndex =
-                                    fkIndices.get(createParentIndexName(root, child.getKey(), child.getValue()));
-                            ByteArray newParentKey = null;
-                            Set<ByteArray> oldParentKeys;
-                            if (newRecord.value() != null) {
-                                newParentKey = ByteArray.toByteArray(newRecord.value().get(child.getValue().getJoinKey()));
-                            }
-                            BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> joinIndex =
-                                    fkIndices.get(createJoinIndexName(child.getValue()));
-                            oldParentKeys = ((Reversible) joinIndex).getForeignKeys(primaryKey);
-
-                            // Create the denormalized records
-                            if (oldParentKeys != null) {
-                                for (ByteArray oldParentKey : oldParentKeys) {
-                                    if (!ObjectUtils.equals(oldParentKey, newParentKey)) {
-                                        Set<ByteArray> primaryKeys = parentIndex.getIndexEntry(oldParentKey);
-                                        if (primaryKeys != null) {
-                                            dePrimaryKeys.addAll(primaryKeys);
-                                        }
+                        dePrimaryKeys.add(primaryKey, nowMs);
+                    } else if (child != null) {
+                        // The input record is one of the child relations
+                        BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> parentIndex = child.parentIndex;
+                        ByteArray newParentKey = null;
+                        Set<ByteArray> oldParentKeys;
+                        if (newRecord.value() != null) {
+                            newParentKey = ByteArray.toByteArray(newRecord.value().get(child.relation.getJoinKey()));
+                        }
+                        oldParentKeys = ((Reversible) child.joinIndex).getForeignKeys(primaryKey);
+
+                        // Create the denormalized records
+                        if (oldParentKeys != null) {
+                            for (ByteArray oldParentKey : oldParentKeys) {
+                                if (!ObjectUtils.equals(oldParentKey, newParentKey)) {
+                                    Set<ByteArray> primaryKeys = parentIndex.getIndexEntry(oldParentKey);
+                                    if (primaryKeys != null) {
+                                        dePrimaryKeys.addAll(primaryKeys, nowMs);
                                     }
                                 }
                             }
-                            if (newParentKey != null) {
-                                Set<ByteArray> primaryKeys = parentIndex.getIndexEntry(newParentKey);
-                                if (primaryKeys != null) {
-                                    dePrimaryKeys.addAll(primaryKeys);
-                                }
+                        }
+                        if (newParentKey != null) {
+                            Set<ByteArray> primaryKeys = parentIndex.getIndexEntry(newParentKey);
+                            if (primaryKeys != null) {
+                                dePrimaryKeys.addAll(primaryKeys, nowMs);
                             }
-                            // Update the join index
-                            updateJoinIndex(child.getValue(), primaryKey, newRecord);
                         }
+                        // Update the join index
+                        updateJoinIndex(child, primaryKey, newRecord);
                     }
-                    int size = dePrimaryKeys.size();
-                    if(flush && size > config.createRecordsTrigger) {
-                        createDenormalizedRecords(root, dePrimaryKeys);
-                        dePrimaryKeys.clear();
+                    if(flush && dePrimaryKeys.size() > config.createRecordsTrigger) {
+                        createPendingRecords(root, Integer.MAX_VALUE, Long.MAX_VALUE, nowMs);
                     }
-                    metrics.denormalizedRecordsToCreateByTopic.get(root.getDenormalizedName()).update((long) size);
+                    toCreateGauges.get(i).update((long) dePrimaryKeys.size());
+                }
+                if (flush) {
+                    createExpiredRecords(nowMs);
                 }
                 metrics.recordsConsumed.mark(1);
                 metrics.recordsConsumedByTopic.get(entity).mark(1);
@@ -531,6 +833,7 @@ public class Southpaw {
 
             //nothing left to read and we're in a flushable state
             if (flush) {
+                createExpiredRecords(System.currentTimeMillis());
                 Long totalLag = metrics.topicLag.getValue();
                 if (flushCommitBackup(runTimeS, backupWatch, runWatch, commitWatch, totalLag == null || totalLag < config.totalLagTrigger)) {
                     return;
@@ -570,9 +873,13 @@ public class Southpaw {
 
         if (createDenormalized) {
             // Create the denormalized records that have been queued up
-            for(Map.Entry<Relation, ByteArraySet> entry: dePKsByType.entrySet()) {
-                createDenormalizedRecords(entry.getKey(), entry.getValue());
-                entry.getValue().clear();
+            long nowMs = System.currentTimeMillis();
+            for(Relation root: dePKsByType.keySet()) {
+                createPendingRecords(root, Integer.MAX_VALUE, Long.MAX_VALUE, nowMs);
+            }
+            // Cached subtrees are only reused within a single flush
+            if (subtreeCache != null) {
+                subtreeCache.clear();
             }
         }
         return false;
@@ -583,7 +890,7 @@ public class Southpaw {
      */
     public void calculateRecordsToCreate() {
         long totalRecords = 0;
-        for(Map.Entry<Relation, ByteArraySet> entry: dePKsByType.entrySet()) {
+        for(Map.Entry<Relation, PendingKeyQueue> entry: dePKsByType.entrySet()) {
             long records = entry.getValue().size();
             totalRecords += records;
             metrics.denormalizedRecordsToCreateByTopic.get(entry.getKey().getDenormalizedName()).update(records);
@@ -609,6 +916,18 @@ public class Southpaw {
      * Cleans up and closes anything used by Southpaw.
      */
     public void close() {
+        if(createRecordsExecutor != null) {
+            createRecordsExecutor.shutdownNow();
+        }
+        if(outputWriter != null) {
+            outputWriter.close();
+        }
+        for(BaseTopic<BaseRecord, BaseRecord> topic: inputTopics.values()) {
+            topic.close();
+        }
+        for(BaseTopic<byte[], DenormalizedRecord> topic: outputTopics.values()) {
+            topic.close();
+        }
         metrics.close();
         state.close();
     }
@@ -618,15 +937,15 @@ public class Southpaw {
      */
     public void commit() {
         // Commit / flush changes
-        for(Map.Entry<String, BaseTopic<byte[], DenormalizedRecord>> topic: outputTopics.entrySet()) {
-            topic.getValue().flush();
+        flushOutputTopics();
+        if(pendingFingerprints != null) {
+            storeFingerprints();
         }
         for(Map.Entry<String, BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>>> index: fkIndices.entrySet()) {
             index.getValue().flush();
         }
-        for(Map.Entry<Relation, ByteArraySet> entry: dePKsByType.entrySet()) {
-            state.put(METADATA_KEYSPACE, createDePKEntryName(entry.getKey()).getBytes(), entry.getValue().serialize());
-            state.flush(METADATA_KEYSPACE);
+        for(Relation root: dePKsByType.keySet()) {
+            storePendingPKs(root);
         }
         for(Map.Entry<String, BaseTopic<BaseRecord, BaseRecord>> entry: inputTopics.entrySet()) {
             entry.getValue().commit();
@@ -634,6 +953,91 @@ public class Southpaw {
         state.flush();
     }
 
+    /**
+     * Flushes any records queued for the output topics
+     */
+    protected void flushOutputTopics() {
+        if(outputWriter != null) {
+            outputWriter.drain();
+        }
+        for(Map.Entry<String, BaseTopic<byte[], DenormalizedRecord>> topic: outputTopics.entrySet()) {
+            topic.getValue().flush();
+        }
+    }
+
+    /**
+     * Gets the fingerprint of the last denormalized record written for the given PK
+     * @param root - The top level relation of the denormalized record
+     * @param primaryKey - The PK of the denormalized record
+     * @return The fingerprint, or null if there is none
+     */
+    protected byte[] getFingerprint(Relation root, ByteArray primaryKey) {
+        Map<ByteArray, byte[]> pending = pendingFingerprints.get(root.getDenormalizedName());
+        if(pending.containsKey(primaryKey)) {
+            return pending.get(primaryKey);
+        }
+        return state.get(fingerprintKeySpaces.get(root.getDenormalizedName()), primaryKey.getBytes());
+    }
+
+    /**
+     * Records the fingerprint of the denormalized record written for the given PK. If too many fingerprints are
+     * pending, the output topics are flushed so they can be stored.
+     * @param root - The top level relation of the denormalized record
+     * @param primaryKey - The PK of the denormalized record
+     * @param fingerprint - The fingerprint of the written record, or null if a tombstone was written
+     */
+    protected void putFingerprint(Relation root, ByteArray primaryKey, byte[] fingerprint) {
+        Map<ByteArray, byte[]> pending = pendingFingerprints.get(root.getDenormalizedName());
+        // Tombstones are pending as null fingerprints, so check for the PK instead of a previous fingerprint
+        if(!pending.containsKey(primaryKey)) {
+            pendingFingerprintsSize++;
+        }
+        pending.put(primaryKey, fingerprint);
+        if(pendingFingerprintsSize >= FINGERPRINTS_FLUSH_SIZE) {
+            flushOutputTopics();
+            storeFingerprints();
+        }
+    }
+
+    /**
+     * Writes the changes to the queued PKs of a root relation since they were last stored to its pending PK key space
+     * @param root - The root relation
+     */
+    protected void storePendingPKs(Relation root) {
+        storePendingPKs(dePKsByType.get(root), pendingPKKeySpaces.get(root));
+    }
+
+    /**
+     * Writes the changes to the given queued PKs since they were last stored to the given key space
+     * @param queue - The queued PKs
+     * @param keySpace - The key space storing the PKs, one key per PK
+     */
+    protected void storePendingPKs(PendingKeyQueue queue, KeySpace keySpace) {
+        queue.drainChanges(
+                primaryKey -> state.put(keySpace, primaryKey.getBytes(), EMPTY_VALUE),
+                primaryKey -> state.delete(keySpace, primaryKey.getBytes()));
+        state.flush(keySpace);
+    }
+
+    /**
+     * Stores the pending fingerprints in the state. The output topics must be flushed first.
+     */
+    protected void storeFingerprints() {
+        for(Relation root: relations) {
+            KeySpace keySpace = fingerprintKeySpaces.get(root.getDenormalizedName());
+            Map<ByteArray, byte[]> pending = pendingFingerprints.get(root.getDenormalizedName());
+            for(Map.Entry<ByteArray, byte[]> entry: pending.entrySet()) {
+                if(entry.getValue() == null) {
+                    state.delete(keySpace, entry.getKey().getBytes());
+                } else {
+                    state.put(keySpace, entry.getKey().getBytes(), entry.getValue());
+                }
+            }
+            pending.clear();
+        }
+        pendingFingerprintsSize = 0;
+    }
+
     /**
      * Create all indices for the given child relation and its children.
      * @param root - The root relation to create the indices for
@@ -659,95 +1063,301 @@ public class Southpaw {
     }
 
     /**
-     * Recursively create a new denormalized record based on its relation definition, its parent's input record,
-     * and its primary key.
-     * @param root - The root relation of the denormalized record
-     * @param relation - The current relation of the denormalized record to build
-     * @param rootPrimaryKey - The PK of the root / denormalized record
-     * @param relationPrimaryKey - The PK of the record
-     * @return A fully created denormalized object
+     * Create a new denormalized record based on its relation definition and its input record. The children are not
+     * built here, instead a pending entry is added for each child relation so the children of all records at the
+     * same depth can be read together. Does not modify any indices, instead the parent keys found are recorded so
+     * the parent indices can be updated when the record is written.
+     * @param node - The plan node of the current relation of the denormalized record to build
+     * @param relationRecord - The input record, or null if it doesn't exist
+     * @param createdRecord - Collects the parent index entries of the denormalized record being built
+     * @param pendingChildren - Collects the child records still to be built
+     * @return A denormalized object with its children still to be filled in, or null if the record doesn't exist
      */
     protected DenormalizedRecord createDenormalizedRecord(
-            Relation root,
-            Relation relation,
-            ByteArray rootPrimaryKey,
-            ByteArray relationPrimaryKey) {
+            RelationPlan.Node node,
+            BaseRecord relationRecord,
+            CreatedRecord createdRecord,
+            List<PendingChildRecords> pendingChildren) {
         DenormalizedRecord denormalizedRecord = null;
-        BaseTopic<BaseRecord, BaseRecord> relationTopic = inputTopics.get(relation.getEntity());
-        BaseRecord relationRecord = relationTopic.readByPK(relationPrimaryKey);
 
         if(!(relationRecord == null || relationRecord.isEmpty())) {
             denormalizedRecord = new DenormalizedRecord();
             denormalizedRecord.setRecord(createInternalRecord(relationRecord));
             ChildRecords childRecords = new ChildRecords();
             denormalizedRecord.setChildren(childRecords);
-            for (Relation child : relation.getChildren()) {
-                ByteArray newParentKey = ByteArray.toByteArray(relationRecord.get(child.getParentKey()));
-                updateParentIndex(root, relation, child, rootPrimaryKey, newParentKey);
-                Map<ByteArray, DenormalizedRecord> records = new TreeMap<>();
+            for (RelationPlan.Node child : node.children) {
+                ByteArray newParentKey = ByteArray.toByteArray(relationRecord.get(child.relation.getParentKey()));
                 if (newParentKey != null) {
-                    BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> joinIndex = fkIndices.get(createJoinIndexName(child));
-                    Set<ByteArray> childPKs = joinIndex.getIndexEntry(newParentKey);
-                    if (childPKs != null) {
-                        for (ByteArray childPK : childPKs) {
-                            DenormalizedRecord deChildRecord = createDenormalizedRecord(root, child, rootPrimaryKey, childPK);
-                            if (deChildRecord != null) records.put(childPK, deChildRecord);
+                    createdRecord.parentIndexEntries.add(new ParentIndexEntry(child, newParentKey));
+                    List<DenormalizedRecord> records = new ArrayList<>();
+                    childRecords.setAdditionalProperty(child.relation.getEntity(), records);
+                    pendingChildren.add(new PendingChildRecords(child, newParentKey, records, createdRecord));
+                }
+            }
+        }
+
+        return denormalizedRecord;
+    }
+
+    /**
+     * Builds one level of child records. The join index entries and the child records are read with a single multi
+     * key read per child relation, rather than one read per record.
+     * @param pendingChildren - The child records to build, all at the same depth
+     * @param createdSubtrees - Collects the built child subtrees to cache, or null if subtrees aren't cached
+     * @return The child records of the next depth still to be built
+     */
+    protected List<PendingChildRecords> createChildRecords(
+            List<PendingChildRecords> pendingChildren,
+            List<CreatedSubtree> createdSubtrees) {
+        Map<RelationPlan.Node, List<PendingChildRecords>> pendingByNode = new LinkedHashMap<>();
+        for(PendingChildRecords pending: pendingChildren) {
+            pendingByNode.computeIfAbsent(pending.child, k -> new ArrayList<>()).add(pending);
+        }
+        List<PendingChildRecords> nextPendingChildren = new ArrayList<>();
+        for(Map.Entry<RelationPlan.Node, List<PendingChildRecords>> entry: pendingByNode.entrySet()) {
+            RelationPlan.Node child = entry.getKey();
+            List<PendingChildRecords> nodePending = entry.getValue();
+            List<ByteArray> parentKeys = new ArrayList<>(nodePending.size());
+            for(PendingChildRecords pending: nodePending) {
+                parentKeys.add(pending.parentKey);
+            }
+            List<Set<ByteArray>> childPKSets = child.joinIndex.getIndexEntries(parentKeys);
+            // The child PKs of all pending entries, with the end of each entry's PKs in the combined list. Only the
+            // child records without a cached subtree are read.
+            List<ByteArray> childPKs = new ArrayList<>();
+            List<SubtreeCache.Subtree> cachedSubtrees = new ArrayList<>();
+            List<ByteArray> uncachedPKs = new ArrayList<>();
+            int[] childPKEnds = new int[nodePending.size()];
+            for(int i = 0; i < nodePending.size(); i++) {
+                Set<ByteArray> childPKSet = childPKSets.get(i);
+                if(childPKSet != null) {
+                    for(ByteArray childPK: childPKSet) {
+                        if(childPK == null) continue;
+                        SubtreeCache.Subtree cachedSubtree = subtreeCache == null ? null : subtreeCache.get(child, childPK);
+                        childPKs.add(childPK);
+                        cachedSubtrees.add(cachedSubtree);
+                        if(cachedSubtree == null) uncachedPKs.add(childPK);
+                    }
+                }
+                childPKEnds[i] = childPKs.size();
+            }
+            List<BaseRecord> childRecords = child.topic.readByPKs(uncachedPKs);
+            int index = 0;
+            int uncachedIndex = 0;
+            for(int i = 0; i < nodePending.size(); i++) {
+                PendingChildRecords pending = nodePending.get(i);
+                Map<ByteArray, DenormalizedRecord> records = new TreeMap<>();
+                for(; index < childPKEnds[i]; index++) {
+                    ByteArray childPK = childPKs.get(index);
+                    SubtreeCache.Subtree cachedSubtree = cachedSubtrees.get(index);
+                    DenormalizedRecord deChildRecord;
+                    if(cachedSubtree != null) {
+                        deChildRecord = cachedSubtree.record;
+                        pending.createdRecord.parentIndexEntries.addAll(cachedSubtree.parentIndexEntries);
+                    } else if(createdSubtrees == null) {
+                        deChildRecord = createDenormalizedRecord(
+                                child, childRecords.get(uncachedIndex++), pending.createdRecord, nextPendingChildren);
+                    } else {
+                        // Collect the parent index entries of the subtree separately, so it can be cached
+                        CreatedRecord subtree = new CreatedRecord(childPK);
+                        deChildRecord = createDenormalizedRecord(
+                                child, childRecords.get(uncachedIndex++), subtree, nextPendingChildren);
+                        if(deChildRecord != null) {
+                            subtree.record = deChildRecord;
+                            createdSubtrees.add(new CreatedSubtree(child, subtree, pending.createdRecord));
                         }
                     }
-                    childRecords.setAdditionalProperty(child.getEntity(), new ArrayList<>(records.values()));
+                    if(deChildRecord != null) records.put(childPK, deChildRecord);
                 }
+                pending.records.addAll(records.values());
             }
         }
+        return nextPendingChildren;
+    }
 
-        return denormalizedRecord;
+    /**
+     * Builds the denormalized records for a range of root PKs. Only reads from the state and indices, so multiple
+     * ranges can be built concurrently. The records are built breadth first, so all records at the same depth
+     * across the whole range are read together.
+     * @param root - The plan node of the top level relation of the denormalized records to create
+     * @param rootRecordPKs - The primary keys of the root input records to build denormalized records for
+     * @return The built records, in the same order as the given PKs
+     */
+    protected List<CreatedRecord> buildDenormalizedRecords(
+            RelationPlan.Node root,
+            List<ByteArray> rootRecordPKs) {
+        List<CreatedRecord> createdRecords = new ArrayList<>(rootRecordPKs.size());
+        List<CreatedSubtree> createdSubtrees = subtreeCache == null ? null : new ArrayList<>();
+        List<PendingChildRecords> pendingChildren = new ArrayList<>();
+        List<BaseRecord> rootRecords = root.topic.readByPKs(rootRecordPKs);
+        for(int i = 0; i < rootRecordPKs.size(); i++) {
+            CreatedRecord createdRecord = new CreatedRecord(rootRecordPKs.get(i));
+            createdRecord.record = createDenormalizedRecord(root, rootRecords.get(i), createdRecord, pendingChildren);
+            createdRecords.add(createdRecord);
+        }
+        while(!pendingChildren.isEmpty()) {
+            pendingChildren = createChildRecords(pendingChildren, createdSubtrees);
+        }
+        if(createdSubtrees != null) {
+            // Subtrees are built after their parents, so going backwards each subtree is complete before its
+            // parent index entries are passed up to its parent
+            for(int i = createdSubtrees.size() - 1; i >= 0; i--) {
+                CreatedSubtree createdSubtree = createdSubtrees.get(i);
+                CreatedRecord subtree = createdSubtree.subtree;
+                createdSubtree.parent.parentIndexEntries.addAll(subtree.parentIndexEntries);
+                subtreeCache.put(
+                        createdSubtree.child,
+                        subtree.rootPrimaryKey,
+                        new SubtreeCache.Subtree(subtree.record, subtree.parentIndexEntries));
+            }
+        }
+        if(config.outputFingerprints) {
+            for(CreatedRecord createdRecord: createdRecords) {
+                if(createdRecord.record != null) createdRecord.fingerprint = createFingerprint(createdRecord.record);
+            }
+        }
+        return createdRecords;
+    }
+
+    /**
+     * Creates a chunk of the denormalized records that have been queued for longer than the configured max latency.
+     * Each call creates at most one chunk of one batch per worker thread, from the root relation with the oldest
+     * expired PK, so ingestion continues between chunks instead of stopping until nothing is expired.
+     * @param nowMs - The current time in milliseconds
+     */
+    protected void createExpiredRecords(long nowMs) {
+        if(config.createRecordsMaxLatencyMs <= 0) return;
+        Relation oldestRoot = null;
+        long oldestAge = config.createRecordsMaxLatencyMs - 1;
+        for(Map.Entry<Relation, PendingKeyQueue> entry: dePKsByType.entrySet()) {
+            long age = entry.getValue().getOldestAge(nowMs);
+            if(age > oldestAge) {
+                oldestRoot = entry.getKey();
+                oldestAge = age;
+            }
+        }
+        if(oldestRoot == null) return;
+        int chunkSize = config.createRecordsBatchSize * config.createRecordsThreads;
+        createPendingRecords(oldestRoot, chunkSize, nowMs - config.createRecordsMaxLatencyMs, nowMs);
+        metrics.denormalizedRecordsToCreateByTopic.get(oldestRoot.getDenormalizedName())
+                .update((long) dePKsByType.get(oldestRoot).size());
+    }
+
+    /**
+     * Removes the oldest queued PKs for the given top level relation and creates their denormalized records
+     * @param root - The top level relation of the denormalized records to create
+     * @param maxRecords - The maximum number of denormalized records to create
+     * @param cutoffTimeMs - Only PKs queued at or before this time are created
+     * @param nowMs - The current time in milliseconds, used to report how long the PKs were queued
+     */
+    protected void createPendingRecords(Relation root, int maxRecords, long cutoffTimeMs, long nowMs) {
+        PendingKeyQueue queue = dePKsByType.get(root);
+        if(queue.isEmpty()) return;
+        Histogram queueAgeByTopic = metrics.denormalizedRecordsQueueAgeByTopic.get(root.getDenormalizedName());
+        List<ByteArray> rootRecordPKs = queue.poll(maxRecords, cutoffTimeMs, enqueueTimeMs -> {
+            long ageMs = nowMs - enqueueTimeMs;
+            metrics.denormalizedRecordsQueueAge.update(ageMs);
+            queueAgeByTopic.update(ageMs);
+        });
+        createDenormalizedRecords(root, rootRecordPKs);
     }
 
     /**
-     * Creates a set of denormalized records and writes them to the appropriate output topic.
+     * Creates a set of denormalized records and writes them to the appropriate output topic. The PKs are split into
+     * disjoint ranges that are built by the worker pool (if configured), while index updates and writes happen on
+     * the calling thread in the original PK order.
      * @param root - The top level relation defining the structure and relations of the denormalized records to create
      * @param rootRecordPKs - The primary keys of the root input records to create denormalized records for
      */
     protected void createDenormalizedRecords(
             Relation root,
-            Set<ByteArray> rootRecordPKs) {
+            Collection<ByteArray> rootRecordPKs) {
         if (rootRecordPKs.isEmpty()) {
             return;
         }
         logger.info("creating {} {}", rootRecordPKs.size(), root.getEntity());
-        for(ByteArray dePrimaryKey: rootRecordPKs) {
-            if(dePrimaryKey != null) {
-                BaseTopic<byte[], DenormalizedRecord> outputTopic = outputTopics.get(root.getDenormalizedName());
-                scrubParentIndices(root, root, dePrimaryKey);
-                DenormalizedRecord newDeRecord = createDenormalizedRecord(root, root, dePrimaryKey, dePrimaryKey);
-                if(logger.isDebugEnabled()) {
-                    try {
-                        logger.debug(
-                                String.format(
-                                        "Root Entity: %s / Primary Key: %s",
-                                        root.getEntity(), dePrimaryKey.toString()
-                                )
-                        );
-                        logger.debug(mapper.writeValueAsString(newDeRecord));
-                    } catch (Exception ex) {
-                        // noop
-                    }
+        RelationPlan.Node rootNode = plan.getRoot(root);
+        BaseTopic<byte[], DenormalizedRecord> outputTopic = outputTopics.get(root.getDenormalizedName());
+        Iterator<ByteArray> iter = rootRecordPKs.iterator();
+        while(iter.hasNext()) {
+            List<List<ByteArray>> ranges = new ArrayList<>(config.createRecordsThreads);
+            while(ranges.size() < config.createRecordsThreads && iter.hasNext()) {
+                List<ByteArray> range = new ArrayList<>(config.createRecordsBatchSize);
+                while(range.size() < config.createRecordsBatchSize && iter.hasNext()) {
+                    ByteArray dePrimaryKey = iter.next();
+                    if(dePrimaryKey != null) range.add(dePrimaryKey);
                 }
+                ranges.add(range);
+            }
+            for(List<CreatedRecord> createdRecords: buildDenormalizedRecordRanges(rootNode, ranges)) {
+                for(CreatedRecord createdRecord: createdRecords) {
+                    writeDenormalizedRecord(rootNode, outputTopic, createdRecord);
+                }
+            }
+        }
+    }
 
-                outputTopic.write(
-                        dePrimaryKey.getBytes(),
-                        newDeRecord
-                );
+    /**
+     * Builds the denormalized records for the given ranges of root PKs, using the worker pool if there is more than
+     * one range to build.
+     * @param root - The plan node of the top level relation of the denormalized records to create
+     * @param ranges - Disjoint ranges of root PKs
+     * @return The built records for each range, in the same order as the given ranges
+     */
+    protected List<List<CreatedRecord>> buildDenormalizedRecordRanges(
+            RelationPlan.Node root,
+            List<List<ByteArray>> ranges) {
+        List<List<CreatedRecord>> retVal = new ArrayList<>(ranges.size());
+        if(createRecordsExecutor == null || ranges.size() == 1) {
+            for(List<ByteArray> range: ranges) {
+                retVal.add(buildDenormalizedRecords(root, range));
+            }
+        } else {
+            List<Future<List<CreatedRecord>>> futures = new ArrayList<>(ranges.size());
+            for(List<ByteArray> range: ranges) {
+                futures.add(createRecordsExecutor.submit(() -> buildDenormalizedRecords(root, range)));
+            }
+            try {
+                for(Future<List<CreatedRecord>> future: futures) {
+                    retVal.add(future.get());
+                }
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            } catch(ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
             }
-            metrics.denormalizedRecordsCreated.mark(1);
-            metrics.denormalizedRecordsCreatedByTopic.get(root.getDenormalizedName()).mark(1);
-            metrics.denormalizedRecordsToCreate.update(metrics.denormalizedRecordsToCreate.getValue() - 1);
-            metrics.denormalizedRecordsToCreateByTopic.get(root.getDenormalizedName())
-                    .update(metrics.denormalizedRecordsToCreateByTopic.get(root.getDenormalizedName()).getValue() - 1);
         }
+        return retVal;
+    }
+
+    /**
+     * Creates a fingerprint of the given denormalized record, used to detect when a rebuilt record is identical to
+     * the last one written
+     * @param record - The denormalized record
+     * @return The fingerprint
+     */
+    protected byte[] createFingerprint(DenormalizedRecord record) {
+        try {
+            return Hashing.murmur3_128().hashBytes(mapper.writeValueAsBytes(record)).asBytes();
+        } catch(JsonProcessingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Create the name of the key space storing the fingerprints of the denormalized records written for the given
+     * top level relation
+     * @param root - The top level relation
+     * @return The key space name
+     */
+    protected String createFingerprintKeySpaceName(Relation root) {
+        return String.join(SEP, FP, root.getDenormalizedName());
     }
 
     /**
-     * Create the entry name for the denormalized PKs yet to be created
+     * Create the entry name for the denormalized PKs yet to be created, as stored in the metadata key space by
+     * previous versions
      * @return - The entry name
      */
     protected String createDePKEntryName(Relation root) {
@@ -755,15 +1365,34 @@ public class Southpaw {
     }
 
     /**
-     * Simple class for creating a FK multi index
+     * Create the name of the key space storing the denormalized PKs yet to be created
+     * @param root - The root relation of the denormalized records
+     * @return - The key space name
+     */
+    protected String createPendingPKKeySpaceName(Relation root) {
+        return String.join(SEP, PENDING_PKS_KEYSPACE, root.getDenormalizedName());
+    }
+
+    /**
+     * Simple class for creating a FK index, using the configured index class. The index must be Reversible.
      * @param indexName - The name of the index to create
      * @param indexedTopicName - The name of the indexed topic
      * @return A brand new, shiny index
      */
+    @SuppressWarnings("unchecked")
     protected BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> createFkIndex(
             String indexName,
             String indexedTopicName) {
-        MultiIndex<BaseRecord, BaseRecord> index = new MultiIndex<>();
+        BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> index;
+        try {
+            index = (BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>>) config.indexClass
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch(ReflectiveOperationException ex) {
+            throw new RuntimeException(ex);
+        }
+        Preconditions.checkArgument(
+                index instanceof Reversible, "Index class %s must be Reversible", config.indexClass.getName());
         index.configure(indexName, rawConfig, state, inputTopics.get(indexedTopicName));
         return index;
     }
@@ -782,18 +1411,54 @@ public class Southpaw {
     }
 
     /**
-     * Creates an internal record for a denormalized record based on the input record
-     * @param inputRecord - The input record used to generate the internal record
-     * @return The internal record of the denormalized record that contains the actual values for the input record
+     * Compiles the execution plan for all relations provided to Southpaw. Must be called after the input topics
+     * and indices are created.
+     * @return The compiled plan
      */
-    protected Record createInternalRecord(BaseRecord inputRecord) {
-        Record internalRecord = new Record();
+    protected RelationPlan compilePlan() {
+        RelationPlan.Node[] roots = new RelationPlan.Node[relations.length];
+        for(int i = 0; i < relations.length; i++) {
+            roots[i] = compilePlanNode(relations[i], null, relations[i]);
+        }
+        return new RelationPlan(roots);
+    }
 
-        for(Map.Entry<String, ?> entry: inputRecord.toMap().entrySet()) {
-            internalRecord.setAdditionalProperty(entry.getKey(), entry.getValue());
+    /**
+     * Compiles the plan node for the given relation and its children.
+     * @param root - The root relation of the given relation
+     * @param parent - The plan node of the parent relation, or null if the relation is the root
+     * @param relation - The relation to compile
+     * @return The compiled plan node
+     */
+    protected RelationPlan.Node compilePlanNode(Relation root, RelationPlan.Node parent, Relation relation) {
+        RelationPlan.Node node;
+        if(parent == null) {
+            node = new RelationPlan.Node(relation, null, inputTopics.get(relation.getEntity()), null, null);
+        } else {
+            node = new RelationPlan.Node(
+                    relation,
+                    parent,
+                    inputTopics.get(relation.getEntity()),
+                    fkIndices.get(createJoinIndexName(relation)),
+                    fkIndices.get(createParentIndexName(root, parent.relation, relation))
+            );
+        }
+        if(relation.getChildren() != null) {
+            for(Relation child: relation.getChildren()) {
+                node.children.add(compilePlanNode(root, node, child));
+            }
         }
+        return node;
+    }
 
-        return internalRecord;
+    /**
+     * Creates an internal record for a denormalized record based on the input record
+     * @param inputRecord - The input record used to generate the internal record
+     * @return The internal record of the denormalized record that contains the actual values for the input record. It
+     * is backed by the input record, so its fields are only copied if they are read through it.
+     */
+    protected Record createInternalRecord(BaseRecord inputRecord) {
+        return new LazyRecord(inputRecord);
     }
 
     /**
@@ -1104,48 +1769,22 @@ public class Southpaw {
         build(runTimeS);
     }
 
-    /**
-     * Scrubs the parent indices of the given root primary key starting at the given relation. This is needed when a
-     * tombstone record is seen for the root so that we remove all references to the now defunct root PK so we no
-     * longer try to create (empty) records for it.
-     * @param root - The root relation of the parent relation
-     * @param parent  - The parent relation of the parent index to scrub
-     * @param rootPrimaryKey - The primary key of the root record prior to the tombstone triggering this scrubbing
-     */
-    protected void scrubParentIndices(Relation root, Relation parent, ByteArray rootPrimaryKey) {
-        Preconditions.checkNotNull(root);
-        Preconditions.checkNotNull(parent);
-
-        if(parent.getChildren() != null && rootPrimaryKey != null) {
-            for(Relation child: parent.getChildren()) {
-                BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> parentIndex =
-                        fkIndices.get(createParentIndexName(root, parent, child));
-                Set<ByteArray> oldForeignKeys = ((Reversible) parentIndex).getForeignKeys(rootPrimaryKey);
-                if(oldForeignKeys != null) {
-                    for(ByteArray oldForeignKey: ImmutableSet.copyOf(oldForeignKeys)) {
-                        parentIndex.remove(oldForeignKey, rootPrimaryKey);
-                    }
-                }
-                scrubParentIndices(root, child, rootPrimaryKey);
-            }
-        }
-    }
-
     /**
      * Updates the join index for the given child relation using the new record and the old PK index entry.
-     * @param relation - The child relation of the join index
+     * @param child - The plan node of the child relation of the join index
      * @param primaryKey - The primary key of the child record.
      * @param newRecord - The new version of the child record. May technically not be the latest version of a
      *                  record, but that is ok, since the index will eventually be updated with the latest
      *                  record.
      */
     protected void updateJoinIndex(
-            Relation relation,
+            RelationPlan.Node child,
             ByteArray primaryKey,
             ConsumerRecord<BaseRecord, BaseRecord> newRecord) {
+        Relation relation = child.relation;
         Preconditions.checkNotNull(relation.getJoinKey());
         Preconditions.checkNotNull(newRecord);
-        BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> joinIndex = fkIndices.get(createJoinIndexName(relation));
+        BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> joinIndex = child.joinIndex;
         Set<ByteArray> oldJoinKeys = ((Reversible) joinIndex).getForeignKeys(primaryKey);
         ByteArray newJoinKey = null;
         if(newRecord.value() != null) {
@@ -1164,28 +1803,40 @@ public class Southpaw {
     }
 
     /**
-     * Updates the parent index of the given relations.
-     * @param root - The root relation of the parent relation
-     * @param parent - The parent relation of the parent index
-     * @param child - The child relation of the parent index
-     * @param rootPrimaryKey - The primary key of the new root record
-     * @param newParentKey - The new parent key (may or may not differ from the old one)
+     * Updates the parent indices of the given root primary key, starting at the given relation, to match the parent
+     * keys found while building its denormalized record. Only the parent keys that were added or removed since the
+     * record was last built are written, so rebuilding a record whose joins haven't changed doesn't touch the
+     * parent indices. If the root record no longer exists, there are no new parent keys, so all references to the
+     * now defunct root PK are removed and we no longer try to create (empty) records for it.
+     * @param parent - The plan node of the parent relation of the parent indices to update
+     * @param rootPrimaryKey - The primary key of the root record
+     * @param newParentKeys - The parent keys found while building the record, by the plan node of the child relation
      */
-    protected void updateParentIndex(
-            Relation root,
-            Relation parent,
-            Relation child,
+    protected void updateParentIndices(
+            RelationPlan.Node parent,
             ByteArray rootPrimaryKey,
-            ByteArray newParentKey
-    ) {
-        Preconditions.checkNotNull(root);
+            Map<RelationPlan.Node, Set<ByteArray>> newParentKeys) {
         Preconditions.checkNotNull(parent);
-        Preconditions.checkNotNull(child);
         Preconditions.checkNotNull(rootPrimaryKey);
 
-        BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> parentIndex =
-                fkIndices.get(createParentIndexName(root, parent, child));
-        if (newParentKey != null) parentIndex.add(newParentKey, rootPrimaryKey);
+        for(RelationPlan.Node child: parent.children) {
+            BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>> parentIndex = child.parentIndex;
+            Set<ByteArray> newKeys = newParentKeys.getOrDefault(child, Collections.emptySet());
+            Set<ByteArray> oldKeys = ((Reversible) parentIndex).getForeignKeys(rootPrimaryKey);
+            if(oldKeys != null) {
+                List<ByteArray> removedKeys = new ArrayList<>();
+                for(ByteArray oldKey: oldKeys) {
+                    if(oldKey != null && !newKeys.contains(oldKey)) removedKeys.add(oldKey);
+                }
+                for(ByteArray removedKey: removedKeys) {
+                    parentIndex.remove(removedKey, rootPrimaryKey);
+                }
+            }
+            for(ByteArray newKey: newKeys) {
+                if(oldKeys == null || !oldKeys.contains(newKey)) parentIndex.add(newKey, rootPrimaryKey);
+            }
+            updateParentIndices(child, rootPrimaryKey, newParentKeys);
+        }
     }
 
     /**
@@ -1240,7 +1891,7 @@ public class Southpaw {
     protected void verifyState() {
         for(Map.Entry<String, BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>>> index: fkIndices.entrySet()) {
             logger.info("Verifying index state integrity: " + index.getValue().getIndexedTopic().getShortName());
-            Set<String> missingIndexKeys = ((MultiIndex)index.getValue()).verifyIndexState();
+            Set<String> missingIndexKeys = ((Reversible) index.getValue()).verifyIndexState();
             if(missingIndexKeys.isEmpty()){
                 logger.info("Index " + index.getValue().getIndexedTopic().getShortName() +  " integrity check complete");
             } else {
@@ -1248,7 +1899,7 @@ public class Southpaw {
             }
 
             logger.info("Verifying reverse index state integrity: " + index.getValue().getIndexedTopic().getShortName());
-            Set<String> missingReverseIndexKeys = ((MultiIndex)index.getValue()).verifyReverseIndexState();
+            Set<String> missingReverseIndexKeys = ((Reversible) index.getValue()).verifyReverseIndexState();
             if(missingReverseIndexKeys.isEmpty()){
                 logger.info("Reverse index " + index.getValue().getIndexedTopic().getShortName() +  " integrity check complete");
             } else {
@@ -1256,4 +1907,64 @@ public class Southpaw {
             }
         }
     }
+
+    /**
+     * Updates the parent indices for a built denormalized record and writes it to the output topic.
+     * @param rootNode - The plan node of the top level relation of the denormalized record
+     * @param outputTopic - The topic to write the denormalized record to
+     * @param createdRecord - The built denormalized record
+     */
+    protected void writeDenormalizedRecord(
+            RelationPlan.Node rootNode,
+            BaseTopic<byte[], DenormalizedRecord> outputTopic,
+            CreatedRecord createdRecord) {
+        Relation root = rootNode.relation;
+        ByteArray dePrimaryKey = createdRecord.rootPrimaryKey;
+        Map<RelationPlan.Node, Set<ByteArray>> newParentKeys = new HashMap<>();
+        for(ParentIndexEntry entry: createdRecord.parentIndexEntries) {
+            newParentKeys.computeIfAbsent(entry.child, k -> new HashSet<>()).add(entry.parentKey);
+        }
+        updateParentIndices(rootNode, dePrimaryKey, newParentKeys);
+        if(logger.isDebugEnabled()) {
+            try {
+                logger.debug(
+                        String.format(
+                                "Root Entity: %s / Primary Key: %s",
+                                root.getEntity(), dePrimaryKey.toString()
+                        )
+                );
+                logger.debug(mapper.writeValueAsString(createdRecord.record));
+            } catch (Exception ex) {
+                // noop
+            }
+        }
+
+        if(createdRecord.fingerprint != null
+                && Arrays.equals(createdRecord.fingerprint, getFingerprint(root, dePrimaryKey))) {
+            // Identical to the last record written, so skip it
+            metrics.denormalizedRecordsSuppressed.mark(1);
+            metrics.denormalizedRecordsSuppressedByTopic.get(root.getDenormalizedName()).mark(1);
+        } else {
+            if(outputTopic instanceof InMemoryTopic) {
+                // In memory topics keep the record itself rather than its serialized form
+                LazyRecord.materialize(createdRecord.record);
+            }
+            if(outputWriter != null) {
+                outputWriter.write(outputTopic, dePrimaryKey.getBytes(), createdRecord.record);
+            } else {
+                outputTopic.write(
+                        dePrimaryKey.getBytes(),
+                        createdRecord.record
+                );
+            }
+            if(pendingFingerprints != null) {
+                putFingerprint(root, dePrimaryKey, createdRecord.fingerprint);
+            }
+            metrics.denormalizedRecordsCreated.mark(1);
+            metrics.denormalizedRecordsCreatedByTopic.get(root.getDenormalizedName()).mark(1);
+        }
+        metrics.denormalizedRecordsToCreate.update(metrics.denormalizedRecordsToCreate.getValue() - 1);
+        metrics.denormalizedRecordsToCreateByTopic.get(root.getDenormalizedName())
+                .update(metrics.denormalizedRecordsToCreateByTopic.get(root.getDenormalizedName()).getValue() - 1);
+    }
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+import com.jwplayer.southpaw.json.DenormalizedRecord;
+import com.jwplayer.southpaw.util.ByteArray;
+
+
+/**
+ * Caches built child subtrees by (relation, child PK), so a child shared by many root records (e.g. a media item
+ * in thousands of playlists) is only built once. A subtree depends on its own record, the records of its
+ * descendants and the join indices of its descendants. So when an input record changes, the cached subtrees of
+ * that record are dropped along with all cached subtrees of the relations above it.
+ *
+ * Lookups and puts are safe to call from multiple threads at once, as long as no invalidations or clears are made
+ * at the same time.
+ */
+public class SubtreeCache {
+    /**
+     * A built child subtree, along with the parent index entries found while building it
+     */
+    public static class Subtree {
+        /**
+         * The parent index entries needed by this subtree
+         */
+        public final List<Southpaw.ParentIndexEntry> parentIndexEntries;
+        /**
+         * The built child record. Shared by every denormalized record it is added to, so must not be modified.
+         */
+        public final DenormalizedRecord record;
+
+        public Subtree(DenormalizedRecord record, List<Southpaw.ParentIndexEntry> parentIndexEntries) {
+            this.parentIndexEntries = Preconditions.checkNotNull(parentIndexEntries);
+            this.record = Preconditions.checkNotNull(record);
+        }
+    }
+
+    /**
+     * For each entity, the non-root nodes above any node of that entity, whose subtrees all need to be dropped
+     * when a record of that entity changes
+     */
+    protected final Map<String, List<RelationPlan.Node>> ancestorsByEntity = new HashMap<>();
+    /**
+     * The maximum number of subtrees to cache. Once full, new subtrees aren't cached until the cache is cleared.
+     */
+    protected final int maxSize;
+    /**
+     * For each entity, the non-root nodes of that entity
+     */
+    protected final Map<String, List<RelationPlan.Node>> nodesByEntity = new HashMap<>();
+    /**
+     * The (approximate) number of cached subtrees
+     */
+    protected final AtomicInteger size = new AtomicInteger();
+    /**
+     * The cached subtrees by child PK, for each non-root node
+     */
+    protected final Map<RelationPlan.Node, Map<ByteArray, Subtree>> subtreesByNode = new HashMap<>();
+
+    /**
+     * Constructor
+     * @param plan - The compiled plan of the relations whose subtrees are cached
+     * @param maxSize - The maximum number of subtrees to cache
+     */
+    public SubtreeCache(RelationPlan plan, int maxSize) {
+        Preconditions.checkArgument(maxSize > 0);
+        this.maxSize = maxSize;
+        for(RelationPlan.Node root: plan.getRoots()) {
+            for(RelationPlan.Node child: root.children) {
+                addNode(child);
+            }
+        }
+    }
+
+    /**
+     * Registers the given non-root node and its children
+     * @param node - The node to register
+     */
+    protected void addNode(RelationPlan.Node node) {
+        String entity = node.relation.getEntity();
+        subtreesByNode.put(node, new ConcurrentHashMap<>());
+        nodesByEntity.computeIfAbsent(entity, k -> new ArrayList<>()).add(node);
+        List<RelationPlan.Node> ancestors = ancestorsByEntity.computeIfAbsent(entity, k -> new ArrayList<>());
+        for(RelationPlan.Node ancestor = node.parent; !ancestor.isRoot(); ancestor = ancestor.parent) {
+            if(!ancestors.contains(ancestor)) ancestors.add(ancestor);
+        }
+        for(RelationPlan.Node child: node.children) {
+            addNode(child);
+        }
+    }
+
+    /**
+     * Drops all cached subtrees
+     */
+    public void clear() {
+        for(Map<ByteArray, Subtree> subtrees: subtreesByNode.values()) {
+            subtrees.clear();
+        }
+        size.set(0);
+    }
+
+    /**
+     * Gets a cached subtree
+     * @param node - The node of the child relation
+     * @param primaryKey - The PK of the child record
+     * @return The cached subtree, or null if it isn't cached
+     */
+    public Subtree get(RelationPlan.Node node, ByteArray primaryKey) {
+        Map<ByteArray, Subtree> subtrees = subtreesByNode.get(node);
+        return subtrees == null ? null : subtrees.get(primaryKey);
+    }
+
+    /**
+     * Accessor for the (approximate) number of cached subtrees
+     * @return The number of cached subtrees
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    /**
+     * Drops any cached subtrees affected by a change to the given input record
+     * @param entity - The entity of the changed record
+     * @param primaryKey - The PK of the changed record
+     */
+    public void invalidate(String entity, ByteArray primaryKey) {
+        List<RelationPlan.Node> nodes = nodesByEntity.get(entity);
+        if(nodes == null) return;
+        for(RelationPlan.Node node: nodes) {
+            if(subtreesByNode.get(node).remove(primaryKey) != null) size.decrementAndGet();
+        }
+        for(RelationPlan.Node ancestor: ancestorsByEntity.get(entity)) {
+            Map<ByteArray, Subtree> subtrees = subtreesByNode.get(ancestor);
+            size.addAndGet(-subtrees.size());
+            subtrees.clear();
+        }
+    }
+
+    /**
+     * Caches a built subtree, unless the cache is full
+     * @param node - The node of the child relation
+     * @param primaryKey - The PK of the child record
+     * @param subtree - The built subtree
+     */
+    public void put(RelationPlan.Node node, ByteArray primaryKey, Subtree subtree) {
+        Map<ByteArray, Subtree> subtrees = subtreesByNode.get(node);
+        if(subtrees == null || size.get() >= maxSize) return;
+        if(subtrees.put(primaryKey, subtree) == null) size.incrementAndGet();
+    }
+}
@@ -17,6 +17,7 @@ package com.jwplayer.southpaw.index;
 
 import com.google.common.base.Preconditions;
 import com.jwplayer.southpaw.state.BaseState;
+import com.jwplayer.southpaw.state.KeySpace;
 import com.jwplayer.southpaw.topic.BaseTopic;
 import com.jwplayer.southpaw.util.ByteArray;
 
@@ -38,6 +39,10 @@ public abstract class BaseIndex<K, V, O> {
      * the index topic.
      */
     protected String indexName;
+    /**
+     * The key space storing the index
+     */
+    protected KeySpace indexKeySpace;
     /**
      * The topic that is indexed by this index.
      */
@@ -71,7 +76,7 @@ public abstract class BaseIndex<K, V, O> {
         this.indexName = Preconditions.checkNotNull(indexName);
         this.indexedTopic = Preconditions.checkNotNull(indexedTopic);
         this.state = state;
-        this.state.createKeySpace(indexName);
+        this.indexKeySpace = this.state.createKeySpace(indexName);
     }
 
     /**
@@ -89,6 +94,20 @@ public abstract class BaseIndex<K, V, O> {
      */
     public abstract O getIndexEntry(ByteArray foreignKey);
 
+    /**
+     * Accessor for multiple index entries at once. Indices that can read several entries at once should override
+     * this, the default implementation simply calls getIndexEntry() for each key.
+     * @param foreignKeys - The keys of the index entries
+     * @return The index entries for the given keys, in the same order as the keys. Entries not found are null.
+     */
+    public List<O> getIndexEntries(List<ByteArray> foreignKeys) {
+        List<O> entries = new ArrayList<>(foreignKeys.size());
+        for(ByteArray foreignKey: foreignKeys) {
+            entries.add(getIndexEntry(foreignKey));
+        }
+        return entries;
+    }
+
     /**
      * Flushes any changes to the topic. Useful for efficiently batching together writes when you need to make
      * a bunch of changes to the index.
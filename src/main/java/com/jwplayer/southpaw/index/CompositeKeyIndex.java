@@ -0,0 +1,260 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.index;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.jwplayer.southpaw.state.BaseState;
+import com.jwplayer.southpaw.state.KeySpace;
+import com.jwplayer.southpaw.topic.BaseTopic;
+import com.jwplayer.southpaw.util.ByteArray;
+import com.jwplayer.southpaw.util.ByteArraySet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/**
+ * Index that stores each (foreign key, primary key) pair as its own key in the state, instead of storing all
+ * primary keys of a foreign key in a single value like MultiIndex. Adds and removes are single puts and deletes,
+ * no matter how many primary keys a foreign key has, and lookups are prefix scans. The reverse index is stored
+ * the same way, with the keys swapped.
+ *
+ * Each key is a hash of the foreign key, the length of the foreign key, the foreign key and the primary key.
+ * The hash is a fixed length prefix that the state can use for prefix bloom filters, and the foreign key and its
+ * length keep foreign keys with the same hash apart. Values are empty. Existing MultiIndex entries are moved over
+ * when the index is configured.
+ * @param <K> - The type of the key stored in the indexed topic
+ * @param <V> - The type of the value stored in the indexed topic
+ */
+public class CompositeKeyIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements Reversible {
+    /**
+     * Appended to the index name to get the name of the key space used to store the index
+     */
+    public static final String KEY_SPACE_SUFFIX = "-composite";
+    /**
+     * The length of the hash that all keys start with
+     */
+    public static final int PREFIX_LENGTH = Long.BYTES;
+    protected static final byte[] EMPTY_VALUE = new byte[0];
+    private static final Logger logger = LoggerFactory.getLogger(CompositeKeyIndex.class);
+
+    protected String reverseIndexName;
+    protected KeySpace reverseIndexKeySpace;
+
+    @Override
+    public void add(ByteArray foreignKey, ByteArray primaryKey) {
+        Preconditions.checkNotNull(foreignKey);
+        if(primaryKey == null || primaryKey.size() == 0) return;
+        state.put(indexKeySpace, createKey(foreignKey, primaryKey), EMPTY_VALUE);
+        state.put(reverseIndexKeySpace, createKey(primaryKey, foreignKey), EMPTY_VALUE);
+    }
+
+    @Override
+    public void configure(
+            String indexName,
+            Map<String, Object> config,
+            BaseState state,
+            BaseTopic<K, V> indexedTopic) {
+        String keySpace = indexName + KEY_SPACE_SUFFIX;
+        reverseIndexName = keySpace + "-reverse";
+        // Create the key spaces with a prefix length before the base class creates them without one
+        state.createKeySpace(keySpace, PREFIX_LENGTH);
+        reverseIndexKeySpace = state.createKeySpace(reverseIndexName, PREFIX_LENGTH);
+        super.configure(keySpace, config, state, indexedTopic);
+        migrate(indexName, indexKeySpace);
+        migrate(indexName + "-reverse", reverseIndexKeySpace);
+    }
+
+    /**
+     * Creates the key for a pair of keys
+     * @param key - The first key, whose entry the pair belongs to
+     * @param value - The second key
+     * @return The composite key
+     */
+    protected static byte[] createKey(ByteArray key, ByteArray value) {
+        return createPrefix(key, value.size()).put(value.getBytes()).array();
+    }
+
+    /**
+     * Creates a buffer starting with the prefix shared by all keys of an entry
+     * @param key - The key of the entry
+     * @param extraCapacity - The capacity of the buffer after the prefix
+     * @return The buffer, positioned after the prefix
+     */
+    protected static ByteBuffer createPrefix(ByteArray key, int extraCapacity) {
+        byte[] bytes = key.getBytes();
+        return ByteBuffer.allocate(PREFIX_LENGTH + Integer.BYTES + bytes.length + extraCapacity)
+                .putLong(Hashing.murmur3_128().hashBytes(bytes).asLong())
+                .putInt(bytes.length)
+                .put(bytes);
+    }
+
+    @Override
+    public void flush() {
+        state.flush(indexKeySpace);
+        state.flush(reverseIndexKeySpace);
+    }
+
+    /**
+     * Moves the entries stored by a MultiIndex into this index, one key per pair, then drops the key space used by
+     * the MultiIndex
+     * @param legacyKeySpaceName - The name of the key space used by the MultiIndex
+     * @param keySpace - The key space used by this index
+     */
+    protected void migrate(String legacyKeySpaceName, KeySpace keySpace) {
+        KeySpace legacyKeySpace = state.getKeySpace(legacyKeySpaceName);
+        if(legacyKeySpace == null) return;
+        logger.info("Migrating index entries from: " + legacyKeySpaceName + " to: " + keySpace);
+        BaseState.Iterator iter = state.iterate(legacyKeySpace);
+        try {
+            while(iter.hasNext()) {
+                AbstractMap.SimpleEntry<byte[], byte[]> pair = iter.next();
+                ByteArray key = new ByteArray(pair.getKey());
+                for(ByteArray value: ByteArraySet.deserialize(pair.getValue())) {
+                    state.put(keySpace, createKey(key, value), EMPTY_VALUE);
+                }
+            }
+        } finally {
+            iter.close();
+        }
+        // Commit the migrated entries durably before dropping the only other copy of them
+        state.flush();
+        state.dropKeySpace(legacyKeySpace);
+    }
+
+    @Override
+    public ByteArraySet getForeignKeys(ByteArray primaryKey) {
+        return readEntry(reverseIndexKeySpace, primaryKey);
+    }
+
+    @Override
+    public ByteArraySet getIndexEntry(ByteArray foreignKey) {
+        Preconditions.checkNotNull(foreignKey);
+        return readEntry(indexKeySpace, foreignKey);
+    }
+
+    /**
+     * Scans the keys of an entry
+     * @param keySpace - The key space of the entry
+     * @param key - The key of the entry
+     * @return The second keys of all pairs in the entry, or null if there are none
+     */
+    protected ByteArraySet readEntry(KeySpace keySpace, ByteArray key) {
+        byte[] prefix = createPrefix(key, 0).array();
+        List<ByteArray> values = new ArrayList<>();
+        BaseState.Iterator iter = state.iterate(keySpace, prefix);
+        try {
+            while(iter.hasNext()) {
+                byte[] compositeKey = iter.next().getKey();
+                values.add(new ByteArray(Arrays.copyOfRange(compositeKey, prefix.length, compositeKey.length)));
+            }
+        } finally {
+            iter.close();
+        }
+        return values.isEmpty() ? null : ByteArraySet.of(values);
+    }
+
+    @Override
+    public Iterator<AbstractMap.SimpleEntry<ByteArray, V>> readRecords(ByteArray foreignKey) {
+        Preconditions.checkNotNull(foreignKey);
+        ByteArraySet primaryKeys = getIndexEntry(foreignKey);
+        if(primaryKeys != null) {
+            List<AbstractMap.SimpleEntry<ByteArray, V>> records = new ArrayList<>(primaryKeys.size());
+            for(ByteArray primaryKey: primaryKeys) {
+                records.add(new AbstractMap.SimpleEntry<>(primaryKey, indexedTopic.readByPK(primaryKey)));
+            }
+            return records.iterator();
+        }
+
+        return Collections.emptyListIterator();
+    }
+
+    @Override
+    public ByteArraySet remove(ByteArray foreignKey) {
+        Preconditions.checkNotNull(foreignKey);
+        ByteArraySet primaryKeys = getIndexEntry(foreignKey);
+        if(primaryKeys != null) {
+            for(ByteArray primaryKey: primaryKeys) {
+                state.delete(indexKeySpace, createKey(foreignKey, primaryKey));
+                state.delete(reverseIndexKeySpace, createKey(primaryKey, foreignKey));
+            }
+        }
+        return primaryKeys;
+    }
+
+    @Override
+    public boolean remove(ByteArray foreignKey, ByteArray primaryKey) {
+        Preconditions.checkNotNull(foreignKey);
+        if(primaryKey == null || primaryKey.size() == 0) return false;
+        byte[] key = createKey(foreignKey, primaryKey);
+        boolean exists = state.get(indexKeySpace, key) != null;
+        state.delete(indexKeySpace, key);
+        state.delete(reverseIndexKeySpace, createKey(primaryKey, foreignKey));
+        return exists;
+    }
+
+    /**
+     * Splits a composite key into the key of its entry and the second key
+     * @param compositeKey - The composite key
+     * @return The key of the entry and the second key
+     */
+    protected static AbstractMap.SimpleEntry<ByteArray, ByteArray> splitKey(byte[] compositeKey) {
+        ByteBuffer buffer = ByteBuffer.wrap(compositeKey);
+        buffer.position(PREFIX_LENGTH);
+        byte[] key = new byte[buffer.getInt()];
+        buffer.get(key);
+        byte[] value = new byte[buffer.remaining()];
+        buffer.get(value);
+        return new AbstractMap.SimpleEntry<>(new ByteArray(key), new ByteArray(value));
+    }
+
+    @Override
+    public Set<String> verifyIndexState() {
+        logger.info("Verifying reverse index: " + reverseIndexName + " against index: " + indexName);
+        return verify(reverseIndexKeySpace, indexKeySpace);
+    }
+
+    @Override
+    public Set<String> verifyReverseIndexState() {
+        logger.info("Verifying index: " + indexName + " against reverse index: " + reverseIndexName);
+        return verify(indexKeySpace, reverseIndexKeySpace);
+    }
+
+    /**
+     * Verifies that every pair in one key space has its swapped pair in the other key space
+     * @param keySpace - The key space to iterate through
+     * @param otherKeySpace - The key space to check for swapped pairs
+     * @return A string representation set of entry keys with pairs missing from the other key space
+     */
+    protected Set<String> verify(KeySpace keySpace, KeySpace otherKeySpace) {
+        Set<String> missingKeys = new HashSet<>();
+        BaseState.Iterator iter = state.iterate(keySpace);
+        try {
+            while(iter.hasNext()) {
+                AbstractMap.SimpleEntry<ByteArray, ByteArray> pair = splitKey(iter.next().getKey());
+                if(state.get(otherKeySpace, createKey(pair.getValue(), pair.getKey())) == null) {
+                    missingKeys.add(pair.getKey().toString());
+                }
+            }
+        } finally {
+            iter.close();
+        }
+        return missingKeys;
+    }
+}
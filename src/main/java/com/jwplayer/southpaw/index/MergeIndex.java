@@ -0,0 +1,270 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.index;
+
+import com.google.common.base.Preconditions;
+import com.jwplayer.southpaw.state.BaseState;
+import com.jwplayer.southpaw.state.KeySpace;
+import com.jwplayer.southpaw.topic.BaseTopic;
+import com.jwplayer.southpaw.util.ByteArray;
+import com.jwplayer.southpaw.util.ByteArraySet;
+import org.apache.commons.collections4.map.LRUMap;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/**
+ * Multi index that never reads an entry in order to modify it. Adds and removes are merged into the state as small
+ * operands appended to the existing entry, so they cost the same no matter how many keys the entry holds. Operands
+ * are resolved when the entry is read, and entries with many operands are collapsed back into a single operand
+ * when the index is flushed.
+ *
+ * Each operand is a type byte (set, add or remove), a 4 byte length and the payload: a serialized ByteArraySet for
+ * set operands and a single key otherwise. Operands are separated by BaseState.MERGE_DELIMITER. Since this format
+ * differs from the one used by MultiIndex, entries are stored in their own key spaces. Entries written by a
+ * MultiIndex with the same name are moved over when the index is configured.
+ * @param <K> - The type of the key stored in the indexed topic
+ * @param <V> - The type of the value stored in the indexed topic
+ */
+public class MergeIndex<K, V> extends MultiIndex<K, V> {
+    /**
+     * Entries with more operands than this are collapsed into a single operand on flush
+     */
+    public static final int COMPACTION_THRESHOLD = 64;
+    /**
+     * Appended to the index name to get the name of the key space used to store the index
+     */
+    public static final String KEY_SPACE_SUFFIX = "-merge";
+    protected static final byte OP_SET = 1;
+    protected static final byte OP_ADD = 2;
+    protected static final byte OP_REMOVE = 3;
+    protected static final int OP_HEADER_SIZE = 1 + Integer.BYTES;
+
+    /**
+     * Index entries to collapse on the next flush
+     */
+    protected Set<ByteArray> compactKeys = new HashSet<>();
+    /**
+     * Reverse index entries to collapse on the next flush
+     */
+    protected Set<ByteArray> compactRIKeys = new HashSet<>();
+    /**
+     * The number of operands merged into each index entry since the last flush
+     */
+    protected Map<ByteArray, Integer> operandCounts = new HashMap<>();
+    /**
+     * The number of operands merged into each reverse index entry since the last flush
+     */
+    protected Map<ByteArray, Integer> operandRICounts = new HashMap<>();
+
+    @Override
+    public synchronized void add(ByteArray foreignKey, ByteArray primaryKey) {
+        Preconditions.checkNotNull(foreignKey);
+        if(primaryKey == null || primaryKey.size() == 0) return;
+        mergeToState(indexKeySpace, entryCache, operandCounts, compactKeys, foreignKey, OP_ADD, primaryKey);
+        mergeToState(reverseIndexKeySpace, entryRICache, operandRICounts, compactRIKeys, primaryKey, OP_ADD, foreignKey);
+    }
+
+    /**
+     * Collapses the operands of the given entries into a single operand, or deletes the entries if they are empty
+     * @param keySpace - The key space of the entries
+     * @param keys - The keys of the entries to collapse. Cleared afterwards.
+     */
+    protected void compact(KeySpace keySpace, Set<ByteArray> keys) {
+        for(ByteArray key: keys) {
+            byte[] bytes = state.get(keySpace, key.getBytes());
+            ByteArraySet set = bytes == null ? null : resolve(null, key, bytes);
+            if(set == null) {
+                state.delete(keySpace, key.getBytes());
+            } else {
+                state.put(keySpace, key.getBytes(), toOperand(OP_SET, set.serialize()));
+            }
+        }
+        keys.clear();
+    }
+
+    @Override
+    public void configure(
+            String indexName,
+            Map<String, Object> config,
+            BaseState state,
+            BaseTopic<K, V> indexedTopic) {
+        super.configure(indexName + KEY_SPACE_SUFFIX, config, state, indexedTopic);
+        migrate(indexName, indexKeySpace);
+        migrate(indexName + "-reverse", reverseIndexKeySpace);
+    }
+
+    @Override
+    public synchronized void flush() {
+        compact(indexKeySpace, compactKeys);
+        compact(reverseIndexKeySpace, compactRIKeys);
+        operandCounts.clear();
+        operandRICounts.clear();
+        super.flush();
+    }
+
+    /**
+     * Merges an operand into an entry and applies it to the cached copy of the entry, if there is one
+     * @param keySpace - The key space of the entry
+     * @param cache - The cache for the key space
+     * @param counts - The operand counts for the key space
+     * @param compactKeys - The entries of the key space to collapse on the next flush
+     * @param key - The key of the entry
+     * @param op - The operand type
+     * @param value - The key to add to or remove from the entry
+     */
+    protected void mergeToState(
+            KeySpace keySpace,
+            LRUMap<ByteArray, ByteArraySet> cache,
+            Map<ByteArray, Integer> counts,
+            Set<ByteArray> compactKeys,
+            ByteArray key,
+            byte op,
+            ByteArray value) {
+        state.merge(keySpace, key.getBytes(), toOperand(op, value.getBytes()));
+        ByteArraySet cached = cache.get(key);
+        if(cached != null) {
+            if(op == OP_ADD) {
+                cached.add(value);
+            } else if(cached.remove(value) && cached.size() == 0) {
+                cache.remove(key);
+            }
+        }
+        if(counts.merge(key, 1, Integer::sum) > COMPACTION_THRESHOLD) {
+            compactKeys.add(key);
+        }
+    }
+
+    /**
+     * Moves the entries stored by a MultiIndex into this index, then drops the key space used by the MultiIndex
+     * @param legacyKeySpaceName - The name of the key space used by the MultiIndex
+     * @param keySpace - The key space used by this index
+     */
+    protected void migrate(String legacyKeySpaceName, KeySpace keySpace) {
+        KeySpace legacyKeySpace = state.getKeySpace(legacyKeySpaceName);
+        if(legacyKeySpace == null) return;
+        BaseState.Iterator iter = state.iterate(legacyKeySpace);
+        try {
+            while(iter.hasNext()) {
+                AbstractMap.SimpleEntry<byte[], byte[]> pair = iter.next();
+                state.put(keySpace, pair.getKey(), toOperand(OP_SET, pair.getValue()));
+            }
+        } finally {
+            iter.close();
+        }
+        // Commit the migrated entries durably before dropping the only other copy of them
+        state.flush();
+        state.dropKeySpace(legacyKeySpace);
+    }
+
+    @Override
+    protected ByteArraySet readEntry(ByteArray foreignKey, byte[] bytes) {
+        return resolve(compactKeys, foreignKey, bytes);
+    }
+
+    @Override
+    protected ByteArraySet readRIEntry(ByteArray primaryKey, byte[] bytes) {
+        return resolve(compactRIKeys, primaryKey, bytes);
+    }
+
+    @Override
+    public synchronized ByteArraySet remove(ByteArray foreignKey) {
+        Preconditions.checkNotNull(foreignKey);
+        ByteArraySet primaryKeys = getIndexEntry(foreignKey);
+        state.delete(indexKeySpace, foreignKey.getBytes());
+        entryCache.remove(foreignKey);
+        compactKeys.remove(foreignKey);
+        operandCounts.remove(foreignKey);
+        if(primaryKeys != null) {
+            for(ByteArray primaryKey: primaryKeys) {
+                if(primaryKey == null) continue;
+                mergeToState(
+                        reverseIndexKeySpace, entryRICache, operandRICounts, compactRIKeys, primaryKey, OP_REMOVE, foreignKey);
+            }
+        }
+        return primaryKeys;
+    }
+
+    /**
+     * Removes the given primary key from the given foreign key entry. Since the entry isn't read, this always
+     * returns true, even if the entry didn't contain the primary key.
+     * @param foreignKey - The key of the index entry.
+     * @param primaryKey - The primary key to remove.
+     * @return True
+     */
+    @Override
+    public synchronized boolean remove(ByteArray foreignKey, ByteArray primaryKey) {
+        Preconditions.checkNotNull(foreignKey);
+        if(primaryKey == null || primaryKey.size() == 0) return true;
+        mergeToState(indexKeySpace, entryCache, operandCounts, compactKeys, foreignKey, OP_REMOVE, primaryKey);
+        mergeToState(reverseIndexKeySpace, entryRICache, operandRICounts, compactRIKeys, primaryKey, OP_REMOVE, foreignKey);
+        return true;
+    }
+
+    /**
+     * Resolves the operands of an entry into the keys of the entry
+     * @param compactKeys - If given, the key of the entry is added to this when it should be collapsed. May be null.
+     * @param key - The key of the entry
+     * @param bytes - The operands of the entry
+     * @return The keys of the entry, or null if it has none
+     */
+    protected ByteArraySet resolve(Set<ByteArray> compactKeys, ByteArray key, byte[] bytes) {
+        Set<ByteArray> keys = new HashSet<>();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int operands = 0;
+        while(buffer.hasRemaining()) {
+            // Skip the delimiter between operands
+            if(operands > 0) buffer.get();
+            byte op = buffer.get();
+            byte[] value = new byte[buffer.getInt()];
+            buffer.get(value);
+            switch(op) {
+                case OP_SET:
+                    keys.clear();
+                    for(ByteArray byteArray: ByteArraySet.deserialize(value)) {
+                        if(byteArray != null) keys.add(byteArray);
+                    }
+                    break;
+                case OP_ADD:
+                    keys.add(new ByteArray(value));
+                    break;
+                case OP_REMOVE:
+                    keys.remove(new ByteArray(value));
+                    break;
+                default:
+                    throw new RuntimeException("Unknown index operand type: " + op);
+            }
+            operands++;
+        }
+        if(compactKeys != null && (operands > COMPACTION_THRESHOLD || (keys.isEmpty() && operands > 0))) {
+            synchronized(this) {
+                compactKeys.add(key);
+            }
+        }
+        return keys.isEmpty() ? null : ByteArraySet.of(keys);
+    }
+
+    /**
+     * Creates an operand to merge into an entry
+     * @param op - The operand type
+     * @param value - The payload of the operand
+     * @return The operand
+     */
+    protected static byte[] toOperand(byte op, byte[] value) {
+        return ByteBuffer.allocate(OP_HEADER_SIZE + value.length).put(op).putInt(value.length).put(value).array();
+    }
+}
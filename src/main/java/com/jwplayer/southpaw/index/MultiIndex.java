@@ -17,6 +17,7 @@ package com.jwplayer.southpaw.index;
 
 import com.google.common.base.Preconditions;
 import com.jwplayer.southpaw.state.BaseState;
+import com.jwplayer.southpaw.state.KeySpace;
 import com.jwplayer.southpaw.topic.BaseTopic;
 import com.jwplayer.southpaw.util.ByteArray;
 import com.jwplayer.southpaw.util.ByteArraySet;
@@ -28,6 +29,9 @@ import java.util.*;
 /**
  * Simple Index class that lets you store multiple primary keys (in a Set) per foreign key. This index
  * also has 'reverse index' functionality where you can get the foreign keys for a given primary key.
+ *
+ * Lookups (getIndexEntry, getIndexEntries and getForeignKeys) are safe to call from multiple threads at once, as long
+ * as no modifications are being made at the same time. Modifications are synchronized with each other.
  * @param <K> - The type of the key stored in the indexed topic
  * @param <V> - The type of the value stored in the indexed topic
  */
@@ -60,9 +64,10 @@ public class MultiIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements
     protected Map<ByteArray, ByteArraySet> pendingWrites = new HashMap<>();
     protected Map<ByteArray, ByteArraySet> pendingRIWrites = new HashMap<>();
     protected String reverseIndexName;
+    protected KeySpace reverseIndexKeySpace;
 
     @Override
-    public void add(ByteArray foreignKey, ByteArray primaryKey) {
+    public synchronized void add(ByteArray foreignKey, ByteArray primaryKey) {
         Preconditions.checkNotNull(foreignKey);
         ByteArraySet pks = getIndexEntry(foreignKey);
         if(pks == null) {
@@ -79,7 +84,7 @@ public class MultiIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements
      * @param foreignKey - The foreign key to add
      * @param primaryKey - The primary key to add
      */
-    protected void addRI(ByteArray foreignKey, ByteArray primaryKey) {
+    protected synchronized void addRI(ByteArray foreignKey, ByteArray primaryKey) {
         ByteArraySet keys = getForeignKeys(primaryKey);
         if(keys == null) {
             keys = new ByteArraySet();
@@ -101,11 +106,11 @@ public class MultiIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements
         this.entryRICache = new LRUMap<>(this.indexLRUCacheSize);
         this.indexWriteBatchSize = (int) Preconditions.checkNotNull(config.get(INDEX_WRITE_BATCH_SIZE));
         reverseIndexName = indexName + "-reverse";
-        state.createKeySpace(reverseIndexName);
+        reverseIndexKeySpace = state.createKeySpace(reverseIndexName);
     }
 
     @Override
-    public void flush() {
+    public synchronized void flush() {
         for(Map.Entry<ByteArray, ByteArraySet> entry: pendingWrites.entrySet()) {
             writeToState(entry.getKey(), entry.getValue());
         }
@@ -114,51 +119,99 @@ public class MultiIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements
         }
         pendingWrites.clear();
         pendingRIWrites.clear();
-        state.flush(indexName);
-        state.flush(reverseIndexName);
+        state.flush(indexKeySpace);
+        state.flush(reverseIndexKeySpace);
     }
 
     @Override
     public ByteArraySet getForeignKeys(ByteArray primaryKey) {
-        if(entryRICache.containsKey(primaryKey)) {
-            return entryRICache.get(primaryKey);
-        } else if(pendingRIWrites.containsKey(primaryKey)) {
-            return pendingRIWrites.get(primaryKey);
+        synchronized(this) {
+            if(entryRICache.containsKey(primaryKey)) {
+                return entryRICache.get(primaryKey);
+            } else if(pendingRIWrites.containsKey(primaryKey)) {
+                return pendingRIWrites.get(primaryKey);
+            }
+        }
+        byte[] bytes = state.get(reverseIndexKeySpace, primaryKey.getBytes());
+        ByteArraySet set = bytes == null ? null : readRIEntry(primaryKey, bytes);
+        if (set == null) {
+            return null;
         } else {
-            byte[] bytes = state.get(reverseIndexName, primaryKey.getBytes());
-            if (bytes == null) {
-                return null;
-            } else {
-                ByteArraySet set = ByteArraySet.deserialize(bytes);
-                if(set.size() > LRU_CACHE_THRESHOLD) entryRICache.put(primaryKey, set);
-                return set;
+            if(set.size() > LRU_CACHE_THRESHOLD) {
+                synchronized(this) {
+                    entryRICache.put(primaryKey, set);
+                }
+            }
+            return set;
+        }
+    }
+
+    @Override
+    public List<Set<ByteArray>> getIndexEntries(List<ByteArray> foreignKeys) {
+        List<Set<ByteArray>> entries = new ArrayList<>(foreignKeys.size());
+        List<byte[]> missingKeys = new ArrayList<>();
+        List<Integer> missingIndices = new ArrayList<>();
+        synchronized(this) {
+            for(ByteArray foreignKey: foreignKeys) {
+                Preconditions.checkNotNull(foreignKey);
+                if(entryCache.containsKey(foreignKey)) {
+                    entries.add(entryCache.get(foreignKey));
+                } else if(pendingWrites.containsKey(foreignKey)) {
+                    entries.add(pendingWrites.get(foreignKey));
+                } else {
+                    missingIndices.add(entries.size());
+                    missingKeys.add(foreignKey.getBytes());
+                    entries.add(null);
+                }
+            }
+        }
+        if(missingKeys.isEmpty()) return entries;
+        List<byte[]> values = state.multiGet(indexKeySpace, missingKeys);
+        for(int i = 0; i < values.size(); i++) {
+            byte[] bytes = values.get(i);
+            if(bytes != null) {
+                int index = missingIndices.get(i);
+                ByteArraySet set = readEntry(foreignKeys.get(index), bytes);
+                if(set == null) continue;
+                if(set.size() > LRU_CACHE_THRESHOLD) {
+                    synchronized(this) {
+                        entryCache.put(foreignKeys.get(index), set);
+                    }
+                }
+                entries.set(index, set);
             }
         }
+        return entries;
     }
 
     @Override
     public ByteArraySet getIndexEntry(ByteArray foreignKey) {
         Preconditions.checkNotNull(foreignKey);
-        if(entryCache.containsKey(foreignKey)) {
-            return entryCache.get(foreignKey);
-        } else if(pendingWrites.containsKey(foreignKey)) {
-            return pendingWrites.get(foreignKey);
+        synchronized(this) {
+            if(entryCache.containsKey(foreignKey)) {
+                return entryCache.get(foreignKey);
+            } else if(pendingWrites.containsKey(foreignKey)) {
+                return pendingWrites.get(foreignKey);
+            }
+        }
+        byte[] bytes = state.get(indexKeySpace, foreignKey.getBytes());
+        ByteArraySet set = bytes == null ? null : readEntry(foreignKey, bytes);
+        if (set == null) {
+            return null;
         } else {
-            byte[] bytes = state.get(indexName, foreignKey.getBytes());
-            if (bytes == null) {
-                return null;
-            } else {
-                ByteArraySet set = ByteArraySet.deserialize(bytes);
-                if(set.size() > LRU_CACHE_THRESHOLD) entryCache.put(foreignKey, set);
-                return set;
+            if(set.size() > LRU_CACHE_THRESHOLD) {
+                synchronized(this) {
+                    entryCache.put(foreignKey, set);
+                }
             }
+            return set;
         }
     }
 
     /**
      * Method for keeping pending writes manageable by auto-flushing once it reaches a certain size.
      */
-    public void putToState(ByteArray key, ByteArraySet value) {
+    public synchronized void putToState(ByteArray key, ByteArraySet value) {
         if(value.size() > LRU_CACHE_THRESHOLD) entryCache.put(key, value);
         pendingWrites.put(key, value);
         if(pendingWrites.size() > indexWriteBatchSize) {
@@ -172,7 +225,7 @@ public class MultiIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements
     /**
      * Method for keeping RI pending writes manageable by auto-flushing once it reaches a certain size.
      */
-    public void putRIToState(ByteArray key, ByteArraySet value) {
+    public synchronized void putRIToState(ByteArray key, ByteArraySet value) {
         if(value.size() > LRU_CACHE_THRESHOLD) entryRICache.put(key, value);
         pendingRIWrites.put(key, value);
         if(pendingRIWrites.size() > indexWriteBatchSize) {
@@ -198,12 +251,32 @@ public class MultiIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements
         return Collections.emptyListIterator();
     }
 
+    /**
+     * Deserializes an index entry read from the state
+     * @param foreignKey - The foreign key of the index entry
+     * @param bytes - The serialized index entry
+     * @return The primary keys of the index entry, or null if it has none
+     */
+    protected ByteArraySet readEntry(ByteArray foreignKey, byte[] bytes) {
+        return ByteArraySet.deserialize(bytes);
+    }
+
+    /**
+     * Deserializes a reverse index entry read from the state
+     * @param primaryKey - The primary key of the reverse index entry
+     * @param bytes - The serialized reverse index entry
+     * @return The foreign keys of the reverse index entry, or null if it has none
+     */
+    protected ByteArraySet readRIEntry(ByteArray primaryKey, byte[] bytes) {
+        return ByteArraySet.deserialize(bytes);
+    }
+
     @Override
-    public ByteArraySet remove(ByteArray foreignKey) {
+    public synchronized ByteArraySet remove(ByteArray foreignKey) {
         Preconditions.checkNotNull(foreignKey);
         ByteArraySet primaryKeys = getIndexEntry(foreignKey);
         if(primaryKeys != null) {
-            state.delete(indexName, foreignKey.getBytes());
+            state.delete(indexKeySpace, foreignKey.getBytes());
             entryCache.remove(foreignKey);
             pendingWrites.remove(foreignKey);
             for(ByteArray primaryKey: primaryKeys) {
@@ -218,12 +291,12 @@ public class MultiIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements
      * @param foreignKey - The foreign key to remove
      * @param primaryKey - The primary key of the entry
      */
-    protected void removeRI(ByteArray foreignKey, ByteArray primaryKey) {
+    protected synchronized void removeRI(ByteArray foreignKey, ByteArray primaryKey) {
         ByteArraySet foreignKeys = getForeignKeys(primaryKey);
         if(foreignKeys != null) {
             foreignKeys.remove(foreignKey);
             if(foreignKeys.size() == 0) {
-                state.delete(reverseIndexName, primaryKey.getBytes());
+                state.delete(reverseIndexKeySpace, primaryKey.getBytes());
                 entryRICache.remove(primaryKey);
                 pendingRIWrites.remove(primaryKey);
             } else {
@@ -233,14 +306,14 @@ public class MultiIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements
     }
 
     @Override
-    public boolean remove(ByteArray foreignKey, ByteArray primaryKey) {
+    public synchronized boolean remove(ByteArray foreignKey, ByteArray primaryKey) {
         Preconditions.checkNotNull(foreignKey);
         removeRI(foreignKey, primaryKey);
         ByteArraySet primaryKeys = getIndexEntry(foreignKey);
         if(primaryKeys != null) {
             if(primaryKeys.remove(primaryKey)) {
                 if(primaryKeys.size() == 0) {
-                    state.delete(indexName, foreignKey.getBytes());
+                    state.delete(indexKeySpace, foreignKey.getBytes());
                     entryCache.remove(foreignKey);
                     pendingWrites.remove(foreignKey);
                 } else {
@@ -263,9 +336,9 @@ public class MultiIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements
     protected void writeRIToState(ByteArray primaryKey, ByteArraySet foreignKeys) {
         Preconditions.checkNotNull(primaryKey);
         if(foreignKeys == null || foreignKeys.size() == 0) {
-            state.delete(reverseIndexName, primaryKey.getBytes());
+            state.delete(reverseIndexKeySpace, primaryKey.getBytes());
         } else {
-            state.put(reverseIndexName, primaryKey.getBytes(), foreignKeys.serialize());
+            state.put(reverseIndexKeySpace, primaryKey.getBytes(), foreignKeys.serialize());
         }
     }
 
@@ -277,9 +350,9 @@ public class MultiIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements
     protected void writeToState(ByteArray foreignKey, ByteArraySet primaryKeys) {
         Preconditions.checkNotNull(foreignKey);
         if(primaryKeys == null || primaryKeys.size() == 0) {
-            state.delete(indexName, foreignKey.getBytes());
+            state.delete(indexKeySpace, foreignKey.getBytes());
         } else {
-            state.put(indexName, foreignKey.getBytes(), primaryKeys.serialize());
+            state.put(indexKeySpace, foreignKey.getBytes(), primaryKeys.serialize());
         }
     }
 
@@ -288,14 +361,16 @@ public class MultiIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements
      * and correctly point to the reverse index
      * @return A string representation set of reverse index entry keys that are missing from the regular index.
      */
+    @Override
     public Set<String> verifyIndexState() {
         System.out.println("Verifying reverse index: " + reverseIndexName + " against index: " + indexName);
         Set<String> missingKeys = new HashSet<>();
-        BaseState.Iterator iter = state.iterate(reverseIndexName);
+        BaseState.Iterator iter = state.iterate(reverseIndexKeySpace);
         while (iter.hasNext()) {
             AbstractMap.SimpleEntry<byte[], byte[]> pair = iter.next();
             ByteArray revIndexPrimaryKey = new ByteArray(pair.getKey());
-            ByteArraySet revIndexForeignKeySet = ByteArraySet.deserialize(pair.getValue());
+            ByteArraySet revIndexForeignKeySet = readRIEntry(revIndexPrimaryKey, pair.getValue());
+            if(revIndexForeignKeySet == null) continue;
             for (ByteArray indexPrimaryKey : revIndexForeignKeySet.toArray()) {
                 ByteArraySet indexForeignKeySet = getIndexEntry(indexPrimaryKey);
 
@@ -315,14 +390,16 @@ public class MultiIndex<K, V> extends BaseIndex<K, V, Set<ByteArray>> implements
      * and correctly point to the regular index
      * @return A string representation set of regular index entry keys that are missing from the reverse index.
      */
+    @Override
     public Set<String> verifyReverseIndexState() {
         System.out.println("Verifying index: " + indexName + " against reverse index: " + reverseIndexName);
         Set<String> missingKeys = new HashSet<>();
-        BaseState.Iterator iter = state.iterate(indexName);
+        BaseState.Iterator iter = state.iterate(indexKeySpace);
         while (iter.hasNext()) {
             AbstractMap.SimpleEntry<byte[], byte[]> pair = iter.next();
             ByteArray indexPrimaryKey = new ByteArray(pair.getKey());
-            ByteArraySet indexForeignKeySet = ByteArraySet.deserialize(pair.getValue());
+            ByteArraySet indexForeignKeySet = readEntry(indexPrimaryKey, pair.getValue());
+            if(indexForeignKeySet == null) continue;
             for (ByteArray revIndexPrimaryKey : indexForeignKeySet.toArray()) {
                 ByteArraySet revIndexforeignKeySet = getForeignKeys(revIndexPrimaryKey);
 
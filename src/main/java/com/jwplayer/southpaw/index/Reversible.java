@@ -29,4 +29,16 @@ public interface Reversible {
      * @return The keys for the given primary key or null if no corresponding entry exists
      */
     Set<ByteArray> getForeignKeys(ByteArray primaryKey);
+
+    /**
+     * Iterates through each entry in the reverse index and verifies the symmetric entries exist in the regular index
+     * @return A string representation set of reverse index entry keys that are missing from the regular index.
+     */
+    Set<String> verifyIndexState();
+
+    /**
+     * Iterates through each entry in the regular index and verifies the symmetric entries exist in the reverse index
+     * @return A string representation set of regular index entry keys that are missing from the reverse index.
+     */
+    Set<String> verifyReverseIndexState();
 }
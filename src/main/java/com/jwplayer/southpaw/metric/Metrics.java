@@ -28,12 +28,17 @@ public class Metrics {
     public static final String BACKUPS_CREATED = "backups.created";
     public static final String BACKUPS_DELETED = "backups.deleted";
     public static final String BACKUPS_RESTORED = "backups.restored";
+    public static final String BACKUPS_SNAPSHOTTED = "backups.snapshotted";
+    public static final String BACKUPS_UPLOADED = "backups.uploaded";
     public static final String DENORMALIZED_RECORDS_CREATED = "denormalized.records.created";
+    public static final String DENORMALIZED_RECORDS_QUEUE_AGE = "denormalized.records.queue.age";
+    public static final String DENORMALIZED_RECORDS_SUPPRESSED = "denormalized.records.suppressed";
     public static final String DENORMALIZED_RECORDS_TO_CREATE = "denormalized.records.to.create";
     public static final String RECORDS_CONSUMED = "records.consumed";
     public static final String STATE_COMMITTED = "states.committed";
     public static final String STATES_DELETED = "states.deleted";
     public static final String TIME_SINCE_LAST_BACKUP = "time.since.last.backup";
+    public static final String TOPIC_INFLIGHT_RECORDS = "topic.inflight.records";
     public static final String TOPIC_LAG = "topic.lag";
 
     /**
@@ -56,6 +61,14 @@ public class Metrics {
      * Timer for backups restored
      */
     public final com.codahale.metrics.Timer backupsRestored = registry.timer(BACKUPS_RESTORED);
+    /**
+     * Timer for the snapshots taken of the state for asynchronous backups, during which processing is paused
+     */
+    public final com.codahale.metrics.Timer backupsSnapshotted = registry.timer(BACKUPS_SNAPSHOTTED);
+    /**
+     * Timer for backing up and uploading the snapshots of asynchronous backups in the background
+     */
+    public final com.codahale.metrics.Timer backupsUploaded = registry.timer(BACKUPS_UPLOADED);
     /**
      * The number of denormalized records created for all topics
      */
@@ -64,6 +77,23 @@ public class Metrics {
      * The number of denormalized records created by topic
      */
     public final Map<String, Meter> denormalizedRecordsCreatedByTopic = new HashMap<>();
+    /**
+     * How long (in milliseconds) the PKs of denormalized records were queued before being created, for all topics
+     */
+    public final Histogram denormalizedRecordsQueueAge = registry.histogram(DENORMALIZED_RECORDS_QUEUE_AGE);
+    /**
+     * How long the PKs of denormalized records were queued before being created by topic
+     */
+    public final Map<String, Histogram> denormalizedRecordsQueueAgeByTopic = new HashMap<>();
+    /**
+     * The number of denormalized records not written for all topics, because they were identical to the last
+     * record written
+     */
+    public final Meter denormalizedRecordsSuppressed = registry.meter(DENORMALIZED_RECORDS_SUPPRESSED);
+    /**
+     * The number of denormalized records not written by topic
+     */
+    public final Map<String, Meter> denormalizedRecordsSuppressedByTopic = new HashMap<>();
     /**
      * The number of denormalized records queued to create for all topics
      */
@@ -154,6 +184,22 @@ public class Metrics {
         }
     }
 
+    /**
+     * Register a partition of a topic written to for per partition in flight record metrics.
+     * @param shortName - The topic short name to register the metric under
+     * @param partition - The partition to register the metric under
+     * @return The gauge of the records written to the partition that haven't been acknowledged yet
+     */
+    @SuppressWarnings("unchecked")
+    public StaticGauge<Long> registerInflightPartition(String shortName, int partition) {
+        String meterName = String.join(".", TOPIC_INFLIGHT_RECORDS, shortName, Integer.toString(partition));
+        if(!registry.getMetrics().containsKey(meterName)) {
+            return registry.register(meterName, new StaticGauge<>());
+        } else {
+            return (StaticGauge<Long>) registry.getMetrics().get(meterName);
+        }
+    }
+
     /**
      * Register an output topic for per topic metrics.
      * @param shortName - The topic short name to register the metric under
@@ -166,6 +212,18 @@ public class Metrics {
         } else {
             denormalizedRecordsCreatedByTopic.put(shortName, (Meter) registry.getMetrics().get(meterName));
         }
+        meterName = String.join(".", DENORMALIZED_RECORDS_QUEUE_AGE, shortName);
+        if(!registry.getMetrics().containsKey(meterName)) {
+            denormalizedRecordsQueueAgeByTopic.put(shortName, registry.histogram(meterName));
+        } else {
+            denormalizedRecordsQueueAgeByTopic.put(shortName, (Histogram) registry.getMetrics().get(meterName));
+        }
+        meterName = String.join(".", DENORMALIZED_RECORDS_SUPPRESSED, shortName);
+        if(!registry.getMetrics().containsKey(meterName)) {
+            denormalizedRecordsSuppressedByTopic.put(shortName, registry.meter(meterName));
+        } else {
+            denormalizedRecordsSuppressedByTopic.put(shortName, (Meter) registry.getMetrics().get(meterName));
+        }
         meterName = String.join(".", DENORMALIZED_RECORDS_TO_CREATE, shortName);
         if(!registry.getMetrics().containsKey(meterName)) {
             denormalizedRecordsToCreateByTopic.put(shortName, registry.register(meterName, new StaticGauge<>()));
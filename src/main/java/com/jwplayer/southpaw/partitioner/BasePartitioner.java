@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.partitioner;
+
+import java.util.Map;
+
+import org.apache.kafka.common.utils.Utils;
+
+
+/**
+ * Base class for choosing the partition records are written to. By default, records are partitioned by a murmur2
+ * hash of their serialized key, the same as Kafka's default partitioner, so all versions of a denormalized record
+ * land in the same partition.
+ */
+public class BasePartitioner {
+    public BasePartitioner() { }
+
+    /**
+     * Configure this partitioner using the topic configuration
+     * @param config - The topic config
+     */
+    public void configure(Map<String, Object> config) {
+        // Do nothing by default
+    }
+
+    /**
+     * Chooses the partition to write a record to
+     * @param topicName - The name of the topic the record is written to
+     * @param keyBytes - The serialized record key. May be null.
+     * @param numPartitions - The number of partitions of the topic
+     * @return The partition to write the record to, between 0 and numPartitions - 1
+     */
+    public int partition(String topicName, byte[] keyBytes, int numPartitions) {
+        if(keyBytes == null || numPartitions <= 1) return 0;
+        return Utils.toPositive(Utils.murmur2(keyBytes)) % numPartitions;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.record;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.jwplayer.southpaw.json.ChildRecords;
+import com.jwplayer.southpaw.json.DenormalizedRecord;
+import com.jwplayer.southpaw.json.Record;
+
+
+/**
+ * A denormalized record's internal record that is backed by its input record. Jackson writes the fields straight
+ * from the input record to the generator, in the same order as a copied record, so the fields are only copied if
+ * they are read or modified through the record itself.
+ */
+public class LazyRecord extends Record {
+    private static final long serialVersionUID = 1L;
+    /**
+     * The most field orders to cache before the cache is cleared
+     */
+    private static final int MAX_CACHED_FIELD_ORDERS = 1024;
+    /**
+     * Cached output field orders, keyed by the hash of the input field order
+     */
+    private static final Map<Integer, FieldOrder> fieldOrders = new ConcurrentHashMap<>();
+
+    /**
+     * The input record, or null once the fields have been copied
+     */
+    private transient BaseRecord inputRecord;
+
+    /**
+     * The input and output order of a set of fields
+     */
+    private static class FieldOrder {
+        final String[] inputOrder;
+        final String[] outputOrder;
+
+        FieldOrder(Map<String, ?> fields) {
+            // A copied record stores its fields in a HashMap, so reproduce the order of one filled the same way
+            Map<String, Boolean> copy = new HashMap<>();
+            inputOrder = new String[fields.size()];
+            int i = 0;
+            for(String fieldName: fields.keySet()) {
+                inputOrder[i++] = fieldName;
+                copy.put(fieldName, Boolean.TRUE);
+            }
+            outputOrder = copy.keySet().toArray(new String[0]);
+        }
+
+        boolean matches(Map<String, ?> fields) {
+            if(fields.size() != inputOrder.length) return false;
+            int i = 0;
+            for(String fieldName: fields.keySet()) {
+                if(!inputOrder[i++].equals(fieldName)) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Read only view of the input record's fields in output order
+     */
+    private static class OrderedFields extends AbstractMap<String, Object> {
+        private final Map<String, ?> fields;
+        private final String[] order;
+
+        OrderedFields(Map<String, ?> fields, String[] order) {
+            this.fields = fields;
+            this.order = order;
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<Entry<String, Object>>() {
+                        private int index = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < order.length;
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            if(!hasNext()) throw new NoSuchElementException();
+                            String fieldName = order[index++];
+                            return new SimpleImmutableEntry<>(fieldName, fields.get(fieldName));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return order.length;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return order.length;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param inputRecord - The input record to back this record
+     */
+    public LazyRecord(BaseRecord inputRecord) {
+        this.inputRecord = inputRecord;
+    }
+
+    /**
+     * Copies the fields of all lazy records in the given denormalized record, so they can be compared with, or
+     * used as, plain records.
+     * @param record - The denormalized record to materialize
+     */
+    public static void materialize(DenormalizedRecord record) {
+        if(record == null) return;
+        if(record.getRecord() instanceof LazyRecord) {
+            ((LazyRecord) record.getRecord()).materialize();
+        }
+        ChildRecords children = record.getChildren();
+        if(children != null) {
+            for(List<DenormalizedRecord> childRecords: children.getAdditionalProperties().values()) {
+                if(childRecords == null) continue;
+                for(DenormalizedRecord child: childRecords) {
+                    materialize(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the fields of the input record into this record, if they haven't been already
+     */
+    public synchronized void materialize() {
+        if(inputRecord != null) {
+            for(Map.Entry<String, ?> entry: inputRecord.toMap().entrySet()) {
+                super.setAdditionalProperty(entry.getKey(), entry.getValue());
+            }
+            inputRecord = null;
+        }
+    }
+
+    /**
+     * Gets the fields to serialize, in the same order a copied record would serialize them
+     * @return The fields to serialize
+     */
+    @JsonAnyGetter
+    protected synchronized Map<String, Object> getOutputFields() {
+        if(inputRecord == null) return super.getAdditionalProperties();
+        Map<String, ?> fields = inputRecord.toMap();
+        return new OrderedFields(fields, getFieldOrder(fields).outputOrder);
+    }
+
+    /**
+     * Gets the cached field order for the given fields, creating it if needed
+     * @param fields - The fields to get the order for
+     * @return The field order
+     */
+    private static FieldOrder getFieldOrder(Map<String, ?> fields) {
+        int hash = 1;
+        for(String fieldName: fields.keySet()) {
+            hash = 31 * hash + fieldName.hashCode();
+        }
+        FieldOrder order = fieldOrders.get(hash);
+        if(order == null || !order.matches(fields)) {
+            order = new FieldOrder(fields);
+            if(fieldOrders.size() >= MAX_CACHED_FIELD_ORDERS) fieldOrders.clear();
+            fieldOrders.put(hash, order);
+        }
+        return order;
+    }
+
+    @Override
+    @JsonIgnore
+    @JsonAnyGetter(enabled = false)
+    public Map<String, Object> getAdditionalProperties() {
+        materialize();
+        return super.getAdditionalProperties();
+    }
+
+    @Override
+    public void setAdditionalProperty(String name, Object value) {
+        materialize();
+        super.setAdditionalProperty(name, value);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        materialize();
+        if(other instanceof LazyRecord) ((LazyRecord) other).materialize();
+        return super.equals(other);
+    }
+
+    @Override
+    public int hashCode() {
+        materialize();
+        return super.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        materialize();
+        return super.toString();
+    }
+
+    /**
+     * Serializes this record as a plain record
+     * @return The plain record
+     */
+    private Object writeReplace() {
+        Record record = new Record();
+        for(Map.Entry<String, Object> entry: getAdditionalProperties().entrySet()) {
+            record.setAdditionalProperty(entry.getKey(), entry.getValue());
+        }
+        return record;
+    }
+}
@@ -15,14 +15,23 @@
  */
 package com.jwplayer.southpaw.state;
 
+import com.google.common.base.Preconditions;
+
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 
 /**
  * Base state class for permanently storing indices and data
  */
 public abstract class BaseState {
+    /**
+     * The byte placed between values merged into the same key
+     */
+    public static final byte MERGE_DELIMITER = 0;
 
     private boolean isOpen = false;
 
@@ -97,6 +106,48 @@ public abstract class BaseState {
         public abstract void reset();
     }
 
+    /**
+     * Iterator for the keys starting with a given prefix, filtered from an iterator over all keys
+     */
+    protected static class PrefixIterator extends Iterator {
+        protected final Iterator iter;
+        protected AbstractMap.SimpleEntry<byte[], byte[]> nextEntry;
+        protected final byte[] prefix;
+
+        public PrefixIterator(Iterator iter, byte[] prefix) {
+            this.iter = iter;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public void close() {
+            iter.close();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(nextEntry == null && iter.hasNext()) {
+                AbstractMap.SimpleEntry<byte[], byte[]> entry = iter.next();
+                if(startsWith(entry.getKey(), prefix)) nextEntry = entry;
+            }
+            return nextEntry != null;
+        }
+
+        @Override
+        public AbstractMap.SimpleEntry<byte[], byte[]> next() {
+            if(!hasNext()) throw new NoSuchElementException();
+            AbstractMap.SimpleEntry<byte[], byte[]> retVal = nextEntry;
+            nextEntry = null;
+            return retVal;
+        }
+
+        @Override
+        public void reset() {
+            iter.reset();
+            nextEntry = null;
+        }
+    }
+
     /**
      * Backup this state
      */
@@ -116,10 +167,23 @@ public abstract class BaseState {
     public abstract void configure(Map<String, Object> config);
 
     /**
-     * Create a new key space
+     * Create a new key space, or get the existing key space if it was already created
      * @param keySpace - The key space to create
+     * @return The handle for the key space
      */
-    public abstract void createKeySpace(String keySpace);
+    public abstract KeySpace createKeySpace(String keySpace);
+
+    /**
+     * Create a new key space where all keys start with a fixed length prefix, such as a hash of the first part of a
+     * composite key. States that can use the prefix to speed up prefix scans (e.g. with prefix bloom filters) should
+     * override this, the default implementation simply creates a regular key space.
+     * @param keySpace - The key space to create
+     * @param prefixLength - The length of the prefix of all keys in the key space
+     * @return The handle for the key space
+     */
+    public KeySpace createKeySpace(String keySpace, int prefixLength) {
+        return createKeySpace(keySpace);
+    }
 
     /**
      * Delete the state
@@ -131,13 +195,29 @@ public abstract class BaseState {
      * @param keySpace - The key space where the key is stored
      * @param key - The key to delete
      */
-    public abstract void delete(String keySpace, byte[] key);
+    public abstract void delete(KeySpace keySpace, byte[] key);
+
+    /**
+     * Delete the given key
+     * @param keySpace - The name of the key space where the key is stored
+     * @param key - The key to delete
+     */
+    public void delete(String keySpace, byte[] key) {
+        delete(getExistingKeySpace(keySpace), key);
+    }
 
     /**
      * Deletes any backups for this state. Obviously, be very careful using this.
      */
     public abstract void deleteBackups();
 
+    /**
+     * Drop the given key space and all of its entries. Pending puts to the key space are discarded, so any puts
+     * elsewhere that depend on its entries should be flushed first.
+     * @param keySpace - The key space to drop
+     */
+    public abstract void dropKeySpace(KeySpace keySpace);
+
     /**
      * Flush all pending puts for all key spaces
      */
@@ -147,7 +227,15 @@ public abstract class BaseState {
      * Flush all pending puts for the given key space
      * @param keySpace - The key space to flush
      */
-    public abstract void flush(String keySpace);
+    public abstract void flush(KeySpace keySpace);
+
+    /**
+     * Flush all pending puts for the given key space
+     * @param keySpace - The name of the key space to flush
+     */
+    public void flush(String keySpace) {
+        flush(getExistingKeySpace(keySpace));
+    }
 
     /**
      * Get the value for the given key from the given key space.
@@ -155,14 +243,135 @@ public abstract class BaseState {
      * @param key - The key of the value to get
      * @return The value for the given key in the given key space
      */
-    public abstract byte[] get(String keySpace, byte[] key);
+    public abstract byte[] get(KeySpace keySpace, byte[] key);
+
+    /**
+     * Get the value for the given key from the given key space.
+     * @param keySpace - The name of the key space where the value is stored
+     * @param key - The key of the value to get
+     * @return The value for the given key in the given key space
+     */
+    public byte[] get(String keySpace, byte[] key) {
+        return get(getExistingKeySpace(keySpace), key);
+    }
+
+    /**
+     * Gets the handle for a key space that was already created
+     * @param keySpace - The name of the key space
+     * @return The handle for the key space, or null if the key space has not been created
+     */
+    public abstract KeySpace getKeySpace(String keySpace);
+
+    /**
+     * Gets the handle for a key space that must already be created
+     * @param keySpace - The name of the key space
+     * @return The handle for the key space
+     */
+    protected KeySpace getExistingKeySpace(String keySpace) {
+        return Preconditions.checkNotNull(getKeySpace(keySpace), "Unknown key space: %s", keySpace);
+    }
 
     /**
      * Get an iterator for all keys in the given key space
      * @param keySpace - The key space to iterate over
      * @return An iterator for all keys in the key space
      */
-    public abstract Iterator iterate(String keySpace);
+    public abstract Iterator iterate(KeySpace keySpace);
+
+    /**
+     * Get an iterator for all keys in the given key space
+     * @param keySpace - The name of the key space to iterate over
+     * @return An iterator for all keys in the key space
+     */
+    public Iterator iterate(String keySpace) {
+        return iterate(getExistingKeySpace(keySpace));
+    }
+
+    /**
+     * Merge a value into the existing value for the given key and key space. The merged value is the existing value,
+     * followed by MERGE_DELIMITER and the given value, or just the given value if the key has no value. States that
+     * can merge without reading the existing value should override this, the default implementation simply calls
+     * get() and put().
+     * @param keySpace - The key space to store the key and value in
+     * @param key - The key to merge the value into
+     * @param value - The value to merge
+     */
+    public void merge(KeySpace keySpace, byte[] key, byte[] value) {
+        put(keySpace, key, mergeValues(get(keySpace, key), value));
+    }
+
+    /**
+     * Merge a value into the existing value for the given key and key space
+     * @param keySpace - The name of the key space to store the key and value in
+     * @param key - The key to merge the value into
+     * @param value - The value to merge
+     */
+    public void merge(String keySpace, byte[] key, byte[] value) {
+        merge(getExistingKeySpace(keySpace), key, value);
+    }
+
+    /**
+     * Merges a value into an existing value, the same way merge() does
+     * @param existing - The existing value. May be null.
+     * @param value - The value to merge
+     * @return The merged value
+     */
+    protected static byte[] mergeValues(byte[] existing, byte[] value) {
+        if(existing == null) return value;
+        byte[] merged = new byte[existing.length + 1 + value.length];
+        System.arraycopy(existing, 0, merged, 0, existing.length);
+        merged[existing.length] = MERGE_DELIMITER;
+        System.arraycopy(value, 0, merged, existing.length + 1, value.length);
+        return merged;
+    }
+
+    /**
+     * Get an iterator for all keys in the given key space starting with the given prefix. Iterators
+     * must be closed after use. States that can seek to a key should override this, the default implementation
+     * simply filters an iterator over all keys in the key space.
+     * @param keySpace - The key space to iterate over
+     * @param prefix - The prefix of the keys to iterate over
+     * @return An iterator for all keys in the key space starting with the prefix
+     */
+    public Iterator iterate(KeySpace keySpace, byte[] prefix) {
+        return new PrefixIterator(iterate(keySpace), prefix);
+    }
+
+    /**
+     * Get an iterator for all keys in the given key space starting with the given prefix. Iterators
+     * must be closed after use.
+     * @param keySpace - The name of the key space to iterate over
+     * @param prefix - The prefix of the keys to iterate over
+     * @return An iterator for all keys in the key space starting with the prefix
+     */
+    public Iterator iterate(String keySpace, byte[] prefix) {
+        return iterate(getExistingKeySpace(keySpace), prefix);
+    }
+
+    /**
+     * Get the values for multiple keys from the given key space. States that can read several keys at once should
+     * override this, the default implementation simply calls get() for each key.
+     * @param keySpace - The key space where the values are stored
+     * @param keys - The keys of the values to get. Must not contain nulls.
+     * @return The values for the given keys, in the same order as the keys. Values not found are null.
+     */
+    public List<byte[]> multiGet(KeySpace keySpace, List<byte[]> keys) {
+        List<byte[]> values = new ArrayList<>(keys.size());
+        for(byte[] key: keys) {
+            values.add(get(keySpace, key));
+        }
+        return values;
+    }
+
+    /**
+     * Get the values for multiple keys from the given key space.
+     * @param keySpace - The name of the key space where the values are stored
+     * @param keys - The keys of the values to get. Must not contain nulls.
+     * @return The values for the given keys, in the same order as the keys. Values not found are null.
+     */
+    public List<byte[]> multiGet(String keySpace, List<byte[]> keys) {
+        return multiGet(getExistingKeySpace(keySpace), keys);
+    }
 
     /**
      * Checks if the state is open.
@@ -186,10 +395,35 @@ public abstract class BaseState {
      * @param key - The key to store
      * @param value - The value to store
      */
-    public abstract void put(String keySpace, byte[] key, byte[] value);
+    public abstract void put(KeySpace keySpace, byte[] key, byte[] value);
+
+    /**
+     * Put a new value into the state for the given key and key space. Puts may be batched and the values may not be
+     * available until flush() is called.
+     * @param keySpace - The name of the key space to store the key and value in
+     * @param key - The key to store
+     * @param value - The value to store
+     */
+    public void put(String keySpace, byte[] key, byte[] value) {
+        put(getExistingKeySpace(keySpace), key, value);
+    }
 
     /**
      * Restore the state from a previous backup.
      */
     public abstract void restore();
+
+    /**
+     * Checks if the given bytes start with the given prefix
+     * @param bytes - The bytes to check
+     * @param prefix - The prefix
+     * @return True if the bytes start with the prefix, otherwise false
+     */
+    protected static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if(bytes.length < prefix.length) return false;
+        for(int i = 0; i < prefix.length; i++) {
+            if(bytes[i] != prefix[i]) return false;
+        }
+        return true;
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.state;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * A handle to a key space in a state, returned when the key space is created. States resolve whatever they need to
+ * access the key space once, when the handle is created, so operations using the handle don't need to look the key
+ * space up by name. Handles stay valid when their state is closed and reopened.
+ */
+public class KeySpace {
+    /**
+     * The name of the key space
+     */
+    protected final String name;
+
+    /**
+     * Constructor
+     * @param name - The name of the key space
+     */
+    public KeySpace(String name) {
+        this.name = Preconditions.checkNotNull(name);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if(this == object) return true;
+        if(object == null || getClass() != object.getClass()) return false;
+        return name.equals(((KeySpace) object).name);
+    }
+
+    /**
+     * Accessor for the name of the key space
+     * @return The name of the key space
+     */
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
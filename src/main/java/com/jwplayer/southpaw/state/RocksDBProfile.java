@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.state;
+
+import com.google.common.base.Preconditions;
+import com.jwplayer.southpaw.topic.BaseTopic;
+import org.rocksdb.CompressionType;
+
+import java.util.Map;
+
+
+/**
+ * Tuning options for a class of key spaces in RocksDB. Each key space is given the profile of its type, based on
+ * its name. Options are configured per type as rocks.db.[type].[option], e.g. rocks.db.index.bloom.filter.bits.
+ */
+public class RocksDBProfile {
+    /**
+     * The number of bits per key of the bloom filters. 0 disables bloom filters.
+     */
+    public static final String BLOOM_FILTER_BITS_CONFIG = "bloom.filter.bits";
+    /**
+     * The size of the blocks of the SST files
+     */
+    public static final String BLOCK_SIZE_CONFIG = "block.size";
+    /**
+     * The compression type, e.g. LZ4_COMPRESSION. Expects a value of {@link CompressionType}.
+     */
+    public static final String COMPRESSION_CONFIG = "compression";
+    /**
+     * The size of each memtable
+     */
+    public static final String WRITE_BUFFER_SIZE_CONFIG = "write.buffer.size";
+
+    /**
+     * The classes of key spaces
+     */
+    public enum Type {
+        /**
+         * Key spaces storing the records of the input topics, read by PK
+         */
+        DATA ("data", 10),
+        /**
+         * Key spaces storing indices
+         */
+        INDEX ("index", 10),
+        /**
+         * Key spaces storing Southpaw's own metadata
+         */
+        METADATA ("metadata", 0),
+        /**
+         * Key spaces storing the offsets of the input topics
+         */
+        OFFSETS ("offsets", 0),
+        /**
+         * Key spaces storing reverse indices
+         */
+        REVERSE_INDEX ("reverse.index", 10);
+
+        private final int defaultBloomFilterBits;
+        private final String value;
+
+        Type(String value, int defaultBloomFilterBits) {
+            this.value = value;
+            this.defaultBloomFilterBits = defaultBloomFilterBits;
+        }
+
+        public String getValue() {
+            return this.value;
+        }
+
+        /**
+         * Gets the type of the given key space, based on its name
+         * @param keySpace - The name of the key space
+         * @return The type of the key space
+         */
+        public static Type forKeySpace(String keySpace) {
+            if(keySpace.endsWith("-" + BaseTopic.DATA)) {
+                return DATA;
+            } else if(keySpace.endsWith("-" + BaseTopic.OFFSETS)) {
+                return OFFSETS;
+            } else if(keySpace.endsWith("-reverse")) {
+                return REVERSE_INDEX;
+            } else if(keySpace.startsWith("__")) {
+                return METADATA;
+            } else {
+                return INDEX;
+            }
+        }
+    }
+
+    protected final int bloomFilterBits;
+    protected final long blockSize;
+    protected final CompressionType compression;
+    protected final Type type;
+    protected final long writeBufferSize;
+
+    /**
+     * Constructor
+     * @param type - The type of key spaces this profile is for
+     * @param config - The state config
+     */
+    public RocksDBProfile(Type type, Map<String, Object> config) {
+        this.type = Preconditions.checkNotNull(type);
+        this.bloomFilterBits = (int) config.getOrDefault(getConfigName(BLOOM_FILTER_BITS_CONFIG), type.defaultBloomFilterBits);
+        this.blockSize = ((Number) config.getOrDefault(getConfigName(BLOCK_SIZE_CONFIG), 0)).longValue();
+        Object compression = config.get(getConfigName(COMPRESSION_CONFIG));
+        this.compression = compression == null ? null : CompressionType.valueOf(compression.toString());
+        this.writeBufferSize = ((Number) config.getOrDefault(getConfigName(WRITE_BUFFER_SIZE_CONFIG), 0)).longValue();
+        Preconditions.checkArgument(bloomFilterBits >= 0);
+    }
+
+    /**
+     * The number of bits per key of the bloom filters
+     * @return The number of bits per key, or 0 if bloom filters are disabled
+     */
+    public int getBloomFilterBits() {
+        return bloomFilterBits;
+    }
+
+    /**
+     * The size of the blocks of the SST files
+     * @return The block size, or 0 to use the RocksDB default
+     */
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * The compression type
+     * @return The compression type, or null to use the RocksDB default
+     */
+    public CompressionType getCompression() {
+        return compression;
+    }
+
+    /**
+     * Gets the full name of an option of this profile
+     * @param option - The name of the option, e.g. BLOOM_FILTER_BITS_CONFIG
+     * @return The full config name of the option
+     */
+    public String getConfigName(String option) {
+        return "rocks.db." + type.getValue() + "." + option;
+    }
+
+    /**
+     * The type of key spaces this profile is for
+     * @return The type
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * The size of each memtable
+     * @return The memtable size, or 0 to use the RocksDB default
+     */
+    public long getWriteBufferSize() {
+        return writeBufferSize;
+    }
+}
@@ -19,18 +19,30 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
+import org.apache.kafka.common.utils.Bytes;
 import org.rocksdb.BackupEngine;
 import org.rocksdb.BackupInfo;
 import org.rocksdb.BackupableDBOptions;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.Checkpoint;
 import org.rocksdb.ColumnFamilyDescriptor;
 import org.rocksdb.ColumnFamilyHandle;
 import org.rocksdb.ColumnFamilyOptions;
@@ -39,14 +51,19 @@ import org.rocksdb.DBOptions;
 import org.rocksdb.Env;
 import org.rocksdb.FlushOptions;
 import org.rocksdb.InfoLogLevel;
+import org.rocksdb.LRUCache;
 import org.rocksdb.Options;
+import org.rocksdb.ReadOptions;
 import org.rocksdb.RestoreOptions;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksIterator;
+import org.rocksdb.Snapshot;
 import org.rocksdb.SstFileManager;
 import org.rocksdb.Statistics;
-import org.rocksdb.WriteBatch;
+import org.rocksdb.StringAppendOperator;
+import org.rocksdb.WBWIRocksIterator;
+import org.rocksdb.WriteBatchWithIndex;
 import org.rocksdb.WriteOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,7 +71,6 @@ import org.slf4j.LoggerFactory;
 import com.codahale.metrics.Timer;
 import com.google.common.base.Preconditions;
 import com.jwplayer.southpaw.metric.Metrics;
-import com.jwplayer.southpaw.util.ByteArray;
 import com.jwplayer.southpaw.util.FileHelper;
 import com.jwplayer.southpaw.util.S3Helper;
 
@@ -64,6 +80,10 @@ import com.jwplayer.southpaw.util.S3Helper;
  */
 public class RocksDBState extends BaseState {
     private static final Logger logger = LoggerFactory.getLogger(RocksDBState.class);
+    /**
+     * How backups are taken. Expects a value of {@link BackupMode}
+     */
+    public static final String BACKUP_MODE_CONFIG = "rocks.db.backup.mode";
     /**
      * URI to backup RocksDB to
      */
@@ -76,6 +96,14 @@ public class RocksDBState extends BaseState {
      * The # of backups to keep
      */
     public static final String BACKUPS_TO_KEEP_CONFIG = "rocks.db.backups.to.keep";
+    /**
+     * Size of the LRU block cache shared by all key spaces. 0 gives each key space its own default block cache.
+     */
+    public static final String BLOCK_CACHE_SIZE_CONFIG = "rocks.db.block.cache.size";
+    /**
+     * How flushes commit pending puts. Expects a value of {@link CommitMode}
+     */
+    public static final String COMMIT_MODE_CONFIG = "rocks.db.commit.mode";
     /**
      * Amount of memory used by the compaction process
      */
@@ -108,6 +136,10 @@ public class RocksDBState extends BaseState {
      * Used for # of threads for RocksDB parallelism
      */
     public static final String PARALLELISM_CONFIG = "rocks.db.parallelism";
+    /**
+     * How many bytes of keys and values are batched before automatically being flushed
+     */
+    public static final String PUT_BATCH_BYTES_CONFIG = "rocks.db.put.batch.bytes";
     /**
      * How many puts are batched before automatically being flushed
      */
@@ -120,23 +152,165 @@ public class RocksDBState extends BaseState {
      * URI for RocksDB
      */
     public static final String URI_CONFIG = "rocks.db.uri";
+    /**
+     * The maximum number of keys passed to RocksDB in a single multi get
+     */
+    protected static final int MULTI_GET_BATCH_SIZE = 1000;
+    /**
+     * Separates the key space name from the prefix length in the names of column families for key spaces created
+     * with a prefix length, so the prefix length is known when the DB is reopened
+     */
+    protected static final String PREFIX_LENGTH_SEPARATOR = "@";
+    /**
+     * The bloom filter bits per key for key spaces with a prefix length, when their profile disables bloom filters
+     */
+    protected static final int PREFIX_BLOOM_FILTER_BITS = 10;
+
+    /**
+     * How backups are taken
+     */
+    public enum BackupMode {
+        /**
+         * Each backup is taken and uploaded before backup() returns
+         */
+        SYNC ("sync"),
+
+        /**
+         * backup() takes a checkpoint of the DB using hard links, then the checkpoint is backed up and uploaded in the
+         * background. Only one backup runs at a time.
+         */
+        CHECKPOINT ("checkpoint");
+
+        private final String value;
+
+        BackupMode(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return this.value;
+        }
+
+        /**
+         * Determine if the supplied value is one of the predefined backup modes.
+         * @param value the configuration property value; may not be null
+         * @return the matching mode, or null if match is not found
+         */
+        public static BackupMode parse(String value) {
+            if (value == null) {
+                return null;
+            }
+
+            value = value.trim();
+            for (BackupMode option : BackupMode.values()) {
+                if (option.getValue().equalsIgnoreCase(value)) {
+                    return option;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * How pending puts are committed by flushes
+     */
+    public enum CommitMode {
+        /**
+         * Each flush writes the pending puts of its key space(s) and waits for RocksDB to flush the memtables to disk
+         */
+        FLUSH ("flush"),
+
+        /**
+         * Flushing a single key space is deferred. Flushing all key spaces writes the pending puts of every key space
+         * and syncs the WAL, leaving memtable flushes to RocksDB. Commits are durable but not atomic, since pending
+         * puts are also written when the batch gets too large or a checkpoint is taken. Replaying the input topics
+         * from the last committed offsets makes this safe.
+         */
+        WAL ("wal");
+
+        private final String value;
+
+        CommitMode(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return this.value;
+        }
+
+        /**
+         * Determine if the supplied value is one of the predefined commit modes.
+         * @param value the configuration property value; may not be null
+         * @return the matching mode, or null if match is not found
+         */
+        public static CommitMode parse(String value) {
+            if (value == null) {
+                return null;
+            }
+
+            value = value.trim();
+            for (CommitMode option : CommitMode.values()) {
+                if (option.getValue().equalsIgnoreCase(value)) {
+                    return option;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Handle for a key space, stored in its own column family
+     */
+    public static class ColumnFamilyKeySpace extends KeySpace {
+        /**
+         * The handle of the column family. Null while the state is closed.
+         */
+        protected ColumnFamilyHandle handle;
+        /**
+         * The prefix length of the key space, or 0 if it was not created with one
+         */
+        protected int prefixLength;
+
+        /**
+         * Constructor
+         * @param name - The name of the key space
+         */
+        public ColumnFamilyKeySpace(String name) {
+            super(name);
+        }
+    }
 
     public static class Iterator extends BaseState.Iterator {
         RocksIterator innerIter;
+        ReadOptions readOptions;
+        byte[] prefix;
 
         public Iterator(RocksIterator iter) {
+            this(iter, null, null);
+        }
+
+        /**
+         * Constructor
+         * @param iter - The RocksDB iterator to wrap
+         * @param readOptions - The read options used by the iterator, closed with it. May be null.
+         * @param prefix - Only iterate over keys starting with this prefix. May be null.
+         */
+        public Iterator(RocksIterator iter, ReadOptions readOptions, byte[] prefix) {
             this.innerIter = iter;
-            iter.seekToFirst();
+            this.readOptions = readOptions;
+            this.prefix = prefix;
+            reset();
         }
 
         @Override
         public void close() {
             innerIter.close();
+            if(readOptions != null) readOptions.close();
         }
 
         @Override
         public boolean hasNext() {
-            return innerIter.isValid();
+            return innerIter.isValid() && (prefix == null || startsWith(innerIter.key(), prefix));
         }
 
         @Override
@@ -148,10 +322,126 @@ public class RocksDBState extends BaseState {
 
         @Override
         public void reset() {
-            innerIter.seekToFirst();
+            if(prefix == null) {
+                innerIter.seekToFirst();
+            } else {
+                innerIter.seek(prefix);
+            }
         }
     }
 
+    /**
+     * Iterator that reads a key space through the write batch, so pending changes are iterated without being written.
+     * The batch keeps every change to a key, so each key is resolved to its latest change: pending puts replace the
+     * value in the DB, pending deletes hide the key and pending merges are resolved against a snapshot of the DB taken
+     * with the batch. The batch isn't cleared while these iterators are open.
+     */
+    protected class BatchIterator extends Iterator {
+        protected final WriteBatchWithIndex batch;
+        protected final WBWIRocksIterator batchIter;
+        protected final ColumnFamilyHandle handle;
+        protected final Snapshot snapshot;
+        private AbstractMap.SimpleEntry<byte[], byte[]> nextEntry;
+        private boolean closed = false;
+
+        /**
+         * Constructor
+         * @param handle - The column family handle of the key space
+         * @param readOptions - The read options used by the iterator, closed with it. Must read from the snapshot.
+         * @param prefix - Only iterate over keys starting with this prefix. May be null.
+         * @param batch - The write batch holding the pending changes, not yet written at the time of the snapshot
+         * @param snapshot - The snapshot of the DB to read, released with the iterator
+         */
+        protected BatchIterator(
+                ColumnFamilyHandle handle,
+                ReadOptions readOptions,
+                byte[] prefix,
+                WriteBatchWithIndex batch,
+                Snapshot snapshot) {
+            super(rocksDB.newIterator(handle, readOptions), readOptions, prefix);
+            this.batch = batch;
+            this.batchIter = batch.newIterator(handle);
+            this.handle = handle;
+            this.snapshot = snapshot;
+            reset();
+        }
+
+        /**
+         * Moves to the next key in the DB or the batch, skipping keys deleted in the batch
+         */
+        protected void advance() {
+            nextEntry = null;
+            while(nextEntry == null) {
+                byte[] batchKey = batchIter.isValid() ? toBytes(batchIter.entry().getKey().data()) : null;
+                if(batchKey != null && prefix != null && !startsWith(batchKey, prefix)) batchKey = null;
+                boolean dbValid = super.hasNext();
+                if(batchKey == null && !dbValid) return;
+                int cmp = batchKey == null ? 1
+                        : dbValid ? Bytes.BYTES_LEXICO_COMPARATOR.compare(batchKey, innerIter.key()) : -1;
+                if(cmp > 0) {
+                    nextEntry = super.next();
+                } else {
+                    // The pending change replaces the value in the DB
+                    if(cmp == 0) innerIter.next();
+                    List<byte[]> values = Arrays.asList(new byte[1][]);
+                    WBWIRocksIterator.WriteType type = readFromBatch(batchIter, batchKey, values, 0);
+                    byte[] value = values.get(0);
+                    if(type == WBWIRocksIterator.WriteType.MERGE) {
+                        try {
+                            value = batch.getFromBatchAndDB(rocksDB, handle, readOptions, batchKey);
+                        } catch(RocksDBException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    }
+                    if(value != null) nextEntry = new AbstractMap.SimpleEntry<>(batchKey, value);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if(closed) return;
+            closed = true;
+            super.close();
+            batchIter.close();
+            rocksDB.releaseSnapshot(snapshot);
+            releaseBatch();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextEntry != null;
+        }
+
+        @Override
+        public AbstractMap.SimpleEntry<byte[], byte[]> next() {
+            AbstractMap.SimpleEntry<byte[], byte[]> retVal = nextEntry;
+            advance();
+            return retVal;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            // Called by the super constructor before the batch iterator is created
+            if(batchIter == null) return;
+            if(prefix == null) {
+                batchIter.seekToFirst();
+            } else {
+                batchIter.seek(prefix);
+            }
+            advance();
+        }
+    }
+
+    /**
+     * Runs checkpoint backups in the background. Created by the first checkpoint backup.
+     */
+    protected ExecutorService backupExecutor;
+    /**
+     * How backups are taken
+     */
+    protected BackupMode backupMode;
     /**
      * Backup URI
      */
@@ -169,13 +459,18 @@ public class RocksDBState extends BaseState {
      */
     protected int compactionReadAheadSize;
     /**
-     * RocksDB column family handles.
+     * Handles for all key spaces, by name. Kept when the state is closed, so the handles are still valid when it is
+     * reopened.
      */
-    protected Map<ByteArray, ColumnFamilyHandle> cfHandles = new HashMap<>();
+    protected Map<String, ColumnFamilyKeySpace> keySpaces = new HashMap<>();
     /**
      * Configuration for this state
      */
     protected Map<String, Object> config;
+    /**
+     * How flushes commit pending puts
+     */
+    protected CommitMode commitMode;
     /**
      * Log level for RocksDB native layer
      */
@@ -209,14 +504,55 @@ public class RocksDBState extends BaseState {
      * Used for # of threads / parallelism for various Rocks DB config options
      */
     protected int parallelism;
+    /**
+     * How many bytes of keys and values are batched before automatically being flushed
+     */
+    protected long putBatchBytes;
     /**
      * How many puts are batched before automatically being flushed
      */
     protected int putBatchSize;
+    /**
+     * The bytes of the keys and values in the write batch. Every change is kept in the batch, so rewriting a large
+     * value adds all of it again.
+     */
+    protected long batchBytes = 0;
     /**
      * When restores should be performed
      */
     protected RestoreMode restoreMode;
+    /**
+     * Options for the column families (key spaces) of the DB
+     */
+    protected ColumnFamilyOptions cfOptions;
+    /**
+     * Appends merged values to existing values, separated by MERGE_DELIMITER
+     */
+    protected StringAppendOperator mergeOperator;
+    /**
+     * Options for the column families, by profile type and prefix length
+     */
+    protected Map<String, ColumnFamilyOptions> profileCfOptions = new HashMap<>();
+    /**
+     * Bloom filters, by bits per key
+     */
+    protected Map<Integer, BloomFilter> bloomFilters = new HashMap<>();
+    /**
+     * Block cache shared by all key spaces
+     */
+    protected LRUCache blockCache;
+    /**
+     * Size of the block cache shared by all key spaces
+     */
+    protected long blockCacheSize;
+    /**
+     * Tuning profiles for each type of key space
+     */
+    protected Map<RocksDBProfile.Type, RocksDBProfile> profiles = new EnumMap<>(RocksDBProfile.Type.class);
+    /**
+     * The checkpoint backup running in the background, if any
+     */
+    protected Future<?> pendingBackup;
     /**
      * RocksDB itself
      */
@@ -233,6 +569,10 @@ public class RocksDBState extends BaseState {
      * Rocks DB Write options
      */
     protected WriteOptions writeOptions;
+    /**
+     * Write options that sync the WAL, used to commit in the WAL commit mode
+     */
+    protected WriteOptions syncWriteOptions;
     /**
      * S3 helper class for backups in S3
      */
@@ -250,9 +590,23 @@ public class RocksDBState extends BaseState {
      */
     protected URI uri;
     /**
-     * We use this object to store data before batching together to write. Calling flush commits them to RocksDB.
+     * Pending puts, merges and deletes for all key spaces, indexed so they can be read before they are written.
+     * Calling flush commits them to RocksDB.
+     */
+    protected WriteBatchWithIndex writeBatch;
+    /**
+     * Read options used to read through the write batch
+     */
+    protected ReadOptions batchReadOptions;
+    /**
+     * The number of open iterators reading through the write batch. Guarded by retiredBatches.
+     */
+    protected int batchIterators = 0;
+    /**
+     * Written batches that were replaced instead of cleared, because iterators were still reading through them.
+     * Closed once those iterators are closed.
      */
-    protected Map<ByteArray, Map<ByteArray, byte[]>> dataBatches = new HashMap<>();
+    protected final List<WriteBatchWithIndex> retiredBatches = new ArrayList<>();
 
     public RocksDBState() {
         RocksDB.loadLibrary();
@@ -263,17 +617,46 @@ public class RocksDBState extends BaseState {
         RocksDB.loadLibrary();
     }
 
+    /**
+     * Waits for the checkpoint backup running in the background, if any, to finish
+     */
+    protected void awaitBackup() {
+        if(pendingBackup == null) return;
+        try {
+            pendingBackup.get();
+        } catch(InterruptedException | ExecutionException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            pendingBackup = null;
+        }
+    }
+
     @Override
     public void backup() {
+        awaitBackup();
+        if(backupMode == BackupMode.CHECKPOINT) {
+            backupCheckpoint();
+            return;
+        }
         logger.info("Backing up RocksDB state");
+        backup(rocksDB, true);
+        logger.info("RocksDB state backup complete");
+    }
+
+    /**
+     * Backs up the given DB to the backup URI
+     * @param db - The DB to back up
+     * @param flushBeforeBackup - Whether to flush the memtables of the DB before backing it up
+     */
+    protected void backup(RocksDB db, boolean flushBeforeBackup) {
         try {
             switch(backupURI.getScheme().toLowerCase()) {
                 case FileHelper.SCHEME:
-                    backup(backupURI.getPath());
+                    backup(db, backupURI.getPath(), flushBeforeBackup);
                     break;
                 case S3Helper.SCHEME:
                     String localBackupPath = getLocalBackupPath(uri);
-                    backup(localBackupPath);
+                    backup(db, localBackupPath, flushBeforeBackup);
                     s3Helper.syncToS3(new URI(localBackupPath), backupURI);
                     break;
                 default:
@@ -282,14 +665,15 @@ public class RocksDBState extends BaseState {
         } catch(InterruptedException | ExecutionException | URISyntaxException | RocksDBException ex) {
             throw new RuntimeException(ex);
         }
-        logger.info("RocksDB state backup complete");
     }
 
     /**
      * Backups the DB to a local path.
+     * @param db - The DB to back up
      * @param backupPath - The local backup path
+     * @param flushBeforeBackup - Whether to flush the memtables of the DB before backing it up
      */
-    protected void backup(String backupPath) throws RocksDBException {
+    protected void backup(RocksDB db, String backupPath, boolean flushBeforeBackup) throws RocksDBException {
         File file = new File(backupPath);
         if(!file.exists()) file.mkdir();
         logger.info("Opening RocksDB backup engine");
@@ -297,35 +681,132 @@ public class RocksDBState extends BaseState {
                 .setShareTableFiles(true)
                 .setMaxBackgroundOperations(parallelism);
             final BackupEngine backupEngine = BackupEngine.open(Env.getDefault(), backupOptions)) {
-            backupEngine.createNewBackup(rocksDB, true);
+            backupEngine.createNewBackup(db, flushBeforeBackup);
             backupEngine.purgeOldBackups(backupsToKeep);
         }
     }
 
+    /**
+     * Takes a checkpoint of the DB, then backs it up in the background. Processing only needs to be paused while
+     * the checkpoint is taken, which is mostly creating hard links to the SST files.
+     */
+    protected void backupCheckpoint() {
+        logger.info("Taking RocksDB checkpoint for backup");
+        String checkpointPath = getCheckpointPath(uri);
+        List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+        try(Timer.Context context = metrics.backupsSnapshotted.time()) {
+            // Clean up after a checkpoint backup that failed
+            FileUtils.deleteDirectory(new File(checkpointPath));
+            // Write any pending changes so they are part of the checkpoint
+            putBatch();
+            try(Checkpoint checkpoint = Checkpoint.create(rocksDB)) {
+                checkpoint.createCheckpoint(checkpointPath);
+            }
+            for(byte[] family: RocksDB.listColumnFamilies(rocksDBOptions, checkpointPath)) {
+                descriptors.add(createColumnFamilyDescriptor(family));
+            }
+        } catch(IOException | RocksDBException ex) {
+            throw new RuntimeException(ex);
+        }
+        if(backupExecutor == null) {
+            backupExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "southpaw-state-backup");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        pendingBackup = backupExecutor.submit(() -> backupCheckpoint(checkpointPath, descriptors));
+        logger.info("RocksDB checkpoint taken, backing it up in the background");
+    }
+
+    /**
+     * Backs up a checkpoint of the DB, then deletes the checkpoint. Runs in the background.
+     * @param checkpointPath - The local path of the checkpoint
+     * @param descriptors - The column families of the checkpoint
+     */
+    protected void backupCheckpoint(String checkpointPath, List<ColumnFamilyDescriptor> descriptors) {
+        try(Timer.Context context = metrics.backupsUploaded.time()) {
+            List<ColumnFamilyHandle> handles = new ArrayList<>(descriptors.size());
+            try(DBOptions checkpointOptions = new DBOptions();
+                RocksDB checkpointDB = RocksDB.open(checkpointOptions, checkpointPath, descriptors, handles)) {
+                try {
+                    // Everything in the checkpoint is already on disk, so there is nothing to flush
+                    backup(checkpointDB, false);
+                } finally {
+                    for(ColumnFamilyHandle handle: handles) {
+                        handle.close();
+                    }
+                }
+            }
+            FileUtils.deleteDirectory(new File(checkpointPath));
+        } catch(IOException | RocksDBException ex) {
+            logger.error("RocksDB checkpoint backup failed", ex);
+            throw new RuntimeException(ex);
+        } catch(RuntimeException ex) {
+            logger.error("RocksDB checkpoint backup failed", ex);
+            throw ex;
+        }
+        logger.info("RocksDB state backup complete");
+    }
+
     @Override
     public void close() {
         if(!isOpen()) {
             return;
         }
+        try {
+            awaitBackup();
+        } catch(RuntimeException ex) {
+            logger.error("Problem waiting for the background backup to finish", ex);
+        }
+        if(backupExecutor != null) {
+            backupExecutor.shutdown();
+            backupExecutor = null;
+        }
         super.close();
 
         for (Iterator iterator : iterators) {
             iterator.close();
         }
+        iterators.clear();
 
-        for(Map.Entry<ByteArray, ColumnFamilyHandle> entry: cfHandles.entrySet()) {
-            entry.getValue().close();
+        for(ColumnFamilyKeySpace keySpace: keySpaces.values()) {
+            if(keySpace.handle != null) keySpace.handle.close();
+            keySpace.handle = null;
         }
-        cfHandles.clear();
-        dataBatches.clear();
+        writeBatch.close();
+        for(WriteBatchWithIndex batch: retiredBatches) {
+            batch.close();
+        }
+        retiredBatches.clear();
+        batchIterators = 0;
+        batchReadOptions.close();
         rocksDBOptions.close();
         flushOptions.close();
         writeOptions.close();
+        syncWriteOptions.close();
         rocksDB.close();
+        cfOptions.close();
+        for(ColumnFamilyOptions options: profileCfOptions.values()) {
+            options.close();
+        }
+        profileCfOptions.clear();
+        for(BloomFilter bloomFilter: bloomFilters.values()) {
+            bloomFilter.close();
+        }
+        bloomFilters.clear();
+        if(blockCache != null) blockCache.close();
+        mergeOperator.close();
 
+        cfOptions = null;
+        mergeOperator = null;
+        blockCache = null;
         rocksDBOptions = null;
         flushOptions = null;
         writeOptions = null;
+        syncWriteOptions = null;
+        writeBatch = null;
+        batchReadOptions = null;
         rocksDB = null;
 
         if (s3Helper != null) {
@@ -337,9 +818,16 @@ public class RocksDBState extends BaseState {
     public void configure(Map<String, Object> config) {
         try {
             this.config = Preconditions.checkNotNull(config);
+            this.backupMode = Preconditions.checkNotNull(
+                    BackupMode.parse(config.getOrDefault(BACKUP_MODE_CONFIG, BackupMode.SYNC.getValue()).toString()),
+                    "Unsupported backup mode: %s", config.get(BACKUP_MODE_CONFIG));
             this.backupURI = new URI(Preconditions.checkNotNull(config.get(BACKUP_URI_CONFIG).toString()));
             this.backupsAutoRollback = (boolean) config.getOrDefault(BACKUPS_AUTO_ROLLBACK_CONFIG, false);
+            this.blockCacheSize = ((Number) config.getOrDefault(BLOCK_CACHE_SIZE_CONFIG, 0)).longValue();
             this.backupsToKeep = (int) Preconditions.checkNotNull(config.get(BACKUPS_TO_KEEP_CONFIG));
+            this.commitMode = Preconditions.checkNotNull(
+                    CommitMode.parse(config.getOrDefault(COMMIT_MODE_CONFIG, CommitMode.FLUSH.getValue()).toString()),
+                    "Unsupported commit mode: %s", config.get(COMMIT_MODE_CONFIG));
             this.compactionReadAheadSize = (int) Preconditions.checkNotNull(config.get(COMPACTION_READ_AHEAD_SIZE_CONFIG));
             this.infoLogLevel = InfoLogLevel.valueOf(config.getOrDefault(LOG_LEVEL, "INFO_LEVEL").toString());
             this.maxBackgroundCompactions = (int) config.getOrDefault(MAX_BACKGROUND_COMPACTIONS, 1);
@@ -348,9 +836,13 @@ public class RocksDBState extends BaseState {
             this.maxWriteBufferNumber = (int) config.getOrDefault(MAX_WRITE_BUFFER_NUMBER, 1);
             this.memtableSize = ((Number) Preconditions.checkNotNull(config.get(MEMTABLE_SIZE))).longValue();
             this.parallelism = (int) config.getOrDefault(PARALLELISM_CONFIG, 1);
+            this.putBatchBytes = ((Number) config.getOrDefault(PUT_BATCH_BYTES_CONFIG, 64L * 1024 * 1024)).longValue();
             this.putBatchSize = (int) Preconditions.checkNotNull(config.get(PUT_BATCH_SIZE));
             this.restoreMode = RestoreMode.parse(config.getOrDefault(RESTORE_MODE_CONFIG, RestoreMode.NEVER.getValue()).toString());
             this.uri = new URI(Preconditions.checkNotNull(config.get(URI_CONFIG).toString()));
+            for(RocksDBProfile.Type type: RocksDBProfile.Type.values()) {
+                profiles.put(type, new RocksDBProfile(type, config));
+            }
 
             if(backupURI.getScheme().toLowerCase().equals(S3Helper.SCHEME)) {
                 s3Helper = new S3Helper(config);
@@ -381,8 +873,13 @@ public class RocksDBState extends BaseState {
                     .setSstFileManager(sstFileManager)
                     .setWalSizeLimitMB(0L);
             dbOptions.setMaxSubcompactions(maxSubcompactions);
-            ColumnFamilyOptions cfOptions = new ColumnFamilyOptions()
+            mergeOperator = new StringAppendOperator((char) MERGE_DELIMITER);
+            if(blockCacheSize > 0) {
+                blockCache = new LRUCache(blockCacheSize);
+            }
+            cfOptions = new ColumnFamilyOptions()
                     .setCompactionStyle(CompactionStyle.LEVEL)
+                    .setMergeOperator(mergeOperator)
                     .setMaxWriteBufferNumber(maxWriteBufferNumber)
                     .setNumLevels(4)
                     .setTargetFileSizeMultiplier(2);
@@ -411,6 +908,16 @@ public class RocksDBState extends BaseState {
             writeOptions = new WriteOptions();
             writeOptions.setDisableWAL(false);
 
+            syncWriteOptions = new WriteOptions();
+            syncWriteOptions.setDisableWAL(false);
+            syncWriteOptions.setSync(true);
+
+            // Keep every operation on a key, so merges in the batch can be resolved against the DB on reads. Reads
+            // resolve each key to its latest change themselves, so newIteratorWithBase (which needs overwrite_key) and
+            // the batch's overwritten merges aren't used.
+            writeBatch = new WriteBatchWithIndex(false);
+            batchReadOptions = new ReadOptions();
+
             if (restoreMode == RestoreMode.ALWAYS){
                 this.restore();
             }
@@ -419,7 +926,7 @@ public class RocksDBState extends BaseState {
             List<ColumnFamilyHandle> handles = new ArrayList<>(families.size() + 1);
             List<ColumnFamilyDescriptor> descriptors = new ArrayList<>(families.size() + 1);
             for (byte[] family : families) {
-                descriptors.add(new ColumnFamilyDescriptor(family, cfOptions));
+                descriptors.add(createColumnFamilyDescriptor(family));
             }
             if (descriptors.size() == 0) {
                 descriptors.add(new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, cfOptions));
@@ -441,7 +948,7 @@ public class RocksDBState extends BaseState {
                     handles = new ArrayList<>(families.size() + 1);
                     descriptors = new ArrayList<>(families.size() + 1);
                     for (byte[] family : families) {
-                        descriptors.add(new ColumnFamilyDescriptor(family, cfOptions));
+                        descriptors.add(createColumnFamilyDescriptor(family));
                     }
                     if (descriptors.size() == 0) {
                         descriptors.add(new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, cfOptions));
@@ -452,14 +959,11 @@ public class RocksDBState extends BaseState {
                 rocksDB = RocksDB.open(dbOptions, uri.getPath(), descriptors, handles);
             }
 
-            for (int i = 0; i < families.size(); i++) {
-                if (i > 0) {
-                    ByteArray byteArray = new ByteArray(families.get(i));
-                    dataBatches.put(byteArray, new HashMap<>());
-                }
-            }
             for(ColumnFamilyHandle handle: handles) {
-                cfHandles.put(new ByteArray(handle.getName()), handle);
+                ColumnFamilyKeySpace keySpace
+                        = keySpaces.computeIfAbsent(getKeySpaceName(handle.getName()), ColumnFamilyKeySpace::new);
+                keySpace.handle = handle;
+                keySpace.prefixLength = getPrefixLength(handle.getName());
             }
         } catch(Exception ex) {
             throw new RuntimeException(ex);
@@ -468,23 +972,83 @@ public class RocksDBState extends BaseState {
     }
 
     @Override
-    public void createKeySpace(String keySpace) {
-        ByteArray handleName = new ByteArray(keySpace);
-        if(!cfHandles.containsKey(handleName)) {
-            createKeySpace(handleName);
-        }
+    public KeySpace createKeySpace(String keySpace) {
+        return createKeySpace(keySpace, 0);
     }
 
-    protected void createKeySpace(ByteArray handleName) {
-        ColumnFamilyDescriptor cfDescriptor = new ColumnFamilyDescriptor(handleName.getBytes());
-        ColumnFamilyHandle cfHandle;
+    @Override
+    public KeySpace createKeySpace(String keySpace, int prefixLength) {
+        Preconditions.checkNotNull(keySpace);
+        Preconditions.checkArgument(prefixLength >= 0);
+        ColumnFamilyKeySpace retVal = keySpaces.computeIfAbsent(keySpace, ColumnFamilyKeySpace::new);
+        if(retVal.handle != null) {
+            return retVal;
+        }
+        String family = keySpace;
+        if(prefixLength > 0) {
+            family += PREFIX_LENGTH_SEPARATOR + prefixLength;
+        }
+        ColumnFamilyDescriptor cfDescriptor = createColumnFamilyDescriptor(family.getBytes(StandardCharsets.UTF_8));
         try {
-            cfHandle = this.rocksDB.createColumnFamily(cfDescriptor);
+            retVal.handle = this.rocksDB.createColumnFamily(cfDescriptor);
         } catch (RocksDBException ex) {
             throw new RuntimeException(ex);
         }
-        cfHandles.put(handleName, cfHandle);
-        dataBatches.put(handleName, new HashMap<>());
+        retVal.prefixLength = prefixLength;
+        return retVal;
+    }
+
+    /**
+     * Creates the descriptor for opening or creating a column family, using the options for the profile of its key
+     * space and its prefix length
+     * @param family - The name of the column family
+     * @return The column family descriptor
+     */
+    protected ColumnFamilyDescriptor createColumnFamilyDescriptor(byte[] family) {
+        RocksDBProfile profile = profiles.get(
+                RocksDBProfile.Type.forKeySpace(getKeySpaceName(family)));
+        int prefixLength = getPrefixLength(family);
+        ColumnFamilyOptions options = profileCfOptions.computeIfAbsent(
+                profile.getType().getValue() + PREFIX_LENGTH_SEPARATOR + prefixLength,
+                key -> createColumnFamilyOptions(profile, prefixLength));
+        return new ColumnFamilyDescriptor(family, options);
+    }
+
+    /**
+     * Creates the options for column families with the given profile and prefix length
+     * @param profile - The profile of the key spaces
+     * @param prefixLength - The prefix length of the key spaces, or 0 if they have none
+     * @return The column family options
+     */
+    protected ColumnFamilyOptions createColumnFamilyOptions(RocksDBProfile profile, int prefixLength) {
+        ColumnFamilyOptions options = new ColumnFamilyOptions(cfOptions).setMergeOperator(mergeOperator);
+        BlockBasedTableConfig tableConfig = new BlockBasedTableConfig();
+        int bloomFilterBits = profile.getBloomFilterBits();
+        if(prefixLength > 0) {
+            options.useFixedLengthPrefixExtractor(prefixLength).setMemtablePrefixBloomSizeRatio(0.1);
+            // Only filter on the prefix, since these key spaces are read with prefix scans
+            tableConfig.setWholeKeyFiltering(false);
+            if(bloomFilterBits == 0) bloomFilterBits = PREFIX_BLOOM_FILTER_BITS;
+        }
+        if(bloomFilterBits > 0) {
+            tableConfig.setFilter(bloomFilters.computeIfAbsent(bloomFilterBits, bits -> new BloomFilter(bits, false)));
+        }
+        if(profile.getBlockSize() > 0) {
+            tableConfig.setBlockSize(profile.getBlockSize());
+        }
+        if(blockCache != null) {
+            tableConfig.setBlockCache(blockCache)
+                    .setCacheIndexAndFilterBlocks(true)
+                    .setPinL0FilterAndIndexBlocksInCache(true);
+        }
+        options.setTableFormatConfig(tableConfig);
+        if(profile.getCompression() != null) {
+            options.setCompressionType(profile.getCompression());
+        }
+        if(profile.getWriteBufferSize() > 0) {
+            options.setWriteBufferSize(profile.getWriteBufferSize());
+        }
+        return options;
     }
 
     @Override
@@ -506,13 +1070,12 @@ public class RocksDBState extends BaseState {
     }
 
     @Override
-    public void delete(String keySpace, byte[] key) {
-        ByteArray handleName = new ByteArray(keySpace);
-        ColumnFamilyHandle handle = cfHandles.get(handleName);
-        Preconditions.checkNotNull(handle);
+    public void delete(KeySpace keySpace, byte[] key) {
+        ColumnFamilyHandle handle = getHandle(keySpace);
         try {
-            dataBatches.get(handleName).remove(new ByteArray(key));
-            rocksDB.delete(handle, writeOptions, key);
+            writeBatch.delete(handle, key);
+            batchBytes += key.length;
+            checkBatchSize();
         } catch(RocksDBException ex) {
             logger.error("Problem deleting RocksDB record, keySpace: " + keySpace + ", key: " + Hex.encodeHexString(key));
             throw new RuntimeException(ex);
@@ -521,6 +1084,7 @@ public class RocksDBState extends BaseState {
 
     @Override
     public void deleteBackups() {
+        awaitBackup();
         logger.info("Deleting RocksDB state backups");
         try {
             File file;
@@ -545,12 +1109,30 @@ public class RocksDBState extends BaseState {
         logger.info("RocksDB state backups have been deleted");
     }
 
+    @Override
+    public void dropKeySpace(KeySpace keySpace) {
+        ColumnFamilyHandle handle = getHandle(keySpace);
+        try {
+            // Commit the batch first, so it doesn't reference the dropped column family
+            putBatch();
+            rocksDB.dropColumnFamily(handle);
+        } catch(RocksDBException ex) {
+            throw new RuntimeException(ex);
+        }
+        handle.close();
+        keySpaces.remove(keySpace.getName());
+        logger.info("Dropped key space: " + keySpace);
+    }
+
     @Override
     public void flush() {
         try {
-            for(Map.Entry<ByteArray, Map<ByteArray, byte[]>> entry: dataBatches.entrySet()) {
-                putBatch(entry.getKey());
+            if(commitMode == CommitMode.WAL) {
+                // Commit everything pending durably, without forcing tiny memtable flushes
+                putBatch(syncWriteOptions);
+                return;
             }
+            putBatch();
             rocksDB.flush(flushOptions);
         } catch(RocksDBException ex) {
             throw new RuntimeException(ex);
@@ -558,32 +1140,72 @@ public class RocksDBState extends BaseState {
     }
 
     @Override
-    public void flush(String keySpace) {
-        Preconditions.checkNotNull(keySpace);
-        ByteArray byteArray = new ByteArray(keySpace);
+    public void flush(KeySpace keySpace) {
+        ColumnFamilyHandle handle = getHandle(keySpace);
+        // The pending puts are committed with all other key spaces by the next flush()
+        if(commitMode == CommitMode.WAL) return;
         try {
-            putBatch(byteArray);
-            rocksDB.flush(flushOptions, cfHandles.get(byteArray));
+            putBatch();
+            rocksDB.flush(flushOptions, handle);
         } catch(RocksDBException ex) {
             throw new RuntimeException(ex);
         }
     }
 
     @Override
-    public byte[] get(String keySpace, byte[] key) {
-        ByteArray handleName = new ByteArray(keySpace);
-        ColumnFamilyHandle handle = Preconditions.checkNotNull(cfHandles.get(handleName));
+    public byte[] get(KeySpace keySpace, byte[] key) {
+        ColumnFamilyHandle handle = getHandle(keySpace);
         try {
-            byte[] retVal = dataBatches.get(new ByteArray(keySpace)).get(new ByteArray(key));
-            if(retVal == null) {
-                retVal = rocksDB.get(handle, key);
-            }
-            return retVal;
+            return writeBatch.getFromBatchAndDB(rocksDB, handle, batchReadOptions, key);
         } catch(RocksDBException ex) {
             throw new RuntimeException(ex);
         }
     }
 
+    /**
+     * Gets the column family handle of an open key space
+     * @param keySpace - The key space, created by this state
+     * @return The column family handle
+     */
+    protected static ColumnFamilyHandle getHandle(KeySpace keySpace) {
+        return Preconditions.checkNotNull(
+                ((ColumnFamilyKeySpace) keySpace).handle, "Key space is not open: %s", keySpace);
+    }
+
+    @Override
+    public KeySpace getKeySpace(String keySpace) {
+        ColumnFamilyKeySpace retVal = keySpaces.get(keySpace);
+        return retVal == null || retVal.handle == null ? null : retVal;
+    }
+
+    /**
+     * Gets the name of the key space stored in the given column family
+     * @param family - The name of the column family
+     * @return The name of the key space
+     */
+    protected static String getKeySpaceName(byte[] family) {
+        String name = new String(family, StandardCharsets.UTF_8);
+        if(getPrefixLength(family) > 0) {
+            return name.substring(0, name.lastIndexOf(PREFIX_LENGTH_SEPARATOR));
+        }
+        return name;
+    }
+
+    /**
+     * Gets the local path of the checkpoints taken for checkpoint backups using the DB URI
+     * @param uri - The (local) location to the DB
+     * @return A path to store checkpoints in
+     */
+    protected String getCheckpointPath(URI uri) {
+        Preconditions.checkNotNull(uri);
+
+        if(uri.getPath().endsWith("/")) {
+            return uri.getPath() + "checkpoint";
+        } else {
+            return uri.getPath() + "/" + "checkpoint";
+        }
+    }
+
     /**
      * Gets a local backup path using the DB URI
      * @param uri - The (local) location to the DB
@@ -599,48 +1221,235 @@ public class RocksDBState extends BaseState {
         }
     }
 
+    /**
+     * Gets the prefix length of the key space stored in the given column family
+     * @param family - The name of the column family
+     * @return The prefix length, or 0 if the key space was not created with one
+     */
+    protected static int getPrefixLength(byte[] family) {
+        String name = new String(family, StandardCharsets.UTF_8);
+        int index = name.lastIndexOf(PREFIX_LENGTH_SEPARATOR);
+        if(index < 0) return 0;
+        try {
+            return Math.max(Integer.parseInt(name.substring(index + 1)), 0);
+        } catch(NumberFormatException ex) {
+            return 0;
+        }
+    }
+
     @Override
-    public Iterator iterate(String keySpace) {
-        // NOTE: This only iterates RocksDB, not the appropriate data batch. Call flush first if
-        // you need to iterate everything.
-        ByteArray handleName = new ByteArray(keySpace);
-        ColumnFamilyHandle handle = Preconditions.checkNotNull(cfHandles.get(handleName));
-        Iterator iterator = new Iterator(rocksDB.newIterator(handle));
+    public Iterator iterate(KeySpace keySpace) {
+        ColumnFamilyHandle handle = getHandle(keySpace);
+        // Key spaces with a prefix extractor need a total order seek to iterate across prefixes
+        ReadOptions readOptions = new ReadOptions().setTotalOrderSeek(true);
+        // Pending changes are read through the batch, since flush(keySpace) may not have written them
+        Iterator iterator = newBatchIterator(handle, readOptions, null);
         iterators.add(iterator);
         return iterator;
     }
 
     @Override
-    public void put(String keySpace, byte[] key, byte[] value) {
+    public Iterator iterate(KeySpace keySpace, byte[] prefix) {
+        Preconditions.checkNotNull(prefix);
+        ColumnFamilyHandle handle = getHandle(keySpace);
+        int prefixLength = ((ColumnFamilyKeySpace) keySpace).prefixLength;
+        ReadOptions readOptions = new ReadOptions();
+        if(prefixLength > 0 && prefix.length >= prefixLength) {
+            readOptions.setPrefixSameAsStart(true);
+        } else {
+            readOptions.setTotalOrderSeek(true);
+        }
+        // Not tracked in iterators, since these are short lived and closed by the caller. Lookups run on the
+        // create records threads, so pending changes are read through the batch instead of being written.
+        return newBatchIterator(handle, readOptions, prefix);
+    }
+
+    @Override
+    public void merge(KeySpace keySpace, byte[] key, byte[] value) {
         Preconditions.checkNotNull(key);
         Preconditions.checkNotNull(value);
-        ByteArray byteArray = new ByteArray(keySpace);
-        Map<ByteArray, byte[]> dataBatch = Preconditions.checkNotNull(dataBatches.get(byteArray));
-        dataBatch.put(new ByteArray(key), value);
-        if(dataBatch.size() >= putBatchSize) {
-            putBatch(byteArray);
-        }
-    }
-
-    protected void putBatch(ByteArray keySpace) {
-        Map<ByteArray, byte[]> dataBatch = dataBatches.get(keySpace);
-        try (WriteBatch writeBatch = new WriteBatch()){
-            for(Map.Entry<ByteArray, byte[]> batchEntry: dataBatch.entrySet()) {
-                writeBatch.put(
-                        cfHandles.get(keySpace),
-                        batchEntry.getKey().getBytes(),
-                        batchEntry.getValue()
-                );
+        ColumnFamilyHandle handle = getHandle(keySpace);
+        try {
+            writeBatch.merge(handle, key, value);
+            batchBytes += key.length + value.length;
+            checkBatchSize();
+        } catch(RocksDBException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public List<byte[]> multiGet(KeySpace keySpace, List<byte[]> keys) {
+        ColumnFamilyHandle handle = getHandle(keySpace);
+        List<byte[]> values = new ArrayList<>(Collections.nCopies(keys.size(), (byte[]) null));
+        // The positions of the keys without pending changes, which are read from the DB
+        List<Integer> misses = new ArrayList<>(keys.size());
+        try {
+            if(writeBatch.count() == 0) {
+                for(int i = 0; i < keys.size(); i++) {
+                    misses.add(i);
+                }
+            } else {
+                try(WBWIRocksIterator batchIter = writeBatch.newIterator(handle)) {
+                    for(int i = 0; i < keys.size(); i++) {
+                        byte[] key = Preconditions.checkNotNull(keys.get(i));
+                        WBWIRocksIterator.WriteType type = readFromBatch(batchIter, key, values, i);
+                        if(type == null) {
+                            misses.add(i);
+                        } else if(type != WBWIRocksIterator.WriteType.PUT
+                                && type != WBWIRocksIterator.WriteType.DELETE
+                                && type != WBWIRocksIterator.WriteType.SINGLE_DELETE) {
+                            // Merges have to be resolved against the DB
+                            values.set(i, writeBatch.getFromBatchAndDB(rocksDB, handle, batchReadOptions, key));
+                        }
+                    }
+                }
             }
-            rocksDB.write(writeOptions, writeBatch);
-            dataBatch.clear();
+            for(int start = 0; start < misses.size(); start += MULTI_GET_BATCH_SIZE) {
+                List<Integer> missBatch = misses.subList(start, Math.min(start + MULTI_GET_BATCH_SIZE, misses.size()));
+                List<byte[]> keyBatch = new ArrayList<>(missBatch.size());
+                for(int i: missBatch) {
+                    keyBatch.add(Preconditions.checkNotNull(keys.get(i)));
+                }
+                // The returned map is keyed by the key instances passed in, with any keys not found left out
+                Map<byte[], byte[]> found = rocksDB.multiGet(Collections.nCopies(keyBatch.size(), handle), keyBatch);
+                for(int i: missBatch) {
+                    values.set(i, found.get(keys.get(i)));
+                }
+            }
+        } catch(RocksDBException ex) {
+            throw new RuntimeException(ex);
+        }
+        return values;
+    }
+
+    @Override
+    public void put(KeySpace keySpace, byte[] key, byte[] value) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+        ColumnFamilyHandle handle = getHandle(keySpace);
+        try {
+            writeBatch.put(handle, key, value);
+            batchBytes += key.length + value.length;
         } catch(RocksDBException ex) {
             throw new RuntimeException(ex);
         }
+        checkBatchSize();
+    }
+
+    /**
+     * Reads the latest pending change to a key from the write batch. Every change is kept in the batch, in order, so
+     * this is the last entry for the key.
+     * @param batchIter - An iterator over the key space in the write batch
+     * @param key - The key to read
+     * @param values - The list to set the value of a pending put in
+     * @param index - The index in the values to set the value at
+     * @return The type of the latest pending change, or null if the key has no pending changes
+     */
+    protected static WBWIRocksIterator.WriteType readFromBatch(
+            WBWIRocksIterator batchIter, byte[] key, List<byte[]> values, int index) {
+        ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        WBWIRocksIterator.WriteType type = null;
+        batchIter.seek(key);
+        while(batchIter.isValid()) {
+            WBWIRocksIterator.WriteEntry entry = batchIter.entry();
+            if(!keyBuffer.equals(entry.getKey().data())) break;
+            type = entry.getType();
+            if(type == WBWIRocksIterator.WriteType.PUT) {
+                values.set(index, toBytes(entry.getValue().data()));
+            } else {
+                values.set(index, null);
+            }
+            batchIter.next();
+        }
+        return type;
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer, such as the key or value of a write batch entry
+     * @param buffer - The buffer to copy
+     * @return The copied bytes
+     */
+    protected static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Creates an iterator over a key space that reads through the write batch
+     * @param handle - The column family handle of the key space
+     * @param readOptions - The read options of the iterator, closed with it
+     * @param prefix - Only iterate over keys starting with this prefix. May be null.
+     * @return The iterator
+     */
+    protected BatchIterator newBatchIterator(ColumnFamilyHandle handle, ReadOptions readOptions, byte[] prefix) {
+        synchronized(retiredBatches) {
+            // The snapshot and the batch are taken together, so the batch holds exactly the changes the snapshot misses
+            Snapshot snapshot = rocksDB.getSnapshot();
+            readOptions.setSnapshot(snapshot);
+            batchIterators++;
+            return new BatchIterator(handle, readOptions, prefix, writeBatch, snapshot);
+        }
+    }
+
+    /**
+     * Called when an iterator reading through the write batch is closed. Closes the retired batches once no
+     * iterators read through them.
+     */
+    protected void releaseBatch() {
+        synchronized(retiredBatches) {
+            batchIterators--;
+            if(batchIterators == 0) {
+                for(WriteBatchWithIndex batch: retiredBatches) {
+                    batch.close();
+                }
+                retiredBatches.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the pending changes if there are too many of them, or they are too large
+     */
+    protected void checkBatchSize() {
+        if(writeBatch.count() >= putBatchSize || batchBytes >= putBatchBytes) {
+            putBatch();
+        }
+    }
+
+    /**
+     * Writes the pending changes for all key spaces in a single atomic write
+     */
+    protected void putBatch() {
+        putBatch(writeOptions);
+    }
+
+    /**
+     * Writes the pending changes for all key spaces in a single atomic write
+     * @param options - The options of the write
+     */
+    protected void putBatch(WriteOptions options) {
+        batchBytes = 0;
+        synchronized(retiredBatches) {
+            try {
+                rocksDB.write(options, writeBatch);
+            } catch(RocksDBException ex) {
+                throw new RuntimeException(ex);
+            }
+            if(batchIterators == 0) {
+                writeBatch.clear();
+            } else {
+                // Open iterators still read through the batch, so replace it instead of clearing it
+                retiredBatches.add(writeBatch);
+                writeBatch = new WriteBatchWithIndex(false);
+            }
+        }
     }
 
     @Override
     public void restore() {
+        awaitBackup();
         logger.info("Restoring RocksDB state from backups");
         try(Timer.Context context = metrics.backupsRestored.time()) {
             try {
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.topic;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * Hands writes off to a single dedicated thread, so serializing and producing records overlaps with the work of
+ * the calling thread. Writes are bounded by a queue, blocking the caller when the writer thread falls behind.
+ * Since there is a single writer thread, writes are passed to their topics in the order they were queued.
+ */
+public class AsyncTopicWriter implements AutoCloseable {
+    /**
+     * Le Logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(AsyncTopicWriter.class);
+
+    /**
+     * A queued write, or a marker used to drain the queue if the latch is set
+     */
+    private static class PendingWrite {
+        final Object key;
+        final CountDownLatch latch;
+        final BaseTopic<Object, Object> topic;
+        final Object value;
+
+        @SuppressWarnings("unchecked")
+        PendingWrite(BaseTopic<?, ?> topic, Object key, Object value, CountDownLatch latch) {
+            this.key = key;
+            this.latch = latch;
+            this.topic = (BaseTopic<Object, Object>) topic;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The queued writes
+     */
+    private final BlockingQueue<PendingWrite> queue;
+    /**
+     * The thread that passes the queued writes to their topics
+     */
+    private final Thread thread;
+    /**
+     * The first exception thrown by a write. Once set, any remaining writes are discarded.
+     */
+    private volatile Exception writeException;
+
+    /**
+     * Constructor
+     * @param queueSize - The maximum number of writes to queue before blocking the caller
+     * @param name - The name of the writer thread
+     */
+    public AsyncTopicWriter(int queueSize, String name) {
+        Preconditions.checkArgument(queueSize > 0);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Throws any exception thrown by a previous write
+     */
+    private void checkWriteExceptions() {
+        Exception ex = writeException;
+        if(ex != null) {
+            throw new RuntimeException("Failed to write record: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Stops the writer thread. Any writes still in the queue are discarded.
+     */
+    @Override
+    public void close() {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Blocks until all writes queued so far have been passed to their topics. Topics still need to be flushed
+     * afterwards.
+     */
+    public void drain() {
+        checkWriteExceptions();
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            queue.put(new PendingWrite(null, null, null, latch));
+            latch.await();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        checkWriteExceptions();
+    }
+
+    /**
+     * Main loop of the writer thread
+     */
+    private void run() {
+        try {
+            while(true) {
+                PendingWrite write = queue.take();
+                if(write.latch != null) {
+                    write.latch.countDown();
+                } else if(writeException == null) {
+                    try {
+                        write.topic.write(write.key, write.value);
+                    } catch(Exception ex) {
+                        logger.error(String.format("Failed to write record to %s", write.topic.getShortName()), ex);
+                        writeException = ex;
+                    }
+                }
+            }
+        } catch(InterruptedException ex) {
+            // closed
+        }
+    }
+
+    /**
+     * Queues a write to the given topic, blocking if the queue is full.
+     * @param topic - The topic to write to
+     * @param key - The key of the record
+     * @param value - The value of the record
+     * @param <K> - The type of the record key
+     * @param <V> - The type of the record value
+     */
+    public <K, V> void write(BaseTopic<K, V> topic, K key, V value) {
+        checkWriteExceptions();
+        try {
+            queue.put(new PendingWrite(topic, key, value, null));
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+}
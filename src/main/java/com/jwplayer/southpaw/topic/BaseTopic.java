@@ -15,7 +15,9 @@
  */
 package com.jwplayer.southpaw.topic;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.common.serialization.Serde;
@@ -23,6 +25,7 @@ import org.apache.kafka.common.serialization.Serde;
 import com.jwplayer.southpaw.filter.BaseFilter;
 import com.jwplayer.southpaw.metric.Metrics;
 import com.jwplayer.southpaw.state.BaseState;
+import com.jwplayer.southpaw.state.KeySpace;
 import com.jwplayer.southpaw.util.ByteArray;
 
 
@@ -63,11 +66,26 @@ public abstract class BaseTopic<K, V> {
      * Configuration object
      */
     protected TopicConfig<K, V> topicConfig;
+    /**
+     * The key space storing the records of this topic by PK
+     */
+    protected KeySpace dataKeySpace;
+    /**
+     * The key space storing the offsets of this topic
+     */
+    protected KeySpace offsetsKeySpace;
     /**
      * The full topic name (e.g. my.topic.user)
      */
     protected String topicName;
 
+    /**
+     * Releases any resources (threads, clients, etc.) held by this topic. The topic can't be used afterwards.
+     */
+    public void close() {
+        // noop
+    }
+
     /**
      * Commits the current offsets and data to the state. Use after reading messages using the readNext method,
      * but only after all processing of those messages is complete.
@@ -90,8 +108,8 @@ public abstract class BaseTopic<K, V> {
 
         // Initialize topic
         this.topicName = this.topicConfig.southpawConfig.getOrDefault(TOPIC_NAME_CONFIG, "").toString();
-        this.topicConfig.state.createKeySpace(this.getShortName() + "-" + DATA);
-        this.topicConfig.state.createKeySpace(this.getShortName() + "-" + OFFSETS);
+        this.dataKeySpace = this.topicConfig.state.createKeySpace(this.getShortName() + "-" + DATA);
+        this.offsetsKeySpace = this.topicConfig.state.createKeySpace(this.getShortName() + "-" + OFFSETS);
     }
 
     /**
@@ -174,6 +192,20 @@ public abstract class BaseTopic<K, V> {
      */
     public abstract V readByPK(ByteArray primaryKey);
 
+    /**
+     * Reads multiple record values from the state based on their primary keys. Topics that can read several records
+     * at once should override this, the default implementation simply calls readByPK() for each key.
+     * @param primaryKeys - The primary keys of the records to read
+     * @return The record values, in the same order as the primary keys. Values not found (or for null PKs) are null.
+     */
+    public List<V> readByPKs(List<ByteArray> primaryKeys) {
+        List<V> values = new ArrayList<>(primaryKeys.size());
+        for(ByteArray primaryKey: primaryKeys) {
+            values.add(readByPK(primaryKey));
+        }
+        return values;
+    }
+
     /**
      * Reads records in topic based on the current offset.
      * @return The list of records read.
@@ -15,11 +15,17 @@
  */
 package com.jwplayer.southpaw.topic;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.time.StopWatch;
@@ -32,15 +38,18 @@ import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
 import org.apache.kafka.common.serialization.Serdes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import com.jwplayer.southpaw.filter.BaseFilter.FilterMode;
+import com.jwplayer.southpaw.metric.StaticGauge;
+import com.jwplayer.southpaw.partitioner.BasePartitioner;
 import com.jwplayer.southpaw.record.BaseRecord;
 import com.jwplayer.southpaw.util.ByteArray;
 
@@ -52,18 +61,59 @@ import com.jwplayer.southpaw.util.ByteArray;
  */
 public class KafkaTopic<K, V> extends BaseTopic<K, V> {
     public static final long END_OFFSET_REFRESH_MS_DEFAULT = 60000;
+    /**
+     * The class used to choose the partition each written record goes to. Not named partitioner.class, since this
+     * config is also given to the Kafka producer, which would try to use it as its own partitioner.
+     */
+    public static final String PARTITIONER_CLASS_CONFIG = "record.partitioner.class";
+    public static final String PARTITIONER_CLASS_DEFAULT = "com.jwplayer.southpaw.partitioner.BasePartitioner";
+    /**
+     * The partitions of the topic to consume. Defaults to all partitions. Lets the partitions of co-partitioned
+     * input topics be split between several Southpaw instances, each with its own state.
+     */
+    public static final String PARTITIONS_CONFIG = "partitions";
     public static final String PERSISTENT = "persistent";
     public static final boolean PERSISTENT_DEFAULT = true;
+    /**
+     * The number of polled batches to buffer ahead of the caller. If greater than 0, polling and deserialization
+     * happen on a dedicated fetch thread instead of the thread calling readNext().
+     */
+    public static final String PREFETCH_BATCHES = "prefetch.batches";
+    public static final int PREFETCH_BATCHES_DEFAULT = 0;
+    /**
+     * The timeout for each poll call made by the fetch thread
+     */
+    public static final long PREFETCH_POLL_TIMEOUT_MS = 100;
     /**
      * Le Logger
      */
     private static final Logger logger = LoggerFactory.getLogger(KafkaTopic.class);
 
+    /**
+     * A batch of raw records polled from Kafka. If the batch was polled by the fetch thread, the keys and values
+     * are already deserialized, otherwise they are null.
+     */
+    private static class FetchedBatch {
+        final long generation;
+        final Object[] keys;
+        final ConsumerRecords<byte[], byte[]> records;
+        final Object[] values;
+
+        FetchedBatch(ConsumerRecords<byte[], byte[]> records, Object[] keys, Object[] values, long generation) {
+            this.generation = generation;
+            this.keys = keys;
+            this.records = records;
+            this.values = values;
+        }
+    }
+
     /**
      * This allows us to capture the record and update our state when next() is called.
      */
     private static class KafkaTopicIterator<K, V> implements ConsumerRecordIterator<K, V> {
 
+        protected FetchedBatch batch;
+        protected int index = 0;
         protected Iterator<ConsumerRecord<byte[], byte[]>> iter;
         protected KafkaTopic<K, V> topic;
 
@@ -81,18 +131,20 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
         private ConsumerRecord<byte[], byte[]> nextRecord;
         private FilterMode nextRecordFilterMode;
         private ByteArray nextRecordPrimaryKey;
+        private K nextKey;
         private V nextValue;
         private int approximateCount;
 
         /**
          * Constructor
-         * @param iter - The iterator to wrap
+         * @param batch - The batch of records to wrap
          * @param topic - The topic whose offsets we'll update
          */
-        private KafkaTopicIterator(ConsumerRecords<byte[], byte[]> consumerRecords, KafkaTopic<K, V> topic) {
-            this.iter = consumerRecords.iterator();
+        private KafkaTopicIterator(FetchedBatch batch, KafkaTopic<K, V> topic) {
+            this.batch = batch;
+            this.iter = batch.records.iterator();
             this.topic = topic;
-            this.approximateCount = consumerRecords.count();
+            this.approximateCount = batch.records.count();
         }
 
         @Override
@@ -115,6 +167,7 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
          *
          * @return ConsumerRecord - The next non-skipped record
          */
+        @SuppressWarnings("unchecked")
         private ConsumerRecord<byte[], byte[]> getAndStageNextRecord() {
 
             // If there exists a pre-staged record, our work is done
@@ -125,16 +178,22 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
             ConsumerRecord<byte[], byte[]> record = null;
             FilterMode filterMode = FilterMode.SKIP;
             ByteArray primaryKey = null;
-            K key;
+            K key = null;
             V value = null;
 
             // Obtain a record and stage it
             while(iter.hasNext() && filterMode == FilterMode.SKIP) {
                 record = iter.next();
-                topic.setCurrentOffset(record.offset());
+                topic.setCurrentOffset(record.partition(), record.offset());
 
-                key = topic.getKeySerde().deserializer().deserialize(record.topic(), record.key());
-                value = topic.getValueSerde().deserializer().deserialize(record.topic(), record.value());
+                if(batch.keys != null) {
+                    key = (K) batch.keys[index];
+                    value = (V) batch.values[index];
+                } else {
+                    key = topic.getKeySerde().deserializer().deserialize(record.topic(), record.key());
+                    value = topic.getValueSerde().deserializer().deserialize(record.topic(), record.value());
+                }
+                index++;
 
                 if (key instanceof BaseRecord) {
                     primaryKey = ((BaseRecord) key).toByteArray();
@@ -176,6 +235,7 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
                 this.nextRecord = record;
                 this.nextRecordFilterMode = filterMode;
                 this.nextRecordPrimaryKey = primaryKey;
+                this.nextKey = key;
                 this.nextValue = value;
             }
 
@@ -191,6 +251,7 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
             this.nextRecord = null;
             this.nextRecordFilterMode = null;
             this.nextRecordPrimaryKey = null;
+            this.nextKey = null;
             this.nextValue = null;
         }
 
@@ -211,7 +272,7 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
                 throw new NoSuchElementException();
             }
 
-            K key = topic.getKeySerde().deserializer().deserialize(record.topic(), record.key());
+            K key = nextKey;
             V value = nextValue;
             // update state
             switch (this.nextRecordFilterMode) {
@@ -220,7 +281,7 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
                     throw new IllegalStateException("Staged record has unexpected filter mode of SKIP");
                 case DELETE:
                     if (topic.persistent) {
-                        topic.getState().delete(topic.getShortName() + "-" + DATA, this.nextRecordPrimaryKey.getBytes());
+                        topic.getState().delete(topic.dataKeySpace, this.nextRecordPrimaryKey.getBytes());
                     }
                     value = null;
                     break;
@@ -228,7 +289,7 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
                 default:
                     //TODO: for debezium this could be the serialization of the value, not the whole envelope if we don't need txn processing
                     if (topic.persistent) {
-                        topic.getState().put(topic.getShortName() + "-" + DATA, this.nextRecordPrimaryKey.getBytes(), record.value());
+                        topic.getState().put(topic.dataKeySpace, this.nextRecordPrimaryKey.getBytes(), record.value());
                     }
                     break;
             }
@@ -236,7 +297,7 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
             // mark the record as consumed from the staging area and return
             //The current offset is one ahead of the last read one.
             //This copies what Kafka would return as the current offset.
-            topic.setCurrentOffset(record.offset() + 1L);
+            topic.setCurrentOffset(record.partition(), record.offset() + 1L);
             this.resetStagedRecord();
             return new ConsumerRecord<>(
                 record.topic(),
@@ -260,6 +321,11 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
      * records exception. Async exceptions should be checked for by calling {@link #checkCallbackExceptions()}
      */
     private class KafkaProducerCallback implements Callback {
+        private final int partition;
+
+        private KafkaProducerCallback(int partition) {
+            this.partition = partition;
+        }
 
         @Override
         public void onCompletion(RecordMetadata recordMetadata, Exception e) {
@@ -267,6 +333,8 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
                 callbackException = e;
             }
             inflightRecords.decrementAndGet();
+            long count = inflightRecordsByPartition[partition].decrementAndGet();
+            if(inflightGauges != null) inflightGauges[partition].update(count);
         }
     }
 
@@ -274,52 +342,113 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
      * An exception returned back from an async Kafka producer callback
      */
     private volatile Exception callbackException;
+    /**
+     * Set when the topic is closed, so the fetch thread knows to stop
+     */
+    private volatile boolean closed = false;
     /**
      * The Kafka consumer this abstraction wraps around
      */
     private KafkaConsumer<byte[], byte[]> consumer;
     /**
-     * The last read offset using the read next method.
+     * Guards the consumer, which is shared with the fetch thread when prefetching. Fair, so the fetch thread
+     * can't starve other callers.
+     */
+    private final ReentrantLock consumerLock = new ReentrantLock(true);
+    /**
+     * The last read offset of each partition using the read next method. Partitions not read from yet are missing.
      */
-    private Long currentOffset;
+    private final Map<Integer, Long> currentOffsets = new HashMap<>();
     /**
-     * The end offset for this topic. Cached for performance reasons
+     * The end offset of each partition. Cached for performance reasons
      */
-    private Long endOffset;
+    private Map<TopicPartition, Long> endOffsets;
     /**
      * Stop watch used to determine when to refresh the end offset
      */
     private StopWatch endOffsetWatch;
+    /**
+     * Gauges of the in flight async writes to each partition. Null if there are no metrics.
+     */
+    private StaticGauge<Long>[] inflightGauges;
     /**
      * A count of all currently in flight async writes to Kafka
      */
     private AtomicLong inflightRecords = new AtomicLong();
+    /**
+     * A count of the currently in flight async writes to each partition
+     */
+    private AtomicLong[] inflightRecordsByPartition;
+    /**
+     * Incremented each time the consumer seeks, so batches fetched before the seek can be discarded
+     */
+    private volatile long generation = 0;
     /**
      * The timeout for each poll call to Kafka
      */
     private long pollTimeout = 0;
     /**
-     * Producer for writing data back to the topic
+     * An exception thrown by the fetch thread
+     */
+    private volatile Exception prefetchException;
+    /**
+     * Batches polled and deserialized by the fetch thread. Null if not prefetching.
+     */
+    private BlockingQueue<FetchedBatch> prefetchQueue;
+    /**
+     * The thread that polls Kafka when prefetching
+     */
+    private Thread prefetchThread;
+    /**
+     * Chooses the partition each written record goes to
      */
-    private KafkaProducer<K, V> producer = null;
+    private BasePartitioner partitioner;
     /**
-     * The callback for Kafka producer writes
+     * Producer for writing data back to the topic. Keys are serialized before they are sent, so the partitioner
+     * can use the serialized key.
      */
-    private final Callback producerCallback = new KafkaProducerCallback();
+    private KafkaProducer<byte[], V> producer = null;
+    /**
+     * The callbacks for Kafka producer writes, by partition
+     */
+    private Callback[] producerCallbacks;
     private boolean persistent;
-    private TopicPartition topicPartition;
+    /**
+     * The consumed partitions of this topic
+     */
+    private List<TopicPartition> topicPartitions;
+
+    @Override
+    public void close() {
+        closed = true;
+        if(prefetchThread != null) {
+            consumer.wakeup();
+            prefetchThread.interrupt();
+            try {
+                prefetchThread.join();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(consumer != null) {
+            consumer.close();
+        }
+        if(producer != null) {
+            producer.close();
+        }
+    }
 
     @Override
     public void commit() {
         commitData();
-        if(currentOffset != null) {
-            this.getState().put(this.getShortName() + "-" + OFFSETS, Ints.toByteArray(0), Longs.toByteArray(currentOffset));
+        for(Map.Entry<Integer, Long> entry: currentOffsets.entrySet()) {
+            this.getState().put(offsetsKeySpace, Ints.toByteArray(entry.getKey()), Longs.toByteArray(entry.getValue()));
         }
-        this.getState().flush(this.getShortName() + "-" + OFFSETS);
+        this.getState().flush(offsetsKeySpace);
     }
 
     protected void commitData() {
-        this.getState().flush(this.getShortName() + "-" + DATA);
+        this.getState().flush(dataKeySpace);
     }
 
     @Override
@@ -336,20 +465,24 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
             logger.warn("Since Southpaw handles its own offsets, the auto offset reset config is ignored. If there are no existing offsets, we will always start at the beginning.");
         }
         consumer = new KafkaConsumer<>(spConfig, Serdes.ByteArray().deserializer(), Serdes.ByteArray().deserializer());
-        if(consumer.partitionsFor(topicName).size() > 1) {
-            throw new RuntimeException(String.format("Topic '%s' has more than one partition. Southpaw currently only supports topics with a single partition.", topicName));
+        topicPartitions = new ArrayList<>();
+        for(int partition: getPartitions(spConfig)) {
+            topicPartitions.add(new TopicPartition(topicName, partition));
         }
-        topicPartition = new TopicPartition(topicName, 0);
         // Subscribe is lazy and requires a poll() call, which we don't want to require, so we do this instead
-        consumer.assign(Collections.singleton(topicPartition));
-        byte[] bytes = this.getState().get(this.getShortName() + "-" + OFFSETS, Ints.toByteArray(0));
-        if(bytes == null) {
-            consumer.seekToBeginning(Collections.singleton(topicPartition));
-            logger.info(String.format("No offsets found for topic %s, seeking to beginning.", this.getShortName()));
-        } else {
-            currentOffset = Longs.fromByteArray(bytes);
-            consumer.seek(topicPartition, currentOffset);
-            logger.info(String.format("Topic %s starting with offset %s.", this.getShortName(), currentOffset));
+        consumer.assign(topicPartitions);
+        // Offsets are stored by partition, so offsets stored before multiple partitions were supported still work
+        for(TopicPartition topicPartition: topicPartitions) {
+            byte[] bytes = this.getState().get(offsetsKeySpace, Ints.toByteArray(topicPartition.partition()));
+            if(bytes == null) {
+                consumer.seekToBeginning(Collections.singleton(topicPartition));
+                logger.info(String.format("No offsets found for topic %s partition %s, seeking to beginning.", this.getShortName(), topicPartition.partition()));
+            } else {
+                long offset = Longs.fromByteArray(bytes);
+                currentOffsets.put(topicPartition.partition(), offset);
+                consumer.seek(topicPartition, offset);
+                logger.info(String.format("Topic %s partition %s starting with offset %s.", this.getShortName(), topicPartition.partition(), offset));
+            }
         }
         endOffsetWatch = new StopWatch();
         endOffsetWatch.start();
@@ -362,6 +495,22 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
         }
 
         this.persistent = (Boolean)spConfig.getOrDefault(PERSISTENT, PERSISTENT_DEFAULT);
+
+        try {
+            Class<?> partitionerClass = Class.forName(spConfig.getOrDefault(PARTITIONER_CLASS_CONFIG, PARTITIONER_CLASS_DEFAULT).toString());
+            partitioner = (BasePartitioner) partitionerClass.getDeclaredConstructor().newInstance();
+        } catch(ReflectiveOperationException ex) {
+            throw new RuntimeException(ex);
+        }
+        partitioner.configure(spConfig);
+
+        int prefetchBatches = (int) spConfig.getOrDefault(PREFETCH_BATCHES, PREFETCH_BATCHES_DEFAULT);
+        if(prefetchBatches > 0) {
+            prefetchQueue = new ArrayBlockingQueue<>(prefetchBatches);
+            prefetchThread = new Thread(this::prefetch, "southpaw-fetch-" + this.getShortName());
+            prefetchThread.setDaemon(true);
+            prefetchThread.start();
+        }
     }
 
     @Override
@@ -378,23 +527,80 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
         checkCallbackExceptions();
     }
 
+    /**
+     * Gets the current offset. For a topic with multiple consumed partitions, this is the sum of the current offsets
+     * of all partitions, which always increases as records are read.
+     * @return The current offset, or null if no partition has been read from yet
+     */
     @Override
     public Long getCurrentOffset() {
-        return currentOffset;
+        if(currentOffsets.isEmpty()) return null;
+        long offset = 0;
+        for(Long partitionOffset: currentOffsets.values()) {
+            offset += partitionOffset;
+        }
+        return offset;
+    }
+
+    /**
+     * Accessor for the current offset of each consumed partition
+     * @return The current offsets by partition. Partitions that haven't been read from yet are missing.
+     */
+    public Map<Integer, Long> getCurrentOffsets() {
+        return Collections.unmodifiableMap(currentOffsets);
     }
 
     @Override
     public long getLag() {
-        // Periodically cache the end offset
-        if(endOffset == null || endOffsetWatch.getTime() > END_OFFSET_REFRESH_MS_DEFAULT) {
-            Map<TopicPartition, Long> offsets = consumer.endOffsets(Collections.singletonList(topicPartition));
-            endOffset = offsets.get(topicPartition);
+        // Periodically cache the end offsets
+        if(endOffsets == null || endOffsetWatch.getTime() > END_OFFSET_REFRESH_MS_DEFAULT) {
+            consumerLock.lock();
+            try {
+                endOffsets = consumer.endOffsets(topicPartitions);
+            } finally {
+                consumerLock.unlock();
+            }
             endOffsetWatch.reset();
             endOffsetWatch.start();
         }
-        // Because the end offset is only updated periodically, it's possible to see negative lag. Send 0 instead.
-        long lag = endOffset - (getCurrentOffset() == null ? 0 : getCurrentOffset());
-        return lag < 0 ? 0 : lag;
+        long lag = 0;
+        for(TopicPartition topicPartition: topicPartitions) {
+            Long endOffset = endOffsets.get(topicPartition);
+            if(endOffset == null) continue;
+            // Because the end offsets are only updated periodically, it's possible to see negative lag. Use 0 instead.
+            long partitionLag = endOffset - currentOffsets.getOrDefault(topicPartition.partition(), 0L);
+            if(partitionLag > 0) lag += partitionLag;
+        }
+        return lag;
+    }
+
+    /**
+     * Gets the partitions to consume, either from the partitions config or all partitions of the topic
+     * @param spConfig - The Southpaw config for this topic
+     * @return The partitions to consume
+     */
+    @SuppressWarnings("unchecked")
+    protected List<Integer> getPartitions(Map<String, Object> spConfig) {
+        List<Integer> partitions = new ArrayList<>();
+        Object configured = spConfig.get(PARTITIONS_CONFIG);
+        if(configured instanceof List) {
+            for(Object partition: (List<Object>) configured) {
+                partitions.add(((Number) partition).intValue());
+            }
+        } else if(configured != null) {
+            for(String partition: configured.toString().split(",")) {
+                partitions.add(Integer.parseInt(partition.trim()));
+            }
+        } else {
+            for(PartitionInfo info: consumer.partitionsFor(topicName)) {
+                partitions.add(info.partition());
+            }
+            Collections.sort(partitions);
+        }
+        if(partitions.isEmpty()) {
+            throw new RuntimeException(String.format("No partitions to consume for topic '%s'.", topicName));
+        }
+        return partitions;
     }
 
     @Override
@@ -403,42 +609,146 @@ public class KafkaTopic<K, V> extends BaseTopic<K, V> {
         if(primaryKey == null) {
             return null;
         } else {
-            bytes = this.getState().get(this.getShortName() + "-" + DATA, primaryKey.getBytes());
+            bytes = this.getState().get(dataKeySpace, primaryKey.getBytes());
         }
         return this.getValueSerde().deserializer().deserialize(topicName, bytes);
     }
 
+    @Override
+    public List<V> readByPKs(List<ByteArray> primaryKeys) {
+        List<byte[]> keys = new ArrayList<>(primaryKeys.size());
+        for(ByteArray primaryKey: primaryKeys) {
+            if(primaryKey != null) keys.add(primaryKey.getBytes());
+        }
+        List<byte[]> bytes = this.getState().multiGet(dataKeySpace, keys);
+        List<V> values = new ArrayList<>(primaryKeys.size());
+        int index = 0;
+        for(ByteArray primaryKey: primaryKeys) {
+            if(primaryKey == null) {
+                values.add(null);
+            } else {
+                values.add(this.getValueSerde().deserializer().deserialize(topicName, bytes.get(index++)));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Polls Kafka and deserializes the records on the fetch thread until the topic is closed. Blocks while the
+     * prefetch queue is full, so the fetch thread never gets more than the configured number of batches ahead.
+     */
+    private void prefetch() {
+        try {
+            while(!closed) {
+                ConsumerRecords<byte[], byte[]> records;
+                long fetchGeneration;
+                consumerLock.lock();
+                try {
+                    fetchGeneration = generation;
+                    records = consumer.poll(PREFETCH_POLL_TIMEOUT_MS);
+                } finally {
+                    consumerLock.unlock();
+                }
+                if(records.isEmpty()) continue;
+                Object[] keys = new Object[records.count()];
+                Object[] values = new Object[records.count()];
+                int i = 0;
+                for(ConsumerRecord<byte[], byte[]> record: records) {
+                    keys[i] = this.getKeySerde().deserializer().deserialize(record.topic(), record.key());
+                    values[i] = this.getValueSerde().deserializer().deserialize(record.topic(), record.value());
+                    i++;
+                }
+                prefetchQueue.put(new FetchedBatch(records, keys, values, fetchGeneration));
+            }
+        } catch(InterruptedException | WakeupException ex) {
+            // The topic is being closed
+        } catch(Exception ex) {
+            if(!closed) {
+                logger.error(String.format("Fetch thread for topic %s failed", this.getShortName()), ex);
+                prefetchException = ex;
+            }
+        }
+    }
+
     @Override
     public ConsumerRecordIterator<K, V> readNext() {
-        return new KafkaTopicIterator<>(consumer.poll(pollTimeout), this);
+        if(prefetchQueue == null) {
+            return new KafkaTopicIterator<>(new FetchedBatch(consumer.poll(pollTimeout), null, null, generation), this);
+        }
+        Exception ex = prefetchException;
+        if(ex != null) {
+            throw new RuntimeException("Failed to read from " + this.getShortName() + " topic: " + ex.getMessage(), ex);
+        }
+        // Discard any batches fetched before the last seek
+        FetchedBatch batch = prefetchQueue.poll();
+        while(batch != null && batch.generation != generation) {
+            batch = prefetchQueue.poll();
+        }
+        if(batch == null) {
+            batch = new FetchedBatch(ConsumerRecords.empty(), null, null, generation);
+        }
+        return new KafkaTopicIterator<>(batch, this);
     }
 
     @Override
     public void resetCurrentOffset() {
         logger.info(String.format("Resetting offsets for topic %s, seeking to beginning.", this.getShortName()));
-        this.getState().delete(this.getShortName() + "-" + OFFSETS, Ints.toByteArray(0));
-        consumer.seekToBeginning(ImmutableList.of(topicPartition));
-        currentOffset = null;
+        for(TopicPartition topicPartition: topicPartitions) {
+            this.getState().delete(offsetsKeySpace, Ints.toByteArray(topicPartition.partition()));
+        }
+        consumerLock.lock();
+        try {
+            generation++;
+            consumer.seekToBeginning(topicPartitions);
+        } finally {
+            consumerLock.unlock();
+        }
+        if(prefetchQueue != null) {
+            prefetchQueue.clear();
+        }
+        currentOffsets.clear();
     }
 
     /**
-     * Method so the iterator returned by readNext() can set the current offset of this topic.
-     * @param offset - The new current offset
+     * Method so the iterator returned by readNext() can set the current offset of a partition of this topic.
+     * @param partition - The partition of the record read
+     * @param offset - The new current offset of the partition
      */
-    private void setCurrentOffset(long offset) {
-        currentOffset = offset;
+    private void setCurrentOffset(int partition, long offset) {
+        currentOffsets.put(partition, offset);
     }
 
     @Override
     public void write(K key, V value) {
         checkCallbackExceptions();
 
-        if(producer == null) producer = new KafkaProducer<>(topicConfig.southpawConfig,
-                this.getKeySerde().serializer(), this.getValueSerde().serializer());
+        if(producer == null) createProducer();
 
+        byte[] keyBytes = this.getKeySerde().serializer().serialize(topicName, key);
+        int partition = partitioner.partition(topicName, keyBytes, producerCallbacks.length);
         inflightRecords.incrementAndGet();
+        long count = inflightRecordsByPartition[partition].incrementAndGet();
+        if(inflightGauges != null) inflightGauges[partition].update(count);
+
+        producer.send(new ProducerRecord<>(topicName, partition, keyBytes, value), producerCallbacks[partition]);
+    }
 
-        producer.send(new ProducerRecord<>(topicName, 0, key, value), producerCallback);
+    /**
+     * Creates the producer, along with the callbacks and in flight counts for each partition of the topic
+     */
+    @SuppressWarnings("unchecked")
+    private void createProducer() {
+        producer = new KafkaProducer<>(topicConfig.southpawConfig,
+                Serdes.ByteArray().serializer(), this.getValueSerde().serializer());
+        int numPartitions = Math.max(producer.partitionsFor(topicName).size(), 1);
+        producerCallbacks = new Callback[numPartitions];
+        inflightRecordsByPartition = new AtomicLong[numPartitions];
+        if(this.getMetrics() != null) inflightGauges = new StaticGauge[numPartitions];
+        for(int i = 0; i < numPartitions; i++) {
+            producerCallbacks[i] = new KafkaProducerCallback(i);
+            inflightRecordsByPartition[i] = new AtomicLong();
+            if(inflightGauges != null) inflightGauges[i] = this.getMetrics().registerInflightPartition(this.getShortName(), i);
+        }
     }
 
     private void checkCallbackExceptions() throws RuntimeException {
@@ -18,24 +18,31 @@ package com.jwplayer.southpaw.util;
 import org.apache.commons.lang.NotImplementedException;
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
+import org.apache.kafka.common.utils.Bytes;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.util.*;
 
 
 /**
  * A set class that optimizes (de)serialization while maintaining good (O(log n)) put/remove/contains performance,
- * especially for large index entries (e.g. user_id -> media_id)
+ * especially for large index entries (e.g. user_id -> media_id). Deserialized sets are read directly from their
+ * serialized bytes until they are first modified, since most are only iterated or checked once. Sets are serialized
+ * with sizes as varints and front coded entries (each entry only stores what differs from the previous one), which
+ * keeps index entries with long, similar keys (e.g. composite keys) small.
  */
 public class ByteArraySet implements Set<ByteArray> {
     /**
-     * Enum for the different byte array formats
+     * Enum for the different byte array formats. SINGLE_CHUNK and MULTI_CHUNK are no longer written, but are still
+     * read, so sets serialized by older versions can be deserialized.
      */
     public enum FORMAT {
         EMPTY((byte) 0),
         SINGLE_VALUE((byte) 1),
         SINGLE_CHUNK((byte) 2),
-        MULTI_CHUNK((byte) 3);
+        MULTI_CHUNK((byte) 3),
+        FRONT_CODED((byte) 4);
 
         private byte value;
 
@@ -59,20 +66,37 @@ public class ByteArraySet implements Set<ByteArray> {
      * Static empty chunk for easy reference
      */
     public static final byte[] EMPTY_SET_BYTES = { FORMAT.EMPTY.getValue() };
+    /**
+     * The size in bytes a block of the FRONT_CODED format is closed at, even if it has fewer than
+     * FRONT_CODED_BLOCK_SIZE entries. Blocks of long or poorly compressed entries hold fewer entries, so a lookup
+     * decodes about the same number of bytes no matter what the entries are.
+     */
+    public static final int FRONT_CODED_BLOCK_BYTES = 256;
+    /**
+     * The max number of entries in each block of the FRONT_CODED format. The first entry of a block is stored in
+     * full, so a lookup only needs to decode a single block.
+     */
+    public static final int FRONT_CODED_BLOCK_SIZE = 16;
     /**
      * Force a max size on the fronting set to prevent uncontrolled growth and OOM errors
      */
     public static final int MAX_FRONTING_SET_SIZE = 1000;
+    /**
+     * Orders entries the same way as ByteArray.compareTo()
+     */
+    protected static final Bytes.ByteArrayComparator COMPARATOR = Bytes.BYTES_LEXICO_COMPARATOR;
 
     /**
      * A chunk contains a sorted set of ByteArrays within a single byte array. The set values are formatted such that
-     * the first byte is the size of an individual ByteArray value, then the ByteArray after that. The chunk also
+     * the size of an individual ByteArray value comes first as a varint, then the ByteArray after that. The chunk also
      * contains information around it's min and max values, as well as the number of entries and the overall size
-     * of byte array chunk.
+     * of byte array chunk. Lookups binary search a table of the offsets of the entries, which is built the first time
+     * it is needed.
      */
     protected static class Chunk {
         /**
-         * The max size of the byte array in a chunk. Chunk byte arrays may be smaller than this length.
+         * The max size of the byte array in a chunk. Chunk byte arrays may be smaller than this length, or larger if
+         * they hold a single entry that doesn't fit otherwise.
          */
         public static final int MAX_CHUNK_SIZE = 4096;
         /**
@@ -96,6 +120,14 @@ public class ByteArraySet implements Set<ByteArray> {
          * byte array data was 4k, but it only contained 10 entries, the actual size might be 40.
          */
         public int size;
+        /**
+         * The offsets of the size bytes of the entries in the byte array, in order. Null until needed by a lookup.
+         */
+        protected int[] offsets;
+        /**
+         * The number of offsets in use. Removing entries shrinks this, instead of rebuilding the offsets.
+         */
+        protected int offsetCount;
 
         /**
          * Constructor
@@ -134,9 +166,49 @@ public class ByteArraySet implements Set<ByteArray> {
                 if(min == null) min = byteArray;
                 max = byteArray;
                 entries++;
-                bytes[size] = (byte) byteArray.size();
-                System.arraycopy(byteArray.getBytes(), 0, bytes, size + 1, byteArray.size());
-                size += 1 + byteArray.size();
+                int index = writeVarInt(bytes, size, byteArray.size());
+                System.arraycopy(byteArray.getBytes(), 0, bytes, index, byteArray.size());
+                size = index + byteArray.size();
+                offsets = null;
+            }
+        }
+
+        /**
+         * Adds a non-null, non-empty entry to the last of the given chunks, or to a new chunk if it doesn't fit. New
+         * chunks are made large enough for entries bigger than MAX_CHUNK_SIZE.
+         * @param chunks - The chunks to add a new chunk to, if needed
+         * @param chunk - The last chunk, or null if there are no chunks yet
+         * @param byteArray - The ByteArray to add
+         * @return The chunk the ByteArray was added to
+         */
+        public static Chunk append(List<Chunk> chunks, Chunk chunk, ByteArray byteArray) {
+            int entrySize = varIntSize(byteArray.size()) + byteArray.size();
+            if(chunk == null || chunk.size + entrySize > chunk.bytes.length) {
+                chunk = new Chunk(Math.max(MAX_CHUNK_SIZE, entrySize));
+                chunks.add(chunk);
+            }
+            chunk.add(byteArray);
+            return chunk;
+        }
+
+        /**
+         * Shrinks the byte array to the size of the data, for a chunk that won't be added to anymore
+         */
+        public void trim() {
+            if(bytes.length > size) bytes = Arrays.copyOf(bytes, size);
+        }
+
+        /**
+         * Builds the offsets of the entries by walking the byte array, skipping removed entries
+         */
+        protected void buildOffsets() {
+            offsets = new int[entries];
+            offsetCount = 0;
+            int index = 0;
+            while(index < size) {
+                int baSize = readVarInt(bytes, index);
+                if(baSize != 0) offsets[offsetCount++] = index;
+                index += varIntSize(baSize) + baSize;
             }
         }
 
@@ -149,21 +221,7 @@ public class ByteArraySet implements Set<ByteArray> {
             if(entries == 0) return false;
             if(byteArray == null || byteArray.size() == 0) return false;
             if(min.compareTo(byteArray) > 0 || max.compareTo(byteArray) < 0) return false;
-            int index = 0;
-            byte[] baBytes = byteArray.getBytes();
-            while(index < size) {
-                int baSize = (int) bytes[index];
-                int i;
-                index++;
-                if(baSize == baBytes.length) {
-                    for(i = 0; i < baSize; i++) {
-                        if(baBytes[i] != bytes[index + i]) break;
-                    }
-                    if(i == baSize) return true;
-                }
-                index += baSize;
-            }
-            return false;
+            return indexOf(byteArray.getBytes()) >= 0;
         }
 
         /**
@@ -184,9 +242,9 @@ public class ByteArraySet implements Set<ByteArray> {
             int index = 0;
             byte[] chunkBytes = Arrays.copyOfRange(bytes, from, from + size);
             while(index < size) {
-                int baSize = (int) chunkBytes[index];
+                int baSize = readVarInt(chunkBytes, index);
                 if(baSize != 0) entries++;
-                index += 1 + baSize;
+                index += varIntSize(baSize) + baSize;
             }
             return new Chunk(chunkBytes, entries, max, min, size);
         }
@@ -205,8 +263,8 @@ public class ByteArraySet implements Set<ByteArray> {
             ByteArray min = null;
             ByteArray max = null;
             while(index < chunkBytes.length) {
-                int baSize = (int) chunkBytes[index];
-                index++;
+                int baSize = readVarInt(chunkBytes, index);
+                index += varIntSize(baSize);
                 if(baSize != 0) {
                     entries++;
                     if(min == null) min = new ByteArray(Arrays.copyOfRange(chunkBytes, index, index + baSize));
@@ -217,6 +275,42 @@ public class ByteArraySet implements Set<ByteArray> {
             return new Chunk(chunkBytes, entries, max, min, to - from);
         }
 
+        /**
+         * Gets the entry at the given position in the offsets
+         * @param position - The position of the entry
+         * @return The entry
+         */
+        protected ByteArray getEntry(int position) {
+            int baSize = readVarInt(bytes, offsets[position]);
+            int start = offsets[position] + varIntSize(baSize);
+            return new ByteArray(Arrays.copyOfRange(bytes, start, start + baSize));
+        }
+
+        /**
+         * Binary searches the entries of this chunk for the given bytes
+         * @param baBytes - The bytes to search for
+         * @return The position of the entry in the offsets, or -1 if this chunk doesn't contain the bytes
+         */
+        protected int indexOf(byte[] baBytes) {
+            if(offsets == null) buildOffsets();
+            int low = 0;
+            int high = offsetCount - 1;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                int baSize = readVarInt(bytes, offsets[mid]);
+                int start = offsets[mid] + varIntSize(baSize);
+                int cmp = COMPARATOR.compare(bytes, start, baSize, baBytes, 0, baBytes.length);
+                if(cmp < 0) {
+                    low = mid + 1;
+                } else if(cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
         /**
          * Removes the given ByteArray from this chunk by filling in its section of the chunk with 0s
          * @param byteArray - The ByteArray to remove
@@ -225,70 +319,315 @@ public class ByteArraySet implements Set<ByteArray> {
         public boolean remove(ByteArray byteArray) {
             if(entries == 0 || byteArray == null || byteArray.size() == 0) return false;
             if(min.compareTo(byteArray) > 0 || max.compareTo(byteArray) < 0) return false;
-            int index = 0;
-            byte[] baBytes = byteArray.getBytes();
-            while(index < size) {
-                int baSize = (int) bytes[index];
-                int i;
-                index++;
-                if(baSize == baBytes.length) {
-                    for(i = 0; i < baSize; i++) {
-                        if(baBytes[i] != bytes[index + i]) break;
+            int position = indexOf(byteArray.getBytes());
+            if(position < 0) return false;
+            int offset = offsets[position];
+            Arrays.fill(bytes, offset, offset + varIntSize(byteArray.size()) + byteArray.size(), (byte) 0);
+            System.arraycopy(offsets, position + 1, offsets, position, offsetCount - position - 1);
+            offsetCount--;
+            entries--;
+            if(entries > 0) {
+                if(position == 0) min = getEntry(0);
+                if(position == offsetCount) max = getEntry(offsetCount - 1);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A read-only view over the serialized bytes of a set, so deserialized sets can be iterated and checked without
+     * copying their chunks. The chunks of the MULTI_CHUNK format are located by walking their trailing sizes and the
+     * blocks of the FRONT_CODED format by walking their leading sizes, but neither are decoded.
+     */
+    protected static class SerializedView {
+        /**
+         * The serialized set
+         */
+        protected final byte[] bytes;
+        /**
+         * The format of the serialized set
+         */
+        protected final FORMAT format;
+        /**
+         * The start of the entries of each chunk or block, in order
+         */
+        protected final int[] regionStarts;
+        /**
+         * The end (exclusive) of the entries of each chunk or block, in order
+         */
+        protected final int[] regionEnds;
+        /**
+         * The number of entries, or -1 if not counted yet
+         */
+        protected int size = -1;
+
+        /**
+         * Constructor
+         * @param bytes - The serialized set. Must not be empty or of the EMPTY format.
+         */
+        protected SerializedView(byte[] bytes) {
+            this.bytes = bytes;
+            this.format = FORMAT.valueOf(bytes[0]);
+            int index;
+            switch(format) {
+                case FRONT_CODED:
+                    size = readVarInt(bytes, 1);
+                    index = 1 + varIntSize(size);
+                    int blocks = readVarInt(bytes, index);
+                    index += varIntSize(blocks);
+                    regionStarts = new int[blocks];
+                    regionEnds = new int[blocks];
+                    for(int i = 0; i < blocks; i++) {
+                        int blockSize = readVarInt(bytes, index);
+                        index += varIntSize(blockSize);
+                        regionStarts[i] = index;
+                        regionEnds[i] = index + blockSize;
+                        index += blockSize;
+                    }
+                    break;
+                case MULTI_CHUNK:
+                    List<int[]> regions = new ArrayList<>();
+                    index = bytes.length - 1;
+                    while(index > 0) {
+                        int chunkSize = Ints.fromBytes(bytes[index - 3], bytes[index - 2], bytes[index - 1], bytes[index]);
+                        int minStart = getMinStart(index);
+                        regions.add(new int[] {index - chunkSize + 1, minStart});
+                        index -= chunkSize;
                     }
-                    if(i == baSize) {
-                        bytes[index - 1] = 0;
-                        for(i = 0; i < baSize; i++) {
-                            bytes[index + i] = 0;
+                    Collections.reverse(regions);
+                    regionStarts = new int[regions.size()];
+                    regionEnds = new int[regions.size()];
+                    for(int i = 0; i < regions.size(); i++) {
+                        regionStarts[i] = regions.get(i)[0];
+                        regionEnds[i] = regions.get(i)[1];
+                    }
+                    break;
+                default:
+                    regionStarts = new int[] { 1 };
+                    regionEnds = new int[] { bytes.length };
+            }
+        }
+
+        /**
+         * Compares the first entry of a block of the FRONT_CODED format, which is stored in full, to the given bytes
+         * @param block - The block
+         * @param baBytes - The bytes to compare to
+         * @return The comparison of the first entry to the bytes
+         */
+        protected int compareFirstEntry(int block, byte[] baBytes) {
+            // The first entry of a block doesn't share a prefix, so its size follows a single 0 byte
+            int baSize = readVarInt(bytes, regionStarts[block] + 1);
+            int start = regionStarts[block] + 1 + varIntSize(baSize);
+            return COMPARATOR.compare(bytes, start, baSize, baBytes, 0, baBytes.length);
+        }
+
+        /**
+         * Determines if the serialized set contains the given bytes. Chunks of the MULTI_CHUNK format are skipped
+         * using their min and max, and blocks of the FRONT_CODED format are binary searched using their first entry.
+         * @param baBytes - The bytes to check membership for
+         * @return True if the serialized set contains the bytes, otherwise false
+         */
+        protected boolean contains(byte[] baBytes) {
+            switch(format) {
+                case FRONT_CODED:
+                    int low = 0;
+                    int high = regionStarts.length - 1;
+                    int block = -1;
+                    while(low <= high) {
+                        int mid = (low + high) >>> 1;
+                        int cmp = compareFirstEntry(mid, baBytes);
+                        if(cmp < 0) {
+                            block = mid;
+                            low = mid + 1;
+                        } else if(cmp > 0) {
+                            high = mid - 1;
+                        } else {
+                            return true;
+                        }
+                    }
+                    return block >= 0 && frontCodedRegionContains(regionStarts[block], regionEnds[block], baBytes);
+                case SINGLE_VALUE:
+                    return COMPARATOR.compare(bytes, 1, bytes.length - 1, baBytes, 0, baBytes.length) == 0;
+                case SINGLE_CHUNK:
+                    return regionContains(1, bytes.length, baBytes);
+                case MULTI_CHUNK:
+                    int index = bytes.length - 1;
+                    while(index > 0) {
+                        int chunkSize = Ints.fromBytes(bytes[index - 3], bytes[index - 2], bytes[index - 1], bytes[index]);
+                        int maxSize = (int) bytes[index - 4];
+                        int maxStart = index - 4 - maxSize;
+                        int minStart = getMinStart(index);
+                        if(COMPARATOR.compare(bytes, minStart, maxStart - 1 - minStart, baBytes, 0, baBytes.length) <= 0
+                                && COMPARATOR.compare(bytes, maxStart, maxSize, baBytes, 0, baBytes.length) >= 0) {
+                            return regionContains(index - chunkSize + 1, minStart, baBytes);
                         }
-                        entries--;
-                        if(entries > 0) {
-                            if(min.equals(byteArray)) {
-                                index = 0;
-                                while(index < size) {
-                                    baSize = (int) bytes[index];
-                                    index++;
-                                    if(baSize != 0) {
-                                        min = new ByteArray(Arrays.copyOfRange(bytes, index, index + baSize));
-                                        break;
-                                    }
-                                    index += baSize;
-                                }
-                            }
-                            if(max.equals(byteArray)) {
-                                index = 0;
-                                while(index < size) {
-                                    baSize = (int) bytes[index];
-                                    index++;
-                                    if(baSize != 0) {
-                                        max = new ByteArray(Arrays.copyOfRange(bytes, index, index + baSize));
-                                    }
-                                    index += baSize;
-                                }
-                            }
+                        index -= chunkSize;
+                    }
+                    return false;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Determines if the front coded entries between the given indices contain the given bytes. The entries are
+         * decoded into a single reused buffer, and the scan stops at the first larger entry.
+         * @param from - The start of the entries, which must be the start of a block
+         * @param to - The end (exclusive) of the entries
+         * @param baBytes - The bytes to check membership for
+         * @return True if the entries contain the bytes, otherwise false
+         */
+        protected boolean frontCodedRegionContains(int from, int to, byte[] baBytes) {
+            byte[] entry = new byte[baBytes.length];
+            int index = from;
+            while(index < to) {
+                int shared = readVarInt(bytes, index);
+                index += varIntSize(shared);
+                int suffixSize = readVarInt(bytes, index);
+                index += varIntSize(suffixSize);
+                int entrySize = shared + suffixSize;
+                if(entry.length < entrySize) entry = Arrays.copyOf(entry, entrySize);
+                System.arraycopy(bytes, index, entry, shared, suffixSize);
+                index += suffixSize;
+                int cmp = COMPARATOR.compare(entry, 0, entrySize, baBytes, 0, baBytes.length);
+                if(cmp == 0) return true;
+                if(cmp > 0) return false;
+            }
+            return false;
+        }
+
+        /**
+         * Gets the start of the min of the chunk ending at the given index, which is also the end of its entries
+         * @param to - The index of the last byte of the serialized chunk
+         * @return The start of the min of the chunk
+         */
+        protected int getMinStart(int to) {
+            int maxSize = (int) bytes[to - 4];
+            int minSize = (int) bytes[to - 5 - maxSize];
+            return to - 5 - maxSize - minSize;
+        }
+
+        /**
+         * Iterates the entries of the serialized set, skipping removed entries
+         * @return An iterator for the entries
+         */
+        protected Iterator<ByteArray> iterator() {
+            if(format == FORMAT.SINGLE_VALUE) {
+                return Collections.singletonList(new ByteArray(Arrays.copyOfRange(bytes, 1, bytes.length))).iterator();
+            }
+            if(format == FORMAT.FRONT_CODED) {
+                return new Iterator<ByteArray>() {
+                    int region = 0;
+                    int offset = regionStarts.length > 0 ? regionStarts[0] : 0;
+                    byte[] previous = null;
+
+                    @Override
+                    public boolean hasNext() {
+                        return region < regionStarts.length;
+                    }
+
+                    @Override
+                    public ByteArray next() {
+                        if(!hasNext()) throw new NoSuchElementException();
+                        int shared = readVarInt(bytes, offset);
+                        offset += varIntSize(shared);
+                        int suffixSize = readVarInt(bytes, offset);
+                        offset += varIntSize(suffixSize);
+                        byte[] entry = new byte[shared + suffixSize];
+                        if(shared > 0) System.arraycopy(previous, 0, entry, 0, shared);
+                        System.arraycopy(bytes, offset, entry, shared, suffixSize);
+                        offset += suffixSize;
+                        previous = entry;
+                        if(offset >= regionEnds[region]) {
+                            region++;
+                            if(region < regionStarts.length) offset = regionStarts[region];
                         }
-                        return true;
+                        return new ByteArray(entry);
+                    }
+                };
+            }
+            return new Iterator<ByteArray>() {
+                int region = 0;
+                int offset = regionStarts[0];
+
+                {
+                    skipRemoved();
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return region < regionStarts.length;
+                }
+
+                @Override
+                public ByteArray next() {
+                    if(!hasNext()) throw new NoSuchElementException();
+                    int baSize = readVarInt(bytes, offset);
+                    int start = offset + varIntSize(baSize);
+                    ByteArray retVal = new ByteArray(Arrays.copyOfRange(bytes, start, start + baSize));
+                    offset = start + baSize;
+                    skipRemoved();
+                    return retVal;
+                }
+
+                /**
+                 * Moves to the next entry that hasn't been removed, possibly in a later chunk
+                 */
+                private void skipRemoved() {
+                    while(region < regionStarts.length) {
+                        while(offset < regionEnds[region] && bytes[offset] == 0) offset++;
+                        if(offset < regionEnds[region]) return;
+                        region++;
+                        if(region < regionStarts.length) offset = regionStarts[region];
                     }
                 }
+            };
+        }
+
+        /**
+         * Determines if the entries between the given indices contain the given bytes. The entries are sorted, so
+         * the scan stops at the first larger entry.
+         * @param from - The start of the entries
+         * @param to - The end (exclusive) of the entries
+         * @param baBytes - The bytes to check membership for
+         * @return True if the entries contain the bytes, otherwise false
+         */
+        protected boolean regionContains(int from, int to, byte[] baBytes) {
+            int index = from;
+            while(index < to) {
+                int baSize = readVarInt(bytes, index);
+                index += varIntSize(baSize);
+                if(baSize != 0) {
+                    int cmp = COMPARATOR.compare(bytes, index, baSize, baBytes, 0, baBytes.length);
+                    if(cmp == 0) return true;
+                    if(cmp > 0) return false;
+                }
                 index += baSize;
             }
             return false;
         }
 
         /**
-         * Serializes this chunk into a byte array representation
-         * bytes / min size (1 byte) / min / max size (1 byte) / max / bytes size (4 bytes)
-         * @return This chunk as a byte array
+         * The number of entries in the serialized set, counted the first time it is needed
+         * @return The number of entries
          */
-        public byte[] serialize() {
-            int bufferSize = size + 2 + min.size() + max.size() + Integer.BYTES;
-            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-            buffer.put(Arrays.copyOfRange(bytes, 0, size));
-            buffer.put(min.getBytes());
-            buffer.put((byte) min.size());
-            buffer.put(max.getBytes());
-            buffer.put((byte) max.size());
-            buffer.put(Ints.toByteArray(size + 2 + min.size() + max.size() + Integer.BYTES));
-            return buffer.array();
+        protected int size() {
+            if(size < 0) {
+                if(format == FORMAT.SINGLE_VALUE) {
+                    size = 1;
+                } else {
+                    size = 0;
+                    for(int i = 0; i < regionStarts.length; i++) {
+                        int index = regionStarts[i];
+                        while(index < regionEnds[i]) {
+                            int baSize = readVarInt(bytes, index);
+                            if(baSize != 0) size++;
+                            index += varIntSize(baSize) + baSize;
+                        }
+                    }
+                }
+            }
+            return size;
         }
     }
 
@@ -309,13 +648,14 @@ public class ByteArraySet implements Set<ByteArray> {
 
         @Override
         public ByteArray next() {
-            int size = (int) currentChunk.bytes[currentOffset];
+            int size = readVarInt(currentChunk.bytes, currentOffset);
             if(size == 0) {
                 currentOffset += 1;
                 return null;
             }
-            byte[] retVal = Arrays.copyOfRange(currentChunk.bytes, currentOffset + 1, currentOffset + size + 1);
-            currentOffset += 1 + size;
+            int start = currentOffset + varIntSize(size);
+            byte[] retVal = Arrays.copyOfRange(currentChunk.bytes, start, start + size);
+            currentOffset = start + size;
             if(currentOffset >= currentChunk.size) {
                 if(chunksIter.hasNext()) {
                     currentChunk = chunksIter.next();
@@ -329,11 +669,11 @@ public class ByteArraySet implements Set<ByteArray> {
     }
 
     protected class FullIterator implements Iterator<ByteArray> {
-        protected ChunksIterator chunksIterator;
+        protected Iterator<ByteArray> chunksIterator;
         protected Iterator<ByteArray> frontingSetIterator;
 
         protected FullIterator() {
-            this.chunksIterator = new ChunksIterator();
+            this.chunksIterator = view == null ? new ChunksIterator() : view.iterator();
             this.frontingSetIterator = frontingSet.iterator();
         }
 
@@ -354,6 +694,11 @@ public class ByteArraySet implements Set<ByteArray> {
 
     protected List<Chunk> chunks = new ArrayList<>();
     protected Set<ByteArray> frontingSet = new TreeSet<>();
+    /**
+     * The serialized set this set was deserialized from, read in place instead of the chunks until the chunks are
+     * needed. Null once the chunks are decoded.
+     */
+    protected SerializedView view;
 
     @Override
     public boolean add(ByteArray byteArray) {
@@ -380,6 +725,7 @@ public class ByteArraySet implements Set<ByteArray> {
 
     @Override
     public void clear() {
+        view = null;
         chunks.clear();
         frontingSet.clear();
     }
@@ -389,12 +735,13 @@ public class ByteArraySet implements Set<ByteArray> {
         Preconditions.checkArgument(o instanceof ByteArray);
         if(frontingSet.contains(o)) {
             return true;
+        } else if(view != null) {
+            ByteArray byteArray = (ByteArray) o;
+            return byteArray.size() > 0 && view.contains(byteArray.getBytes());
         } else {
-            for(Chunk chunk: chunks) {
-                if(chunk.contains((ByteArray) o)) return true;
-            }
+            Chunk chunk = findChunk((ByteArray) o);
+            return chunk != null && chunk.contains((ByteArray) o);
         }
-        return false;
     }
 
     @Override
@@ -406,42 +753,94 @@ public class ByteArraySet implements Set<ByteArray> {
     }
 
     /**
-     * Deserializes the given bytes into a ByteSetArray instance
+     * Deserializes the given bytes into a ByteSetArray instance. The set reads the given bytes in place until it is
+     * first modified, so they must not be changed afterwards.
      * @param bytes - The bytes to deserialize
      * @return A shiny, new ByteArraySet
      */
     public static ByteArraySet deserialize(byte[] bytes) {
-        if(bytes == null || bytes.length == 0) return new ByteArraySet();
         ByteArraySet set = new ByteArraySet();
-        Chunk chunk;
+        if(bytes != null && bytes.length > 0 && FORMAT.valueOf(bytes[0]) != FORMAT.EMPTY) {
+            set.view = new SerializedView(bytes);
+        }
+        return set;
+    }
+
+    /**
+     * Decodes the serialized set this set was deserialized from into chunks, so the set can be modified
+     */
+    protected void materialize() {
+        if(view == null) return;
+        SerializedView serializedView = view;
+        byte[] bytes = view.bytes;
+        view = null;
+        Chunk chunk = null;
         switch(FORMAT.valueOf(bytes[0])) {
             case EMPTY:
                 break;
             case SINGLE_VALUE:
-                ByteArray singleValue = new ByteArray(Arrays.copyOfRange(bytes, 1, bytes.length));
-                byte[] chunkBytes = Arrays.copyOf(bytes, bytes.length);
-                chunkBytes[0] = (byte) (bytes.length - 1);
-                chunk = new Chunk(chunkBytes, 1, singleValue, singleValue, bytes.length);
-                set.chunks.add(chunk);
+            case FRONT_CODED:
+                Iterator<ByteArray> iter = serializedView.iterator();
+                while(iter.hasNext()) {
+                    chunk = Chunk.append(chunks, chunk, iter.next());
+                }
+                if(chunk != null) chunk.trim();
                 break;
             case SINGLE_CHUNK:
                 chunk = Chunk.deserializeCompact(bytes, 1, bytes.length);
-                set.chunks.add(chunk);
+                chunks.add(chunk);
                 break;
             case MULTI_CHUNK:
                 int index = bytes.length - 1;
                 while(index > 0) {
                     int size = Ints.fromBytes(bytes[index - 3], bytes[index - 2], bytes[index - 1], bytes[index]);
                     chunk = Chunk.deserialize(bytes, index - size + 1, index);
-                    set.chunks.add(chunk);
+                    chunks.add(chunk);
                     index -= size;
                 }
-                Collections.reverse(set.chunks);
+                Collections.reverse(chunks);
                 break;
         }
+    }
+
+    /**
+     * Creates a set from a collection of keys that are already known to be distinct, skipping the membership check
+     * done for each key by add()
+     * @param distinctKeys - The distinct keys to add. Null and empty keys are skipped.
+     * @return A shiny, new ByteArraySet
+     */
+    public static ByteArraySet of(Collection<ByteArray> distinctKeys) {
+        ByteArraySet set = new ByteArraySet();
+        for(ByteArray key: distinctKeys) {
+            if(key != null && key.size() > 0) set.frontingSet.add(key);
+        }
+        set.merge();
         return set;
     }
 
+    /**
+     * Binary searches the chunks for the only one that could contain the given ByteArray. Chunks are sorted and
+     * don't overlap, and removing entries only narrows the min and max of a chunk, so this is the first chunk
+     * whose max isn't smaller than the ByteArray.
+     * @param byteArray - The ByteArray to find the chunk for
+     * @return The chunk that could contain the ByteArray, or null if there is none
+     */
+    protected Chunk findChunk(ByteArray byteArray) {
+        materialize();
+        if(chunks.isEmpty() || byteArray == null || byteArray.size() == 0) return null;
+        int low = 0;
+        int high = chunks.size() - 1;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(chunks.get(mid).max.compareTo(byteArray) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return chunks.get(low);
+    }
+
     @Override
     public boolean isEmpty() {
         return size() == 0;
@@ -454,53 +853,30 @@ public class ByteArraySet implements Set<ByteArray> {
 
     /**
      * Merges the fronting set values into the chunks, potentially creating new chunks, merging them together and/or
-     * splitting them apart.
+     * splitting them apart. The last chunk is trimmed, so small sets don't hold MAX_CHUNK_SIZE byte arrays.
      */
     protected void merge() {
         if(frontingSet.size() == 0) return;
+        materialize();
         List<Chunk> newChunks = new ArrayList<>();
-        Chunk chunk = new Chunk(Chunk.MAX_CHUNK_SIZE);
+        Chunk chunk = null;
         Iterator<ByteArray> frontIter = frontingSet.iterator();
         ChunksIterator chunksIter = new ChunksIterator();
-        newChunks.add(chunk);
         ByteArray frontBA = null;
         ByteArray chunksBA = null;
 
         while(frontBA != null || frontIter.hasNext() || chunksBA != null || chunksIter.hasNext()) {
             if(frontBA == null && frontIter.hasNext()) frontBA = frontIter.next();
             while(chunksBA == null && chunksIter.hasNext()) chunksBA = chunksIter.next();
-            if(frontBA != null && chunksBA != null) {
-                if (frontBA.compareTo(chunksBA) < 0) {
-                    if (chunk.size + 1 + frontBA.size() > Chunk.MAX_CHUNK_SIZE) {
-                        chunk = new Chunk(Chunk.MAX_CHUNK_SIZE);
-                        newChunks.add(chunk);
-                    }
-                    chunk.add(frontBA);
-                    frontBA = null;
-                } else {
-                    if (chunk.size + 1 + chunksBA.size() > Chunk.MAX_CHUNK_SIZE) {
-                        chunk = new Chunk(Chunk.MAX_CHUNK_SIZE);
-                        newChunks.add(chunk);
-                    }
-                    chunk.add(chunksBA);
-                    chunksBA = null;
-                }
-            } else if(frontBA != null) {
-                if (chunk.size + 1 + frontBA.size() > Chunk.MAX_CHUNK_SIZE) {
-                    chunk = new Chunk(Chunk.MAX_CHUNK_SIZE);
-                    newChunks.add(chunk);
-                }
-                chunk.add(frontBA);
+            if(frontBA != null && (chunksBA == null || frontBA.compareTo(chunksBA) < 0)) {
+                chunk = Chunk.append(newChunks, chunk, frontBA);
                 frontBA = null;
             } else if(chunksBA != null) {
-                if (chunk.size + 1 + chunksBA.size() > Chunk.MAX_CHUNK_SIZE) {
-                    chunk = new Chunk(Chunk.MAX_CHUNK_SIZE);
-                    newChunks.add(chunk);
-                }
-                chunk.add(chunksBA);
+                chunk = Chunk.append(newChunks, chunk, chunksBA);
                 chunksBA = null;
             }
         }
+        if(chunk != null) chunk.trim();
         chunks = newChunks;
         frontingSet.clear();
     }
@@ -511,11 +887,10 @@ public class ByteArraySet implements Set<ByteArray> {
         if(frontingSet.contains(o)) {
             return frontingSet.remove(o);
         } else {
-            for(Chunk chunk: chunks) {
-                if(chunk.remove((ByteArray) o)) return true;
-            }
+            if(view != null && !contains(o)) return false;
+            Chunk chunk = findChunk((ByteArray) o);
+            return chunk != null && chunk.remove((ByteArray) o);
         }
-        return false;
     }
 
     @Override
@@ -532,53 +907,144 @@ public class ByteArraySet implements Set<ByteArray> {
      * @return The byte array representation of this instance
      */
     public byte[] serialize() {
+        // An unmodified deserialized set serializes to the bytes it was deserialized from
+        if(view != null && frontingSet.isEmpty()) return view.bytes;
         merge();
         ByteBuffer buffer;
-        switch(chunks.size()) {
+        switch(size()) {
             case 0:
                 return EMPTY_SET_BYTES;
             case 1:
-                Chunk singleChunk = chunks.get(0);
-                switch(singleChunk.entries) {
-                    case 0:
-                        return EMPTY_SET_BYTES;
-                    case 1:
-                        buffer = ByteBuffer.allocate(1 + singleChunk.min.getBytes().length);
-                        buffer.put(FORMAT.SINGLE_VALUE.getValue());
-                        buffer.put(singleChunk.min.getBytes());
-                        return buffer.array();
-                    default:
-                        buffer = ByteBuffer.allocate(1 + singleChunk.size);
-                        buffer.put(FORMAT.SINGLE_CHUNK.getValue());
-                        buffer.put(Arrays.copyOfRange(singleChunk.bytes, 0, singleChunk.size));
-                        return buffer.array();
-                }
-            default:
-                List<byte[]> chunkBytes = new ArrayList<>();
-                int totalSize = 0;
-                for(Chunk chunk: chunks) {
-                    byte[] bytes = chunk.serialize();
-                    totalSize += bytes.length;
-                    chunkBytes.add(bytes);
-                }
-                buffer = ByteBuffer.allocate(1 + totalSize);
-                buffer.put(FORMAT.MULTI_CHUNK.getValue());
-                for(byte[] bytes: chunkBytes) {
-                    buffer.put(bytes);
-                }
+                ByteArray singleValue = null;
+                ChunksIterator iter = new ChunksIterator();
+                while(singleValue == null) singleValue = iter.next();
+                buffer = ByteBuffer.allocate(1 + singleValue.size());
+                buffer.put(FORMAT.SINGLE_VALUE.getValue());
+                buffer.put(singleValue.getBytes());
                 return buffer.array();
+            default:
+                return serializeFrontCoded();
         }
     }
 
+    /**
+     * Serializes the chunks of this set into the FRONT_CODED format
+     * format (1 byte) / entries (varint) / blocks (varint) / blocks
+     * Each block is its size (varint) followed by up to FRONT_CODED_BLOCK_SIZE entries, closed early once it reaches
+     * FRONT_CODED_BLOCK_BYTES. Each entry is the size of the prefix it shares with the previous entry of its block
+     * (varint), the size of the rest of it (varint) and the rest.
+     * @return The byte array representation of this instance
+     */
+    protected byte[] serializeFrontCoded() {
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        byte[] varInt = new byte[5];
+        int blockCount = 0;
+        int blockEntries = 0;
+        byte[] previous = null;
+        ChunksIterator iter = new ChunksIterator();
+        while(iter.hasNext()) {
+            ByteArray byteArray = iter.next();
+            if(byteArray == null) continue;
+            byte[] entry = byteArray.getBytes();
+            int shared = 0;
+            if(blockEntries > 0) {
+                int maxShared = Math.min(previous.length, entry.length);
+                while(shared < maxShared && previous[shared] == entry[shared]) shared++;
+            }
+            block.write(varInt, 0, writeVarInt(varInt, 0, shared));
+            block.write(varInt, 0, writeVarInt(varInt, 0, entry.length - shared));
+            block.write(entry, shared, entry.length - shared);
+            previous = entry;
+            if(++blockEntries == FRONT_CODED_BLOCK_SIZE || block.size() >= FRONT_CODED_BLOCK_BYTES) {
+                writeBlock(blocks, block);
+                blockCount++;
+                blockEntries = 0;
+            }
+        }
+        if(blockEntries > 0) {
+            writeBlock(blocks, block);
+            blockCount++;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(blocks.size() + 11);
+        out.write(FORMAT.FRONT_CODED.getValue());
+        out.write(varInt, 0, writeVarInt(varInt, 0, size()));
+        out.write(varInt, 0, writeVarInt(varInt, 0, blockCount));
+        byte[] blockBytes = blocks.toByteArray();
+        out.write(blockBytes, 0, blockBytes.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a block of the FRONT_CODED format, prefixed with its size, and resets the block
+     * @param out - The stream to write the block to
+     * @param block - The entries of the block
+     */
+    protected static void writeBlock(ByteArrayOutputStream out, ByteArrayOutputStream block) {
+        byte[] varInt = new byte[5];
+        out.write(varInt, 0, writeVarInt(varInt, 0, block.size()));
+        byte[] blockBytes = block.toByteArray();
+        out.write(blockBytes, 0, blockBytes.length);
+        block.reset();
+    }
+
     @Override
     public int size() {
         int size = frontingSet.size();
+        if(view != null) return size + view.size();
         for(Chunk chunk: chunks) {
             size += chunk.entries;
         }
         return size;
     }
 
+    /**
+     * Reads an unsigned varint, which stores 7 bits per byte, least significant first. The high bit of each byte
+     * but the last is set. Sizes under 128 are a single byte, the same as the single byte sizes of older formats.
+     * @param bytes - The bytes to read from
+     * @param index - The index of the varint
+     * @return The value of the varint
+     */
+    protected static int readVarInt(byte[] bytes, int index) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[index++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Gets the number of bytes needed to store a non-negative value as a varint
+     * @param value - The value
+     * @return The size of the varint
+     */
+    protected static int varIntSize(int value) {
+        int size = 1;
+        while((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    /**
+     * Writes a non-negative value as a varint
+     * @param bytes - The bytes to write to
+     * @param index - The index to write the varint at
+     * @param value - The value
+     * @return The index after the varint
+     */
+    protected static int writeVarInt(byte[] bytes, int index, int value) {
+        while((value & ~0x7F) != 0) {
+            bytes[index++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[index++] = (byte) value;
+        return index;
+    }
+
     // I don't care about these methods
     @Override
     public boolean retainAll(Collection<?> c) {
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * A queue of distinct keys (e.g. the PKs of denormalized records yet to be created) that remembers when each key
+ * was first queued. Keys are polled oldest first, so the time a key spends in the queue can be bounded by draining
+ * it in small chunks. Re-queueing a key that is already queued keeps its original enqueue time.
+ *
+ * Adding and polling keys are O(1) per key. Keys queued together share their enqueue time, so enqueue times are
+ * stored as runs instead of one boxed time per key.
+ *
+ * The queue also tracks the keys added and removed since the changes were last drained, so it can be persisted
+ * incrementally instead of being rewritten as a whole.
+ *
+ * This class is not thread safe.
+ */
+public class PendingKeyQueue {
+    /**
+     * The queued keys, in the order they were queued
+     */
+    protected final LinkedHashSet<ByteArray> keys = new LinkedHashSet<>();
+    /**
+     * The enqueue times of the queued keys, in the same order, as runs of {time in milliseconds, # of keys}
+     */
+    protected final ArrayDeque<long[]> enqueueTimeRuns = new ArrayDeque<>();
+    /**
+     * The keys added (true) or removed (false) since the changes were last drained. A key that is added and then
+     * removed, or vice versa, has no change.
+     */
+    protected final Map<ByteArray, Boolean> changes = new HashMap<>();
+
+    /**
+     * Queues a key, unless it is already queued
+     * @param key - The key to queue
+     * @param timeMs - The current time in milliseconds
+     * @return True if the key was queued, false if it was already queued or is null / empty
+     */
+    public boolean add(ByteArray key, long timeMs) {
+        if(key == null || key.size() == 0) return false;
+        if(!keys.add(key)) return false;
+        recordChange(key, true);
+        long[] lastRun = enqueueTimeRuns.peekLast();
+        if(lastRun != null && lastRun[0] == timeMs) {
+            lastRun[1]++;
+        } else {
+            enqueueTimeRuns.addLast(new long[] {timeMs, 1});
+        }
+        return true;
+    }
+
+    /**
+     * Queues a collection of keys, skipping any that are already queued
+     * @param keys - The keys to queue
+     * @param timeMs - The current time in milliseconds
+     */
+    public void addAll(Collection<ByteArray> keys, long timeMs) {
+        for(ByteArray key: keys) {
+            add(key, timeMs);
+        }
+    }
+
+    /**
+     * Removes all queued keys
+     */
+    public void clear() {
+        for(ByteArray key: keys) {
+            recordChange(key, false);
+        }
+        keys.clear();
+        enqueueTimeRuns.clear();
+    }
+
+    /**
+     * Whether the given key is queued
+     * @param key - The key to check
+     * @return True if the key is queued, otherwise false
+     */
+    public boolean contains(ByteArray key) {
+        return keys.contains(key);
+    }
+
+    /**
+     * Forgets the changes since the changes were last drained, e.g. after loading the queue from where it is persisted
+     */
+    public void clearChanges() {
+        changes.clear();
+    }
+
+    /**
+     * Passes the keys added and removed since the changes were last drained to the given consumers, then forgets
+     * them. Keys that were added and then removed again in between are not passed to either.
+     * @param added - Given each added key
+     * @param removed - Given each removed key
+     */
+    public void drainChanges(Consumer<ByteArray> added, Consumer<ByteArray> removed) {
+        for(Map.Entry<ByteArray, Boolean> change: changes.entrySet()) {
+            if(change.getValue()) {
+                added.accept(change.getKey());
+            } else {
+                removed.accept(change.getKey());
+            }
+        }
+        changes.clear();
+    }
+
+    /**
+     * Gets the age of the oldest queued key
+     * @param nowMs - The current time in milliseconds
+     * @return The age of the oldest key in milliseconds, or 0 if the queue is empty
+     */
+    public long getOldestAge(long nowMs) {
+        if(keys.isEmpty()) return 0;
+        return nowMs - enqueueTimeRuns.peekFirst()[0];
+    }
+
+    /**
+     * Whether no keys are queued
+     * @return True if the queue is empty, otherwise false
+     */
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * Removes and returns the oldest queued keys, sorted by key
+     * @param maxKeys - The maximum number of keys to return
+     * @param cutoffTimeMs - Only keys queued at or before this time are returned
+     * @param enqueueTimes - Given the enqueue time of each returned key. May be null.
+     * @return The oldest queued keys, sorted by key
+     */
+    public List<ByteArray> poll(int maxKeys, long cutoffTimeMs, LongConsumer enqueueTimes) {
+        Preconditions.checkArgument(maxKeys > 0);
+        List<ByteArray> retVal = new ArrayList<>(Math.min(maxKeys, keys.size()));
+        Iterator<ByteArray> iter = keys.iterator();
+        while(retVal.size() < maxKeys && iter.hasNext()) {
+            long[] run = enqueueTimeRuns.peekFirst();
+            long timeMs = run[0];
+            if(timeMs > cutoffTimeMs) break;
+            if(enqueueTimes != null) enqueueTimes.accept(timeMs);
+            ByteArray key = iter.next();
+            retVal.add(key);
+            recordChange(key, false);
+            iter.remove();
+            if(--run[1] == 0) enqueueTimeRuns.pollFirst();
+        }
+        Collections.sort(retVal);
+        return retVal;
+    }
+
+    /**
+     * Records that a key was added or removed, cancelling out the opposite change if there is one
+     * @param key - The key
+     * @param added - True if the key was added, false if it was removed
+     */
+    protected void recordChange(ByteArray key, boolean added) {
+        if(Boolean.valueOf(!added).equals(changes.get(key))) {
+            changes.remove(key);
+        } else {
+            changes.put(key, added);
+        }
+    }
+
+    /**
+     * The number of queued keys
+     * @return The number of queued keys
+     */
+    public int size() {
+        return keys.size();
+    }
+}
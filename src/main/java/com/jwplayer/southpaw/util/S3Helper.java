@@ -31,11 +31,14 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.jmx.JmxReporter;
 import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
@@ -53,6 +56,7 @@ public class S3Helper {
         public static final String S3_DOWNLOADS = "s3.downloads";
         public static final String S3_FILES_DELETED = "s3.files.deleted";
         public static final String S3_FILES_DOWNLOADED = "s3.files.downloaded";
+        public static final String S3_FILES_SKIPPED = "s3.files.skipped";
         public static final String S3_FILES_UPLOADED = "s3.files.uploaded";
         public static final String S3_UPLOAD_FAILURES = "s3.upload.failures";
         public static final String S3_UPLOADS = "s3.uploads";
@@ -68,6 +72,7 @@ public class S3Helper {
         public final Timer s3Downloads = registry.timer(S3_DOWNLOADS);
         public final Meter s3FilesDeleted = registry.meter(S3_FILES_DELETED);
         public final Meter s3FilesDownloaded = registry.meter(S3_FILES_DOWNLOADED);
+        public final Meter s3FilesSkipped = registry.meter(S3_FILES_SKIPPED);
         public final Meter s3FilesUploaded = registry.meter(S3_FILES_UPLOADED);
         public final Meter s3UploadFailures = registry.meter(S3_UPLOAD_FAILURES);
         public final Timer s3Uploads = registry.timer(S3_UPLOADS);
@@ -81,6 +86,15 @@ public class S3Helper {
      * AWS access key config
      */
     public static final String ACCESS_KEY_ID_CONFIG = "aws.s3.access.key.id";
+    /**
+     * The # of threads used to download files from S3. Objects uploaded in multiple parts are downloaded in
+     * parallel by part.
+     */
+    public static final String DOWNLOAD_PARALLELISM_CONFIG = "aws.s3.download.parallelism";
+    /**
+     * By default, use the same # of download threads as the transfer manager
+     */
+    public static final int DOWNLOAD_PARALLELISM_DEFAULT = 10;
     /**
      * Determines if errors in syncs to S3 cause an exception or return with the sync unfinished. 'Ignored' errors
      * will be logged.
@@ -106,13 +120,23 @@ public class S3Helper {
      * AWS secret key config
      */
     public static final String SECRET_KEY_CONFIG = "aws.s3.secret.key";
+    /**
+     * The # of threads used to upload files to S3
+     */
+    public static final String UPLOAD_PARALLELISM_CONFIG = "aws.s3.upload.parallelism";
+    /**
+     * By default, use the same # of upload threads as the transfer manager
+     */
+    public static final int UPLOAD_PARALLELISM_DEFAULT = 10;
     private static final Logger logger = LoggerFactory.getLogger(S3Helper.class);
 
     private ExecutorService executor;
+    protected int downloadParallelism;
     protected boolean exceptionOnError;
     protected Metrics metrics = new Metrics();
     protected AmazonS3 s3;
     protected Future<?> syncToS3Future = null;
+    protected int uploadParallelism;
 
     /**
      * Constructor
@@ -131,6 +155,10 @@ public class S3Helper {
         this.executor = Executors.newSingleThreadExecutor();
         this.s3 = s3;
         this.exceptionOnError = (boolean) config.getOrDefault(EXCEPTION_ON_ERROR_CONFIG, EXCEPTION_ON_ERROR_DEFAULT);
+        this.downloadParallelism = (int) config.getOrDefault(DOWNLOAD_PARALLELISM_CONFIG, DOWNLOAD_PARALLELISM_DEFAULT);
+        this.uploadParallelism = (int) config.getOrDefault(UPLOAD_PARALLELISM_CONFIG, UPLOAD_PARALLELISM_DEFAULT);
+        Preconditions.checkArgument(downloadParallelism > 0);
+        Preconditions.checkArgument(uploadParallelism > 0);
     }
 
     private static AmazonS3 buildS3Client(Map<String, Object> config) {
@@ -210,6 +238,28 @@ public class S3Helper {
         return path;
     }
 
+    /**
+     * Checks if a local file already matches an S3 object, so it doesn't need to be downloaded again. The file must
+     * have the same size as the object. If the ETag of the object is the MD5 of its content, which is the case unless
+     * it was uploaded in multiple parts, the MD5 of the file must match as well. Objects uploaded in multiple parts
+     * are only compared by size. These are large SST files, which RocksDB never rewrites under the same name.
+     * @param file - The local file
+     * @param summary - The S3 object
+     * @return True if the local file matches the S3 object
+     */
+    protected static boolean isSynced(File file, S3ObjectSummary summary) {
+        if(!file.isFile() || file.length() != summary.getSize()) return false;
+        String eTag = summary.getETag();
+        if(eTag == null || eTag.contains("-")) return true;
+        try {
+            String md5 = Files.asByteSource(file).hash(Hashing.md5()).toString();
+            return md5.equalsIgnoreCase(eTag.replace("\"", ""));
+        } catch(IOException ex) {
+            logger.warn(String.format("Could not hash local file %s, downloading it again", file.getPath()), ex);
+            return false;
+        }
+    }
+
     /**
      * List all keys in S3 for the given URI as a prefix
      * @param s3Uri - The URI prefix
@@ -232,7 +282,8 @@ public class S3Helper {
     }
 
     /**
-     * Syncs (copies) all files in S3 using the given S3 URI to the a local directory. This method will block
+     * Syncs (copies) all files in S3 using the given S3 URI to the a local directory. Files that already exist
+     * locally and match their S3 object (see isSynced) are not downloaded again. This method will block
      * on an existing async sync to S3 before running.
      * @param localUri - The local directory to copy files to
      * @param s3Uri - The remote location of the files to copy
@@ -249,16 +300,26 @@ public class S3Helper {
             Preconditions.checkArgument(SCHEME.equalsIgnoreCase(s3Uri.getScheme()));
             List<S3ObjectSummary> summaries = listKeys(s3Uri);
             String bucket = s3Uri.getHost();
-            tx = TransferManagerBuilder.standard().withS3Client(s3).build();
+            tx = TransferManagerBuilder.standard()
+                    .withS3Client(s3)
+                    .withDisableParallelDownloads(false)
+                    .withExecutorFactory(() -> Executors.newFixedThreadPool(downloadParallelism))
+                    .build();
             Map<File, Download> downloads = new HashMap<>();
             logger.info(String.format("Downloading files from %s to %s", s3Uri.toString(), localUri.toString()));
             int downloadCount = 0;
+            int skipCount = 0;
 
-            // Download the files from S3
+            // Download the files from S3 that are missing or different locally
             for (S3ObjectSummary summary : summaries) {
                 String suffix = StringUtils.substringAfter(summary.getKey(), getPath(s3Uri));
                 File file = new File("/" + getPath(localUri) + suffix);
 
+                if (isSynced(file, summary)) {
+                    skipCount++;
+                    metrics.s3FilesSkipped.mark(1);
+                    continue;
+                }
                 file.getParentFile().mkdirs();
                 downloads.put(file, tx.download(bucket, summary.getKey(), file));
                 downloadCount++;
@@ -285,6 +346,7 @@ public class S3Helper {
                 logger.info(String.format("Downloaded %s files", downloadCount));
                 downloads.clear();
             }
+            logger.info(String.format("Skipped %s files already present locally", skipCount));
         } finally {
             if (tx != null) {
                 tx.shutdownNow(false);
@@ -316,65 +378,60 @@ public class S3Helper {
                     int deleteCount = 0;
                     int uploadCount = 0;
 
+                    // Key both sides by their path relative to the local directory / S3 prefix
+                    Map<String, File> localFilesByPath = new HashMap<>(localFiles.size());
+                    for (File localFile : localFiles) {
+                        localFilesByPath.put(StringUtils.substringAfter(getPath(localFile), getPath(localUri)), localFile);
+                    }
+                    Map<String, S3ObjectSummary> summariesByPath = new HashMap<>(summaries.size());
+                    for (S3ObjectSummary summary : summaries) {
+                        summariesByPath.put(StringUtils.substringAfter(summary.getKey(), getPath(s3Uri)), summary);
+                    }
+
                     // Get the files in S3 that are not local
                     List<S3ObjectSummary> s3ObjectsToDelete = new ArrayList<>();
-                    for (S3ObjectSummary summary : summaries) {
-                        String suffix = StringUtils.substringAfter(summary.getKey(), getPath(s3Uri));
-                        boolean deleteMe = true;
-                        for (File localFile : localFiles) {
-                            String path = getPath(localFile);
-                            if (path.endsWith(suffix)) {
-                                deleteMe = false;
-                                break;
-                            }
-                        }
-                        if (deleteMe) s3ObjectsToDelete.add(summary);
+                    for (Map.Entry<String, S3ObjectSummary> entry : summariesByPath.entrySet()) {
+                        if (!localFilesByPath.containsKey(entry.getKey())) s3ObjectsToDelete.add(entry.getValue());
                     }
 
-                    // Get the files held locally, but are not in S3
-                    List<File> localFilesToCopy = new ArrayList<>();
-                    for (File localFile : localFiles) {
-                        String suffix = StringUtils.substringAfter(getPath(localFile), getPath(localUri));
-                        boolean copyMe = true;
-                        for (S3ObjectSummary summary : summaries) {
-                            if (summary.getKey().endsWith(suffix) && localFile.lastModified() <= summary.getLastModified().getTime()) {
-                                copyMe = false;
-                                break;
-                            }
+                    // Get the files held locally that are not in S3, or have changed since they were uploaded
+                    Map<String, File> localFilesToCopy = new HashMap<>();
+                    for (Map.Entry<String, File> entry : localFilesByPath.entrySet()) {
+                        File localFile = entry.getValue();
+                        S3ObjectSummary summary = summariesByPath.get(entry.getKey());
+                        if (summary == null
+                                || localFile.length() != summary.getSize()
+                                || localFile.lastModified() > summary.getLastModified().getTime()) {
+                            localFilesToCopy.put(entry.getKey(), localFile);
                         }
-                        if (copyMe) localFilesToCopy.add(localFile);
                     }
 
-                    // Copy the new/updated files to S3
+                    // Copy the new/updated files to S3. The transfer manager's thread pool bounds the # of
+                    // concurrent uploads.
                     if (localFilesToCopy.size() > 0) {
-                        TransferManager tx = TransferManagerBuilder.standard().withS3Client(s3).build();
+                        TransferManager tx = TransferManagerBuilder.standard()
+                                .withS3Client(s3)
+                                .withExecutorFactory(() -> Executors.newFixedThreadPool(uploadParallelism))
+                                .build();
                         try{
-                            List<Upload> uploads = new ArrayList<>();
-                            for (File fileToCopy : localFilesToCopy) {
-                                String fullPath = getPath(fileToCopy);
-                                String suffix = StringUtils.substringAfter(fullPath, getPath(localUri));
-                                String key = getPath(s3Uri) + suffix;
+                            List<Upload> uploads = new ArrayList<>(localFilesToCopy.size());
+                            for (Map.Entry<String, File> entry : localFilesToCopy.entrySet()) {
+                                File fileToCopy = entry.getValue();
+                                String key = getPath(s3Uri) + entry.getKey();
                                 ObjectMetadata metadata = new ObjectMetadata();
                                 metadata.setLastModified(new Date(fileToCopy.lastModified()));
                                 PutObjectRequest request = new PutObjectRequest(bucket, key, fileToCopy).withMetadata(metadata);
                                 uploads.add(tx.upload(request));
+                            }
+                            for (Upload upload : uploads) {
+                                upload.waitForUploadResult();
                                 uploadCount++;
                                 metrics.s3FilesUploaded.mark(1);
                                 if (uploadCount % MAX_KEYS_PER_S3_OP == 0) {
-                                    for (Upload upload : uploads) {
-                                        upload.waitForUploadResult();
-                                    }
                                     logger.info(String.format("Uploaded %s files", uploadCount));
-                                    uploads.clear();
-                                }
-                            }
-                            if (uploads.size() >= 0) {
-                                for (Upload upload : uploads) {
-                                    upload.waitForUploadResult();
                                 }
-                                logger.info(String.format("Uploaded %s files", uploadCount));
-                                uploads.clear();
                             }
+                            logger.info(String.format("Uploaded %s files", uploadCount));
                         } finally {
                             tx.shutdownNow(false);
                         }
@@ -26,6 +26,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.AbstractMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -42,7 +43,7 @@ public class MockSouthpaw extends Southpaw {
 
     public void createDenormalizedRecords(
             Relation root,
-            Set<ByteArray> rootRecordPKs) {
+            Collection<ByteArray> rootRecordPKs) {
         super.createDenormalizedRecords(root, rootRecordPKs);
     }
 
@@ -66,6 +67,14 @@ public class MockSouthpaw extends Southpaw {
         return fkIndices;
     }
 
+    /**
+     * Accessor for the compiled relation plan used by Southpaw
+     * @return Southpaw's relation plan
+     */
+    public RelationPlan getPlan() {
+        return plan;
+    }
+
     /**
      * Accessor for the normalized topics used by Southpaw
      * @return Southpaw's normalized topics
@@ -16,15 +16,18 @@
 package com.jwplayer.southpaw;
 
 import com.jwplayer.southpaw.state.BaseState;
+import com.jwplayer.southpaw.state.KeySpace;
 import com.jwplayer.southpaw.util.ByteArray;
 import org.apache.commons.lang.NotImplementedException;
 
+import java.util.AbstractMap;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class MockState extends BaseState {
 
-    private Map<ByteArray, Map<ByteArray, byte[]>> dataBatches;
+    private Map<KeySpace, Map<ByteArray, byte[]>> dataBatches;
 
     @Override
     public void backup() {
@@ -43,8 +46,10 @@ public class MockState extends BaseState {
     }
 
     @Override
-    public void createKeySpace(String keySpace) {
-        dataBatches.put(new ByteArray(keySpace), new HashMap<>());
+    public KeySpace createKeySpace(String keySpace) {
+        KeySpace retVal = new KeySpace(keySpace);
+        dataBatches.putIfAbsent(retVal, new TreeMap<>());
+        return retVal;
     }
 
     @Override
@@ -53,8 +58,8 @@ public class MockState extends BaseState {
     }
 
     @Override
-    public void delete(String keySpace, byte[] key) {
-        dataBatches.get(new ByteArray(keySpace)).remove(new ByteArray(key));
+    public void delete(KeySpace keySpace, byte[] key) {
+        dataBatches.get(keySpace).remove(new ByteArray(key));
     }
 
     @Override
@@ -62,29 +67,65 @@ public class MockState extends BaseState {
         throw new NotImplementedException();
     }
 
+    @Override
+    public void dropKeySpace(KeySpace keySpace) {
+        dataBatches.remove(keySpace);
+    }
+
     @Override
     public void flush() {
 
     }
 
     @Override
-    public void flush(String keySpace) {
+    public void flush(KeySpace keySpace) {
 
     }
 
     @Override
-    public byte[] get(String keySpace, byte[] key) {
-       return dataBatches.get(new ByteArray(keySpace)).get(new ByteArray(key));
+    public byte[] get(KeySpace keySpace, byte[] key) {
+       return dataBatches.get(keySpace).get(new ByteArray(key));
+    }
+
+    @Override
+    public KeySpace getKeySpace(String keySpace) {
+        KeySpace retVal = new KeySpace(keySpace);
+        return dataBatches.containsKey(retVal) ? retVal : null;
     }
 
     @Override
-    public Iterator iterate(String keySpace) {
-        return null;
+    public Iterator iterate(KeySpace keySpace) {
+        // Iterates over a copy, so the key space can be modified while iterating
+        Map<ByteArray, byte[]> dataBatch = new TreeMap<>(dataBatches.get(keySpace));
+        return new Iterator() {
+            private java.util.Iterator<Map.Entry<ByteArray, byte[]>> iter = dataBatch.entrySet().iterator();
+
+            @Override
+            public void close() {
+
+            }
+
+            @Override
+            public void reset() {
+                iter = dataBatch.entrySet().iterator();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public AbstractMap.SimpleEntry<byte[], byte[]> next() {
+                Map.Entry<ByteArray, byte[]> entry = iter.next();
+                return new AbstractMap.SimpleEntry<>(entry.getKey().getBytes(), entry.getValue());
+            }
+        };
     }
 
     @Override
-    public void put(String keySpace, byte[] key, byte[] value) {
-        Map<ByteArray, byte[]> dataBatch = dataBatches.get(new ByteArray(keySpace));
+    public void put(KeySpace keySpace, byte[] key, byte[] value) {
+        Map<ByteArray, byte[]> dataBatch = dataBatches.get(keySpace);
         dataBatch.put(new ByteArray(key), value);
     }
 
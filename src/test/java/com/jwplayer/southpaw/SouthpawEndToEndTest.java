@@ -37,6 +37,7 @@ import org.junit.runners.Parameterized;
 import org.yaml.snakeyaml.Yaml;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jwplayer.southpaw.index.CompositeKeyIndex;
 import com.jwplayer.southpaw.json.DenormalizedRecord;
 import com.jwplayer.southpaw.record.BaseRecord;
 import com.jwplayer.southpaw.topic.BaseTopic;
@@ -91,10 +92,33 @@ public class SouthpawEndToEndTest {
         expectedResults.put(ByteArray.toByteArray(3234), mapper.readValue("{\"Record\":{\"user_id\":1235,\"name\":\"16:9 example player\",\"id\":3234},\"Children\":{\"user\":[{\"Record\":{\"user_id\":1235,\"usage_type\":\"unlimited\",\"user_name\":\"TROGDOR\",\"email\":\"TROGDOR@jwplayer.com\"},\"Children\":{}}]}}", DenormalizedRecord.class));
         expectedResults.put(ByteArray.toByteArray(3235), mapper.readValue("{\"Record\":{\"user_id\":1234,\"name\":\"THIS IS A PLAYER\",\"id\":3235},\"Children\":{\"user\":[{\"Record\":{\"user_id\":1234,\"usage_type\":\"monthly\",\"user_name\":\"Suzy\",\"email\":\"Suzy+something@jwplayer.com\"},\"Children\":{}}]}}", DenormalizedRecord.class));
 
-        // Generate the actual results
-        int maxRecords = 0;
+        List<Object[]> retVal = new ArrayList<>();
         Yaml yaml = new Yaml();
         Map<String, Object> config = yaml.load(FileHelper.getInputStream(new URI(CONFIG_PATH)));
+        addTestCases(retVal, "", config, expectedResults);
+        // Index lookups run concurrently on the create records threads
+        config = yaml.load(FileHelper.getInputStream(new URI(CONFIG_PATH)));
+        config.put(Southpaw.Config.INDEX_CLASS_CONFIG, CompositeKeyIndex.class.getName());
+        config.put(Southpaw.Config.CREATE_RECORDS_THREADS_CONFIG, 4);
+        addTestCases(retVal, "CompositeKeyIndex, 4 threads / ", config, expectedResults);
+
+        assertEquals(24, retVal.size());
+        return retVal;
+    }
+
+    /**
+     * Runs Southpaw over the test topics and adds a test case for each denormalized record created
+     * @param testCases - The test cases to add to
+     * @param namePrefix - The prefix of the names of the added test cases
+     * @param config - The Southpaw config
+     * @param expectedResults - The expected denormalized records, by primary key
+     */
+    private static void addTestCases(
+            List<Object[]> testCases,
+            String namePrefix,
+            Map<String, Object> config,
+            Map<ByteArray, DenormalizedRecord> expectedResults) throws Exception {
+        int maxRecords = 0;
         MockSouthpaw southpaw = new MockSouthpaw(
                 config,
                 Arrays.asList(new URI(RELATIONS_PATH), new URI(RELATIONS_PATH2), new URI(RELATIONS_PATH3))
@@ -107,7 +131,6 @@ public class SouthpawEndToEndTest {
             maxRecords = Math.max(records.get(entry.getKey()).length, maxRecords);
         }
         Map<String, Map<ByteArray, DenormalizedRecord>> denormalizedRecords = new HashMap<>();
-        List<Object[]> retVal = new ArrayList<>();
 
         for(int i = 0; i < maxRecords / 2; i++) {
             for(Map.Entry<String, BaseTopic<BaseRecord, BaseRecord>> entry: normalizedTopics.entrySet()) {
@@ -138,8 +161,8 @@ public class SouthpawEndToEndTest {
 
         for(Map.Entry<String, Map<ByteArray, DenormalizedRecord>> entry: denormalizedRecords.entrySet()) {
             for(Map.Entry<ByteArray, DenormalizedRecord> innerEntry: entry.getValue().entrySet()) {
-                retVal.add(new Object[] {
-                        String.format("Denormalized Entity: %s / Primary Key: %s", entry.getKey(), Hex.encodeHexString(innerEntry.getKey().getBytes())),
+                testCases.add(new Object[] {
+                        namePrefix + String.format("Denormalized Entity: %s / Primary Key: %s", entry.getKey(), Hex.encodeHexString(innerEntry.getKey().getBytes())),
                         innerEntry.getValue(),
                         expectedResults.get(innerEntry.getKey())
                 });
@@ -148,9 +171,6 @@ public class SouthpawEndToEndTest {
         southpaw.close();
         Southpaw.deleteBackups(config);
         Southpaw.deleteState(config);
-
-        assertEquals(12, retVal.size());
-        return retVal;
     }
 
     public static void setup() throws URISyntaxException {
@@ -16,6 +16,9 @@
 package com.jwplayer.southpaw;
 
 import com.jwplayer.southpaw.index.BaseIndex;
+import com.jwplayer.southpaw.index.Reversible;
+import com.jwplayer.southpaw.json.ChildRecords;
+import com.jwplayer.southpaw.json.DenormalizedRecord;
 import com.jwplayer.southpaw.json.Record;
 import com.jwplayer.southpaw.json.Relation;
 import com.jwplayer.southpaw.record.BaseRecord;
@@ -23,7 +26,9 @@ import com.jwplayer.southpaw.record.MapRecord;
 import com.jwplayer.southpaw.state.RocksDBState;
 import com.jwplayer.southpaw.topic.BaseTopic;
 import com.jwplayer.southpaw.util.ByteArray;
+import com.jwplayer.southpaw.util.ByteArraySet;
 import com.jwplayer.southpaw.util.FileHelper;
+import com.jwplayer.southpaw.util.PendingKeyQueue;
 import org.junit.*;
 import org.junit.rules.TemporaryFolder;
 import org.yaml.snakeyaml.Yaml;
@@ -151,6 +156,213 @@ public class SouthpawTest {
         assertEquals(relation, foundRelation.getValue());
     }
 
+    @Test
+    public void testCreateExpiredRecords() throws Exception {
+        southpaw.close();
+        config.put(Southpaw.Config.CREATE_RECORDS_BATCH_SIZE_CONFIG, 2);
+        config.put(Southpaw.Config.CREATE_RECORDS_THREADS_CONFIG, 1);
+        config.put(Southpaw.Config.CREATE_RECORDS_MAX_LATENCY_MS_CONFIG, 100);
+        southpaw = new MockSouthpaw(config, Collections.singletonList(relationsUri));
+        Relation root = southpaw.getPlan().getRoots()[0].relation;
+        PendingKeyQueue queue = southpaw.dePKsByType.get(root);
+        for(int i = 0; i < 5; i++) {
+            queue.add(new ByteArray(i), 0L);
+        }
+        queue.add(new ByteArray(5), 950L);
+
+        // Nothing is expired yet
+        southpaw.createExpiredRecords(50L);
+        assertEquals(6, queue.size());
+
+        // Each call creates at most one chunk of expired records
+        southpaw.createExpiredRecords(1000L);
+        assertEquals(4, queue.size());
+        southpaw.createExpiredRecords(1000L);
+        assertEquals(2, queue.size());
+        southpaw.createExpiredRecords(1000L);
+        assertEquals(1, queue.size());
+        southpaw.createExpiredRecords(1000L);
+        assertEquals(1, queue.size());
+        assertTrue(queue.contains(new ByteArray(5)));
+    }
+
+    @Test
+    public void testMigratePendingPKs() throws Exception {
+        Relation root = southpaw.getPlan().getRoots()[0].relation;
+        byte[] legacyEntryName = southpaw.createDePKEntryName(root).getBytes();
+        ByteArraySet legacyPKs = new ByteArraySet();
+        legacyPKs.add(new ByteArray(1));
+        legacyPKs.add(new ByteArray(2));
+        southpaw.state.put(Southpaw.METADATA_KEYSPACE, legacyEntryName, legacyPKs.serialize());
+        southpaw.state.flush();
+        southpaw.close();
+
+        southpaw = new MockSouthpaw(config, Collections.singletonList(relationsUri));
+        String keySpace = southpaw.createPendingPKKeySpaceName(root);
+        assertEquals(2, southpaw.dePKsByType.get(root).size());
+        assertNotNull(southpaw.state.get(keySpace, new ByteArray(1).getBytes()));
+        assertNotNull(southpaw.state.get(keySpace, new ByteArray(2).getBytes()));
+        assertNull(southpaw.state.get(Southpaw.METADATA_KEYSPACE, legacyEntryName));
+    }
+
+    @Test
+    public void testOutputFingerprints() throws Exception {
+        southpaw.close();
+        config.put(Southpaw.Config.OUTPUT_FINGERPRINTS_CONFIG, true);
+        southpaw = new MockSouthpaw(config, Collections.singletonList(relationsUri));
+        RelationPlan.Node root = southpaw.getPlan().getRoots()[0];
+        BaseTopic<byte[], DenormalizedRecord> outputTopic = southpaw.outputTopics.get(root.relation.getDenormalizedName());
+        String keySpace = southpaw.createFingerprintKeySpaceName(root.relation);
+        ByteArray primaryKey = new ByteArray(1);
+
+        // The second write is identical to the first, so only two of the three records are written
+        southpaw.writeDenormalizedRecord(root, outputTopic, createRecord(primaryKey, "A"));
+        southpaw.writeDenormalizedRecord(root, outputTopic, createRecord(primaryKey, "A"));
+        southpaw.writeDenormalizedRecord(root, outputTopic, createRecord(primaryKey, "B"));
+        assertEquals(2, countRecords(outputTopic));
+
+        // Fingerprints are only stored on commit
+        assertNull(southpaw.state.get(keySpace, primaryKey.getBytes()));
+        southpaw.commit();
+        assertArrayEquals(createRecord(primaryKey, "B").fingerprint, southpaw.state.get(keySpace, primaryKey.getBytes()));
+
+        // Tombstones are always written and drop the fingerprint
+        southpaw.writeDenormalizedRecord(root, outputTopic, new Southpaw.CreatedRecord(primaryKey));
+        southpaw.writeDenormalizedRecord(root, outputTopic, new Southpaw.CreatedRecord(primaryKey));
+        assertEquals(4, countRecords(outputTopic));
+        assertEquals(1, southpaw.pendingFingerprintsSize);
+        southpaw.commit();
+        assertNull(southpaw.state.get(keySpace, primaryKey.getBytes()));
+    }
+
+    private int countRecords(BaseTopic<byte[], DenormalizedRecord> topic) {
+        topic.resetCurrentOffset();
+        int count = 0;
+        for(Iterator<?> iter = topic.readNext(); iter.hasNext(); iter.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    private Southpaw.CreatedRecord createRecord(ByteArray primaryKey, String title) {
+        Record record = new Record();
+        record.setAdditionalProperty("title", title);
+        DenormalizedRecord denormalizedRecord = new DenormalizedRecord();
+        denormalizedRecord.setRecord(record);
+        denormalizedRecord.setChildren(new ChildRecords());
+        Southpaw.CreatedRecord createdRecord = new Southpaw.CreatedRecord(primaryKey);
+        createdRecord.record = denormalizedRecord;
+        createdRecord.fingerprint = southpaw.createFingerprint(denormalizedRecord);
+        return createdRecord;
+    }
+
+    @Test
+    public void testParentIndexDiff() {
+        RelationPlan.Node root = southpaw.getPlan().getRoots()[0];
+        RelationPlan.Node media = southpaw.getPlan().getRoutes("media")[0];
+        RelationPlan.Node playlistMedia = media.parent;
+        BaseTopic<byte[], DenormalizedRecord> outputTopic = southpaw.outputTopics.get(root.relation.getDenormalizedName());
+        ByteArray primaryKey = new ByteArray(1);
+
+        Southpaw.CreatedRecord createdRecord = createRecord(primaryKey, "A");
+        createdRecord.parentIndexEntries.add(new Southpaw.ParentIndexEntry(playlistMedia, new ByteArray(10)));
+        createdRecord.parentIndexEntries.add(new Southpaw.ParentIndexEntry(media, new ByteArray(20)));
+        createdRecord.parentIndexEntries.add(new Southpaw.ParentIndexEntry(media, new ByteArray(21)));
+        southpaw.writeDenormalizedRecord(root, outputTopic, createdRecord);
+        assertEquals(Collections.singleton(new ByteArray(10)), getParentKeys(playlistMedia, primaryKey));
+        assertEquals(new HashSet<>(Arrays.asList(new ByteArray(20), new ByteArray(21))), getParentKeys(media, primaryKey));
+
+        // Only the changed parent keys are updated
+        createdRecord = createRecord(primaryKey, "A");
+        createdRecord.parentIndexEntries.add(new Southpaw.ParentIndexEntry(playlistMedia, new ByteArray(10)));
+        createdRecord.parentIndexEntries.add(new Southpaw.ParentIndexEntry(media, new ByteArray(21)));
+        createdRecord.parentIndexEntries.add(new Southpaw.ParentIndexEntry(media, new ByteArray(22)));
+        southpaw.writeDenormalizedRecord(root, outputTopic, createdRecord);
+        assertEquals(Collections.singleton(new ByteArray(10)), getParentKeys(playlistMedia, primaryKey));
+        assertEquals(new HashSet<>(Arrays.asList(new ByteArray(21), new ByteArray(22))), getParentKeys(media, primaryKey));
+        assertFalse(getRootKeys(media, new ByteArray(20)).contains(primaryKey));
+        assertTrue(getRootKeys(media, new ByteArray(22)).contains(primaryKey));
+
+        // Tombstones drop all parent keys
+        southpaw.writeDenormalizedRecord(root, outputTopic, new Southpaw.CreatedRecord(primaryKey));
+        assertTrue(getParentKeys(playlistMedia, primaryKey).isEmpty());
+        assertTrue(getParentKeys(media, primaryKey).isEmpty());
+        assertFalse(getRootKeys(media, new ByteArray(21)).contains(primaryKey));
+    }
+
+    private Set<ByteArray> getParentKeys(RelationPlan.Node child, ByteArray rootPrimaryKey) {
+        return toSet(((Reversible) child.parentIndex).getForeignKeys(rootPrimaryKey));
+    }
+
+    private Set<ByteArray> getRootKeys(RelationPlan.Node child, ByteArray parentKey) {
+        return toSet(child.parentIndex.getIndexEntry(parentKey));
+    }
+
+    private Set<ByteArray> toSet(Set<ByteArray> keys) {
+        Set<ByteArray> retVal = new HashSet<>();
+        if(keys != null) {
+            for(ByteArray key: keys) {
+                if(key != null) retVal.add(key);
+            }
+        }
+        return retVal;
+    }
+
+    @Test
+    public void testPlanRoutes() {
+        Map<String, BaseIndex<BaseRecord, BaseRecord, Set<ByteArray>>> indices = southpaw.getFkIndices();
+        RelationPlan plan = southpaw.getPlan();
+        assertEquals(1, plan.getRoots().length);
+
+        // Root
+        RelationPlan.Node root = plan.getRoutes("playlist")[0];
+        assertTrue(root.isRoot());
+        assertSame(plan.getRoots()[0], root);
+        assertSame(southpaw.getNormalizedTopics().get("playlist"), root.topic);
+        assertNull(root.joinIndex);
+        assertNull(root.parentIndex);
+
+        // Child, matching what getRelation finds
+        RelationPlan.Node media = plan.getRoutes("media")[0];
+        AbstractMap.SimpleEntry<Relation, Relation> foundRelation = southpaw.getRelation(root.relation, "media");
+        assertSame(foundRelation.getKey(), media.parent.relation);
+        assertSame(foundRelation.getValue(), media.relation);
+        assertSame(root, media.root);
+        assertSame(southpaw.getNormalizedTopics().get("media"), media.topic);
+        assertSame(indices.get("JK|media|id"), media.joinIndex);
+        assertSame(indices.get("PaK|playlist|playlist_media|media_id"), media.parentIndex);
+
+        // Missing
+        assertNull(plan.getRoutes("your mom")[0]);
+    }
+
+    @Test
+    public void testSubtreeCacheInvalidate() {
+        RelationPlan plan = southpaw.getPlan();
+        RelationPlan.Node media = plan.getRoutes("media")[0];
+        RelationPlan.Node playlistMedia = media.parent;
+        SubtreeCache cache = new SubtreeCache(plan, 10);
+        cache.put(media, new ByteArray(1), new SubtreeCache.Subtree(new DenormalizedRecord(), new ArrayList<>()));
+        cache.put(media, new ByteArray(2), new SubtreeCache.Subtree(new DenormalizedRecord(), new ArrayList<>()));
+        cache.put(playlistMedia, new ByteArray(3), new SubtreeCache.Subtree(new DenormalizedRecord(), new ArrayList<>()));
+        assertEquals(3, cache.getSize());
+
+        // Drops the changed media and everything above it
+        cache.invalidate("media", new ByteArray(1));
+        assertNull(cache.get(media, new ByteArray(1)));
+        assertNotNull(cache.get(media, new ByteArray(2)));
+        assertNull(cache.get(playlistMedia, new ByteArray(3)));
+        assertEquals(1, cache.getSize());
+
+        // Roots are never cached, so changing one drops nothing
+        cache.invalidate("playlist", new ByteArray(2));
+        assertNotNull(cache.get(media, new ByteArray(2)));
+
+        cache.clear();
+        assertNull(cache.get(media, new ByteArray(2)));
+        assertEquals(0, cache.getSize());
+    }
+
     @Test
     public void testNormalizedTopics() {
         Map<String, BaseTopic<BaseRecord, BaseRecord>> topics = southpaw.getNormalizedTopics();
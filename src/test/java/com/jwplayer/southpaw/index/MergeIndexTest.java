@@ -0,0 +1,240 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.index;
+
+import com.jwplayer.southpaw.filter.BaseFilter;
+import com.jwplayer.southpaw.record.BaseRecord;
+import com.jwplayer.southpaw.serde.JsonSerde;
+import com.jwplayer.southpaw.state.BaseState;
+import com.jwplayer.southpaw.state.RocksDBState;
+import com.jwplayer.southpaw.topic.BaseTopic;
+import com.jwplayer.southpaw.topic.InMemoryTopic;
+import com.jwplayer.southpaw.topic.TopicConfig;
+import com.jwplayer.southpaw.util.ByteArray;
+import com.jwplayer.southpaw.util.ByteArraySet;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+
+public class MergeIndexTest {
+    private static final String INDEX_NAME = "TestIndex";
+
+    private MergeIndex<BaseRecord, BaseRecord> index;
+    private BaseState state;
+
+    @Rule
+    public TemporaryFolder dbFolder = new TemporaryFolder();
+
+    @Rule
+    public TemporaryFolder backupFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        Map<String, Object> config = new HashMap<>();
+        config.put(RocksDBState.BACKUP_URI_CONFIG, backupFolder.getRoot().toURI().toString());
+        config.put(RocksDBState.BACKUPS_TO_KEEP_CONFIG, 1);
+        config.put(RocksDBState.COMPACTION_READ_AHEAD_SIZE_CONFIG, 1048675);
+        config.put(RocksDBState.MEMTABLE_SIZE, 1048675);
+        config.put(RocksDBState.PARALLELISM_CONFIG, 4);
+        config.put(RocksDBState.PUT_BATCH_SIZE, 1);
+        config.put(RocksDBState.URI_CONFIG, dbFolder.getRoot().toURI().toString());
+
+        state = new RocksDBState(config);
+        state.open();
+
+        index = createEmptyIndex(new MergeIndex<>());
+    }
+
+    @After
+    public void cleanup() {
+        state.close();
+        state.delete();
+    }
+
+    private <T extends MultiIndex<BaseRecord, BaseRecord>> T createEmptyIndex(T index) {
+        Map<String, Object> config = new HashMap<>();
+        config.put(MultiIndex.INDEX_LRU_CACHE_SIZE, 2);
+        config.put(MultiIndex.INDEX_WRITE_BATCH_SIZE, 5);
+        JsonSerde keySerde = new JsonSerde();
+        keySerde.configure(config, true);
+        JsonSerde valueSerde = new JsonSerde();
+        valueSerde.configure(config, true);
+        BaseTopic<BaseRecord, BaseRecord> indexedTopic = new InMemoryTopic<>(0);
+        indexedTopic.configure(new TopicConfig<BaseRecord, BaseRecord>()
+            .setShortName("IndexedTopic")
+            .setSouthpawConfig(config)
+            .setState(state)
+            .setKeySerde(keySerde)
+            .setValueSerde(valueSerde)
+            .setFilter(new BaseFilter()));
+        index.configure(INDEX_NAME, config, state, indexedTopic);
+        return index;
+    }
+
+    private Set<ByteArray> toSet(ByteArraySet set) {
+        return set == null ? null : new HashSet<>(Arrays.asList(set.toArray()));
+    }
+
+    private Set<ByteArray> toSet(int... keys) {
+        Set<ByteArray> set = new HashSet<>();
+        for(int key: keys) {
+            set.add(new ByteArray(key));
+        }
+        return set;
+    }
+
+    @Test
+    public void testAddAndRemove() {
+        ByteArray foreignKey = new ByteArray("A");
+        index.add(foreignKey, new ByteArray(1));
+        index.add(foreignKey, new ByteArray(2));
+        index.add(foreignKey, new ByteArray(3));
+        index.add(foreignKey, new ByteArray(3));
+
+        assertEquals(toSet(1, 2, 3), toSet(index.getIndexEntry(foreignKey)));
+        assertEquals(Collections.singleton(foreignKey), toSet(index.getForeignKeys(new ByteArray(3))));
+
+        assertTrue(index.remove(foreignKey, new ByteArray(2)));
+        assertEquals(toSet(1, 3), toSet(index.getIndexEntry(foreignKey)));
+        assertNull(index.getForeignKeys(new ByteArray(2)));
+
+        index.flush();
+        assertEquals(toSet(1, 3), toSet(index.getIndexEntry(foreignKey)));
+
+        index.remove(foreignKey, new ByteArray(1));
+        index.remove(foreignKey, new ByteArray(3));
+        assertNull(index.getIndexEntry(foreignKey));
+        assertNull(index.getForeignKeys(new ByteArray(1)));
+    }
+
+    @Test
+    public void testCachedEntry() {
+        ByteArray foreignKey = new ByteArray("A");
+        for(int i = 0; i <= MultiIndex.LRU_CACHE_THRESHOLD; i++) {
+            index.add(foreignKey, new ByteArray(i));
+        }
+        // Caches the entry
+        assertEquals(MultiIndex.LRU_CACHE_THRESHOLD + 1, index.getIndexEntry(foreignKey).size());
+
+        index.add(foreignKey, new ByteArray(100));
+        index.remove(foreignKey, new ByteArray(0));
+
+        ByteArraySet primaryKeys = index.getIndexEntry(foreignKey);
+        assertEquals(MultiIndex.LRU_CACHE_THRESHOLD + 1, primaryKeys.size());
+        assertTrue(primaryKeys.contains(new ByteArray(100)));
+        assertFalse(primaryKeys.contains(new ByteArray(0)));
+    }
+
+    @Test
+    public void testCompaction() {
+        ByteArray foreignKey = new ByteArray("A");
+        int count = MergeIndex.COMPACTION_THRESHOLD * 2;
+        for(int i = 0; i < count; i++) {
+            index.add(foreignKey, new ByteArray(i));
+        }
+        index.remove(foreignKey, new ByteArray(0));
+        index.flush();
+
+        byte[] bytes = state.get(INDEX_NAME + MergeIndex.KEY_SPACE_SUFFIX, foreignKey.getBytes());
+        assertEquals(MergeIndex.OP_SET, bytes[0]);
+        ByteArraySet primaryKeys = index.getIndexEntry(foreignKey);
+        assertEquals(count - 1, primaryKeys.size());
+        assertEquals(MergeIndex.OP_HEADER_SIZE + primaryKeys.serialize().length, bytes.length);
+        assertFalse(primaryKeys.contains(new ByteArray(0)));
+    }
+
+    @Test
+    public void testCompactionOfEmptyEntry() {
+        ByteArray foreignKey = new ByteArray("A");
+        index.add(foreignKey, new ByteArray(1));
+        index.remove(foreignKey, new ByteArray(1));
+        assertNull(index.getIndexEntry(foreignKey));
+        index.flush();
+
+        assertNull(state.get(INDEX_NAME + MergeIndex.KEY_SPACE_SUFFIX, foreignKey.getBytes()));
+    }
+
+    @Test
+    public void testGetIndexEntries() {
+        index.add(new ByteArray("A"), new ByteArray(1));
+        index.add(new ByteArray("B"), new ByteArray(2));
+        index.add(new ByteArray("B"), new ByteArray(3));
+        index.add(new ByteArray("C"), new ByteArray(4));
+        index.remove(new ByteArray("C"), new ByteArray(4));
+
+        List<Set<ByteArray>> entries = index.getIndexEntries(
+                Arrays.asList(new ByteArray("A"), new ByteArray("B"), new ByteArray("C"), new ByteArray("D")));
+
+        assertEquals(4, entries.size());
+        assertEquals(toSet(1), toSet((ByteArraySet) entries.get(0)));
+        assertEquals(toSet(2, 3), toSet((ByteArraySet) entries.get(1)));
+        assertNull(entries.get(2));
+        assertNull(entries.get(3));
+    }
+
+    @Test
+    public void testMigration() {
+        MultiIndex<BaseRecord, BaseRecord> multiIndex = createEmptyIndex(new MultiIndex<>());
+        multiIndex.add(new ByteArray("A"), new ByteArray(1));
+        multiIndex.add(new ByteArray("A"), new ByteArray(2));
+        multiIndex.add(new ByteArray("B"), new ByteArray(1));
+        multiIndex.flush();
+
+        index = createEmptyIndex(new MergeIndex<>());
+
+        assertEquals(toSet(1, 2), toSet(index.getIndexEntry(new ByteArray("A"))));
+        assertEquals(toSet(1), toSet(index.getIndexEntry(new ByteArray("B"))));
+        assertEquals(
+                new HashSet<>(Arrays.asList(new ByteArray("A"), new ByteArray("B"))),
+                toSet(index.getForeignKeys(new ByteArray(1))));
+        assertNull(state.getKeySpace(INDEX_NAME));
+        assertNull(state.getKeySpace(INDEX_NAME + "-reverse"));
+        assertEquals(0, index.verifyIndexState().size());
+        assertEquals(0, index.verifyReverseIndexState().size());
+    }
+
+    @Test
+    public void testNoMigration() {
+        // A fresh index doesn't create the key spaces used by the MultiIndex
+        assertNull(state.getKeySpace(INDEX_NAME));
+        assertNull(state.getKeySpace(INDEX_NAME + "-reverse"));
+        index.add(new ByteArray("A"), new ByteArray(1));
+        index.flush();
+
+        index = createEmptyIndex(new MergeIndex<>());
+
+        assertEquals(toSet(1), toSet(index.getIndexEntry(new ByteArray("A"))));
+        assertNull(state.getKeySpace(INDEX_NAME));
+    }
+
+    @Test
+    public void testRemoveEntry() {
+        index.add(new ByteArray("A"), new ByteArray(1));
+        index.add(new ByteArray("A"), new ByteArray(2));
+        index.add(new ByteArray("B"), new ByteArray(1));
+
+        assertEquals(toSet(1, 2), toSet(index.remove(new ByteArray("A"))));
+
+        assertNull(index.getIndexEntry(new ByteArray("A")));
+        assertEquals(Collections.singleton(new ByteArray("B")), toSet(index.getForeignKeys(new ByteArray(1))));
+        assertNull(index.getForeignKeys(new ByteArray(2)));
+        assertNull(index.remove(new ByteArray("A")));
+    }
+}
@@ -231,6 +231,23 @@ public class MultiIndexTest {
         assertEquals(new ByteArray("B"), keys.toArray(new ByteArray[1])[0]);
     }
 
+    @Test
+    public void testMultiIndexGetIndexEntries() throws Exception {
+        MultiIndex<BaseRecord, BaseRecord> index = createMultiIndex();
+        List<Set<ByteArray>> entries = index.getIndexEntries(
+                Arrays.asList(new ByteArray("A"), new ByteArray("Z"), new ByteArray("B")));
+
+        assertEquals(3, entries.size());
+        assertNotNull(entries.get(0));
+        assertEquals(3, entries.get(0).size());
+        assertTrue(entries.get(0).contains(new ByteArray(1)));
+        assertTrue(entries.get(0).contains(new ByteArray(2)));
+        assertTrue(entries.get(0).contains(new ByteArray(3)));
+        assertNull(entries.get(1));
+        assertNotNull(entries.get(2));
+        assertEquals(index.getIndexEntry(new ByteArray("B")).size(), entries.get(2).size());
+    }
+
     @Test
     public void testMultiIndexGetIndexEntry() throws Exception {
         MultiIndex<BaseRecord, BaseRecord> index = createMultiIndex();
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.partitioner;
+
+import com.google.common.primitives.Ints;
+import org.apache.kafka.common.utils.Utils;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+
+public class BasePartitionerTest {
+    private final BasePartitioner partitioner = new BasePartitioner();
+
+    @Test
+    public void testPartition() {
+        Set<Integer> partitions = new HashSet<>();
+        for(int i = 0; i < 1000; i++) {
+            byte[] key = Ints.toByteArray(i);
+            int partition = partitioner.partition("topic", key, 8);
+            assertTrue(partition >= 0 && partition < 8);
+            // Matches Kafka's default partitioner
+            assertEquals(Utils.toPositive(Utils.murmur2(key)) % 8, partition);
+            assertEquals(partition, partitioner.partition("topic", key, 8));
+            partitions.add(partition);
+        }
+        assertEquals(8, partitions.size());
+    }
+
+    @Test
+    public void testPartitionNullKey() {
+        assertEquals(0, partitioner.partition("topic", null, 8));
+    }
+
+    @Test
+    public void testPartitionSinglePartition() {
+        assertEquals(0, partitioner.partition("topic", Ints.toByteArray(12345), 1));
+    }
+}
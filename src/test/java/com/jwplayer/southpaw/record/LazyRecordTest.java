@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.record;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jwplayer.southpaw.json.ChildRecords;
+import com.jwplayer.southpaw.json.DenormalizedRecord;
+import com.jwplayer.southpaw.json.Record;
+import com.jwplayer.southpaw.serde.JacksonSerde;
+
+
+public class LazyRecordTest {
+    private JacksonSerde<DenormalizedRecord> serde;
+
+    @Before
+    public void setup() {
+        serde = new JacksonSerde<>();
+        Map<String, Object> config = new HashMap<>();
+        config.put(JacksonSerde.CLASS_CONFIG, DenormalizedRecord.class.getName());
+        serde.configure(config, false);
+    }
+
+    private Map<String, Object> createFields(int id, boolean reversed) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        List<String> fieldNames = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            fieldNames.add("field_" + ((i * 7) % 20));
+        }
+        // "Aa" and "BB" have the same hash code, so their order depends on the order they were added in
+        fieldNames.addAll(Arrays.asList("Aa", "BB", "id", "user_id", "title", "missing"));
+        if(reversed) Collections.reverse(fieldNames);
+        for(String fieldName: fieldNames) {
+            fields.put(fieldName, fieldName.length() % 3 == 0 ? fieldName : fieldName.length());
+        }
+        fields.put("id", id);
+        fields.put("missing", null);
+        fields.put("tags", Arrays.asList("a", "b"));
+        fields.put("params", Collections.singletonMap("key", "value"));
+        return fields;
+    }
+
+    private Record createCopiedRecord(Map<String, ?> fields) {
+        Record record = new Record();
+        for(Map.Entry<String, ?> entry: fields.entrySet()) {
+            record.setAdditionalProperty(entry.getKey(), entry.getValue());
+        }
+        return record;
+    }
+
+    private DenormalizedRecord createDenormalizedRecord(boolean lazy) {
+        DenormalizedRecord root = new DenormalizedRecord();
+        Map<String, Object> rootFields = createFields(1, false);
+        root.setRecord(lazy ? new LazyRecord(new MapRecord(rootFields)) : createCopiedRecord(rootFields));
+        ChildRecords children = new ChildRecords();
+        List<DenormalizedRecord> childRecords = new ArrayList<>();
+        for(int i = 2; i < 5; i++) {
+            DenormalizedRecord child = new DenormalizedRecord();
+            Map<String, Object> childFields = createFields(i, i % 2 == 0);
+            child.setRecord(lazy ? new LazyRecord(new MapRecord(childFields)) : createCopiedRecord(childFields));
+            child.setChildren(new ChildRecords());
+            childRecords.add(child);
+        }
+        children.setAdditionalProperty("child", childRecords);
+        children.setAdditionalProperty("empty", new ArrayList<>());
+        root.setChildren(children);
+        return root;
+    }
+
+    @Test
+    public void testSerializeMatchesCopiedRecord() {
+        byte[] expected = serde.serializer().serialize(null, createDenormalizedRecord(false));
+        byte[] actual = serde.serializer().serialize(null, createDenormalizedRecord(true));
+
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testSerializeMaterializedRecord() {
+        DenormalizedRecord record = createDenormalizedRecord(true);
+        byte[] expected = serde.serializer().serialize(null, record);
+        LazyRecord.materialize(record);
+        byte[] actual = serde.serializer().serialize(null, record);
+
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testEqualsCopiedRecord() {
+        DenormalizedRecord expected = createDenormalizedRecord(false);
+        DenormalizedRecord actual = createDenormalizedRecord(true);
+        LazyRecord.materialize(actual);
+
+        assertEquals(expected, actual);
+        assertEquals(expected.hashCode(), actual.hashCode());
+    }
+
+    @Test
+    public void testGetAdditionalProperties() {
+        Map<String, Object> fields = createFields(1, false);
+        LazyRecord record = new LazyRecord(new MapRecord(fields));
+
+        assertEquals(fields, record.getAdditionalProperties());
+        assertEquals(createCopiedRecord(fields), record);
+    }
+
+    @Test
+    public void testSetAdditionalProperty() {
+        Map<String, Object> fields = createFields(1, false);
+        LazyRecord record = new LazyRecord(new MapRecord(fields));
+        record.setAdditionalProperty("extra", "value");
+
+        assertEquals(fields.size() + 1, record.getAdditionalProperties().size());
+        assertEquals("value", record.getAdditionalProperties().get("extra"));
+        assertEquals(1, record.getAdditionalProperties().get("id"));
+        assertNotEquals(createCopiedRecord(fields), record);
+    }
+
+    @Test
+    public void testJavaSerialization() throws Exception {
+        Map<String, Object> fields = createFields(1, false);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(new LazyRecord(new MapRecord(fields)));
+        }
+        Object record;
+        try(ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            record = input.readObject();
+        }
+
+        assertEquals(Record.class, record.getClass());
+        assertEquals(createCopiedRecord(fields), record);
+    }
+}
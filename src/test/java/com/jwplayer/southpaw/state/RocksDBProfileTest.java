@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.state;
+
+import org.junit.Test;
+import org.rocksdb.CompressionType;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+public class RocksDBProfileTest {
+    @Test
+    public void testDefaults() {
+        Map<String, Object> config = new HashMap<>();
+
+        RocksDBProfile index = new RocksDBProfile(RocksDBProfile.Type.INDEX, config);
+        RocksDBProfile offsets = new RocksDBProfile(RocksDBProfile.Type.OFFSETS, config);
+
+        assertEquals(10, index.getBloomFilterBits());
+        assertEquals(0, offsets.getBloomFilterBits());
+        assertEquals(0L, index.getBlockSize());
+        assertNull(index.getCompression());
+        assertEquals(0L, index.getWriteBufferSize());
+    }
+
+    @Test
+    public void testConfig() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("rocks.db.reverse.index.bloom.filter.bits", 0);
+        config.put("rocks.db.reverse.index.block.size", 16384);
+        config.put("rocks.db.reverse.index.compression", "LZ4_COMPRESSION");
+        config.put("rocks.db.reverse.index.write.buffer.size", 67108864L);
+        config.put("rocks.db.data.block.size", 1024);
+
+        RocksDBProfile profile = new RocksDBProfile(RocksDBProfile.Type.REVERSE_INDEX, config);
+
+        assertEquals("rocks.db.reverse.index.block.size", profile.getConfigName(RocksDBProfile.BLOCK_SIZE_CONFIG));
+        assertEquals(0, profile.getBloomFilterBits());
+        assertEquals(16384L, profile.getBlockSize());
+        assertEquals(CompressionType.LZ4_COMPRESSION, profile.getCompression());
+        assertEquals(67108864L, profile.getWriteBufferSize());
+    }
+
+    @Test
+    public void testForKeySpace() {
+        assertEquals(RocksDBProfile.Type.DATA, RocksDBProfile.Type.forKeySpace("media-data"));
+        assertEquals(RocksDBProfile.Type.OFFSETS, RocksDBProfile.Type.forKeySpace("media-offsets"));
+        assertEquals(RocksDBProfile.Type.INDEX, RocksDBProfile.Type.forKeySpace("JK|media|id"));
+        assertEquals(RocksDBProfile.Type.REVERSE_INDEX, RocksDBProfile.Type.forKeySpace("JK|media|id-reverse"));
+        assertEquals(RocksDBProfile.Type.METADATA, RocksDBProfile.Type.forKeySpace("__southpaw.metadata"));
+    }
+}
@@ -20,6 +20,7 @@ import org.junit.*;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -86,6 +87,39 @@ public class RocksDBStateTest {
         testBackupAndRestoreDirectly(config);
     }
 
+    @Test
+    public void backupAndRestoreCheckpoint() {
+        Map<String, Object> config = createConfig(dbUri, backupUri);
+        config.put(RocksDBState.BACKUP_MODE_CONFIG, "checkpoint");
+        config.put(RocksDBState.RESTORE_MODE_CONFIG, "never");
+        state.configure(config);
+        state.open();
+        state.createKeySpace(KEY_SPACE);
+        writeData(0, 100);
+
+        state.deleteBackups();
+        state.backup();
+        // Writes made while the backup runs in the background are not part of it
+        writeData(100, 200);
+        state.close();
+        assertFalse(new File(dbFolder.getRoot(), "checkpoint").exists());
+
+        state.restore();
+        state.open();
+
+        BaseState.Iterator iter = state.iterate(KEY_SPACE);
+        Integer count = 0;
+        while (iter.hasNext()) {
+            AbstractMap.SimpleEntry<byte[], byte[]> pair = iter.next();
+            assertEquals(new ByteArray(count), new ByteArray(pair.getKey()));
+            assertEquals(count.toString(), new String(pair.getValue()));
+            count++;
+        }
+        iter.close();
+        assertEquals(100, (int) count);
+        state.deleteBackups();
+    }
+
     private void testBackupAndRestoreDirectly(Map<String, Object> config) {
         config.put(RocksDBState.RESTORE_MODE_CONFIG, "never"); // Force skip restore on open()
         state.configure(config);
@@ -281,6 +315,25 @@ public class RocksDBStateTest {
         assertEquals("B", value);
     }
 
+    @Test
+    public void keySpaceHandle() {
+        state.configure(createConfig(dbUri, backupUri));
+        state.open();
+
+        assertNull(state.getKeySpace(KEY_SPACE));
+        KeySpace keySpace = state.createKeySpace(KEY_SPACE);
+        assertSame(keySpace, state.createKeySpace(KEY_SPACE));
+        assertSame(keySpace, state.getKeySpace(KEY_SPACE));
+        state.put(keySpace, "A".getBytes(), "B".getBytes());
+        state.flush();
+
+        // The handle is still valid after reopening the state
+        state.close();
+        state.open();
+        assertSame(keySpace, state.getKeySpace(KEY_SPACE));
+        assertEquals("B", new String(state.get(keySpace, "A".getBytes())));
+    }
+
     @Test
     public void delete() {
         state.configure(createConfig(dbUri, backupUri));
@@ -315,6 +368,25 @@ public class RocksDBStateTest {
         assertNull(value);
     }
 
+    @Test
+    public void dropKeySpace() {
+        state.configure(createConfig(dbUri, backupUri));
+        state.open();
+        KeySpace keySpace = state.createKeySpace(KEY_SPACE);
+        writeData(0,100);
+        state.put(keySpace, "A".getBytes(), "B".getBytes());
+
+        state.dropKeySpace(keySpace);
+        assertNull(state.getKeySpace(KEY_SPACE));
+
+        // The dropped key space isn't opened again
+        state.close();
+        state.open();
+        assertNull(state.getKeySpace(KEY_SPACE));
+        keySpace = state.createKeySpace(KEY_SPACE);
+        assertNull(state.get(keySpace, "A".getBytes()));
+    }
+
     @Test
     public void flush() {
         state.configure(createConfig(dbUri, backupUri));
@@ -343,6 +415,30 @@ public class RocksDBStateTest {
         assertEquals("B", value);
     }
 
+    @Test
+    public void flushWalCommitMode() {
+        Map<String, Object> config = createConfig(dbUri, backupUri);
+        config.put(RocksDBState.COMMIT_MODE_CONFIG, "wal");
+        state.configure(config);
+        state.open();
+        state.createKeySpace(KEY_SPACE);
+
+        state.put(KEY_SPACE, "AA".getBytes(), "B".getBytes());
+        state.flush(KEY_SPACE);
+        assertEquals("B", new String(state.get(KEY_SPACE, "AA".getBytes())));
+        BaseState.Iterator iter = state.iterate(KEY_SPACE);
+        assertTrue(iter.hasNext());
+        assertEquals("B", new String(iter.next().getValue()));
+        iter.close();
+
+        state.put(KEY_SPACE, "AB".getBytes(), "C".getBytes());
+        state.flush();
+        state.close();
+        state.open();
+        assertEquals("B", new String(state.get(KEY_SPACE, "AA".getBytes())));
+        assertEquals("C", new String(state.get(KEY_SPACE, "AB".getBytes())));
+    }
+
     @Test
     public void get() {
         state.configure(createConfig(dbUri, backupUri));
@@ -370,6 +466,206 @@ public class RocksDBStateTest {
             count++;
         }
         assertEquals(100, (int) count);
+        iter.close();
+
+        // Pending changes are iterated without being written
+        state.delete(KEY_SPACE, new ByteArray(0).getBytes());
+        iter = state.iterate(KEY_SPACE);
+        assertEquals(new ByteArray(1), new ByteArray(iter.next().getKey()));
+        iter.close();
+        assertEquals(1, state.writeBatch.count());
+    }
+
+    @Test
+    public void iterateChangesInBatch() {
+        state.configure(createConfig(dbUri, backupUri));
+        state.open();
+        state.createKeySpace(KEY_SPACE);
+        state.put(KEY_SPACE, "B".getBytes(), "1".getBytes());
+        state.flush();
+
+        // Each key is iterated once, with its latest change in the batch
+        state.put(KEY_SPACE, "A".getBytes(), "1".getBytes());
+        state.delete(KEY_SPACE, "A".getBytes());
+        state.put(KEY_SPACE, "C".getBytes(), "1".getBytes());
+        state.put(KEY_SPACE, "C".getBytes(), "2".getBytes());
+        assertEquals(4, state.writeBatch.count());
+        Map<String, String> entries = new LinkedHashMap<>();
+        BaseState.Iterator iter = state.iterate(KEY_SPACE);
+        while(iter.hasNext()) {
+            AbstractMap.SimpleEntry<byte[], byte[]> pair = iter.next();
+            assertNull(entries.put(new String(pair.getKey()), new String(pair.getValue())));
+        }
+        iter.close();
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("B", "1");
+        expected.put("C", "2");
+        assertEquals(expected, entries);
+        state.flush();
+
+        // Pending merges are iterated as the merged value
+        state.merge(KEY_SPACE, "B".getBytes(), "2".getBytes());
+        state.merge(KEY_SPACE, "D".getBytes(), "1".getBytes());
+        state.delete(KEY_SPACE, "C".getBytes());
+        iter = state.iterate(KEY_SPACE);
+        AbstractMap.SimpleEntry<byte[], byte[]> pair = iter.next();
+        assertEquals("B", new String(pair.getKey()));
+        assertArrayEquals(new byte[] { '1', BaseState.MERGE_DELIMITER, '2' }, pair.getValue());
+        pair = iter.next();
+        assertEquals("D", new String(pair.getKey()));
+        assertEquals("1", new String(pair.getValue()));
+        assertFalse(iter.hasNext());
+        iter.close();
+    }
+
+    @Test
+    public void iteratePrefix() {
+        state.configure(createConfig(dbUri, backupUri));
+        state.open();
+        String prefixedKeySpace = "PrefixedKeySpace";
+        state.createKeySpace(prefixedKeySpace, 4);
+        state.put(prefixedKeySpace, "AAAAb".getBytes(), "1".getBytes());
+        state.put(prefixedKeySpace, "AAAAa".getBytes(), "2".getBytes());
+        state.put(prefixedKeySpace, "AAABa".getBytes(), "3".getBytes());
+        state.flush();
+        // Left in the pending data batch
+        state.put(prefixedKeySpace, "AAAAc".getBytes(), "4".getBytes());
+
+        List<String> keys = new ArrayList<>();
+        BaseState.Iterator iter = state.iterate(prefixedKeySpace, "AAAA".getBytes());
+        while(iter.hasNext()) {
+            keys.add(new String(iter.next().getKey()));
+        }
+        iter.close();
+        assertEquals(Arrays.asList("AAAAa", "AAAAb", "AAAAc"), keys);
+
+        // Prefixes shorter than the prefix length of the key space
+        keys.clear();
+        iter = state.iterate(prefixedKeySpace, "AA".getBytes());
+        while(iter.hasNext()) {
+            keys.add(new String(iter.next().getKey()));
+        }
+        iter.close();
+        assertEquals(Arrays.asList("AAAAa", "AAAAb", "AAAAc", "AAABa"), keys);
+
+        // The key space keeps its name and data when reopened
+        state.close();
+        state.open();
+        state.createKeySpace(prefixedKeySpace, 4);
+        assertEquals("4", new String(state.get(prefixedKeySpace, "AAAAc".getBytes())));
+        iter = state.iterate(prefixedKeySpace, "AAAB".getBytes());
+        assertTrue(iter.hasNext());
+        assertEquals("AAABa", new String(iter.next().getKey()));
+        assertFalse(iter.hasNext());
+        iter.close();
+    }
+
+    @Test
+    public void iteratePrefixPendingChanges() {
+        state.configure(createConfig(dbUri, backupUri));
+        state.open();
+        state.createKeySpace(KEY_SPACE);
+        String prefixedKeySpace = "PrefixedKeySpace";
+        state.createKeySpace(prefixedKeySpace, 4);
+        state.put(prefixedKeySpace, "AAAAa".getBytes(), "1".getBytes());
+        state.put(prefixedKeySpace, "AAAAb".getBytes(), "2".getBytes());
+        state.flush();
+        state.delete(prefixedKeySpace, "AAAAa".getBytes());
+        state.put(prefixedKeySpace, "AAAAc".getBytes(), "3".getBytes());
+
+        // Pending changes are read through the batch, without being written by the scan
+        List<String> keys = new ArrayList<>();
+        BaseState.Iterator iter = state.iterate(prefixedKeySpace, "AAAA".getBytes());
+        while(iter.hasNext()) {
+            keys.add(new String(iter.next().getKey()));
+        }
+        assertEquals(Arrays.asList("AAAAb", "AAAAc"), keys);
+        assertEquals(2, state.writeBatch.count());
+
+        // Writing the batch while the scan is open replaces the batch instead of clearing it
+        for(int i = 0; i < 5; i++) {
+            state.put(KEY_SPACE, new ByteArray(i).getBytes(), new ByteArray(i).getBytes());
+        }
+        assertEquals(1, state.retiredBatches.size());
+        iter.reset();
+        assertTrue(iter.hasNext());
+        assertEquals("AAAAb", new String(iter.next().getKey()));
+        iter.close();
+        assertTrue(state.retiredBatches.isEmpty());
+    }
+
+    @Test
+    public void merge() {
+        state.configure(createConfig(dbUri, backupUri));
+        state.open();
+        state.createKeySpace(KEY_SPACE);
+
+        state.merge(KEY_SPACE, "A".getBytes(), "B".getBytes());
+        state.merge(KEY_SPACE, "A".getBytes(), "C".getBytes());
+        assertArrayEquals(new byte[] { 'B', BaseState.MERGE_DELIMITER, 'C' }, state.get(KEY_SPACE, "A".getBytes()));
+
+        // Merges into a pending put
+        state.put(KEY_SPACE, "A".getBytes(), "D".getBytes());
+        state.merge(KEY_SPACE, "A".getBytes(), "E".getBytes());
+        state.flush();
+        assertArrayEquals(new byte[] { 'D', BaseState.MERGE_DELIMITER, 'E' }, state.get(KEY_SPACE, "A".getBytes()));
+    }
+
+    @Test
+    public void pendingDelete() {
+        state.configure(createConfig(dbUri, backupUri));
+        state.open();
+        state.createKeySpace(KEY_SPACE);
+        state.put(KEY_SPACE, "A".getBytes(), "B".getBytes());
+        state.put(KEY_SPACE, "C".getBytes(), "D".getBytes());
+        state.flush();
+
+        // Deletes are batched, but visible to reads before they are written
+        state.delete(KEY_SPACE, "A".getBytes());
+        assertNull(state.get(KEY_SPACE, "A".getBytes()));
+        List<byte[]> values = state.multiGet(KEY_SPACE, Arrays.asList("A".getBytes(), "C".getBytes()));
+        assertNull(values.get(0));
+        assertEquals("D", new String(values.get(1)));
+
+        // Merges after a pending delete start from an empty value
+        state.merge(KEY_SPACE, "A".getBytes(), "E".getBytes());
+        assertEquals("E", new String(state.get(KEY_SPACE, "A".getBytes())));
+        state.flush();
+        assertEquals("E", new String(state.get(KEY_SPACE, "A".getBytes())));
+    }
+
+    @Test
+    public void multiGet() {
+        state.configure(createConfig(dbUri, backupUri));
+        state.open();
+        state.createKeySpace(KEY_SPACE);
+        writeData(0,100);
+        // Left in the pending data batch
+        state.put(KEY_SPACE, new ByteArray(200).getBytes(), "200".getBytes());
+
+        List<byte[]> values = state.multiGet(KEY_SPACE, Arrays.asList(
+                new ByteArray(1).getBytes(),
+                new ByteArray(200).getBytes(),
+                new ByteArray(500).getBytes(),
+                new ByteArray(1).getBytes()
+        ));
+        assertEquals(4, values.size());
+        assertEquals("1", new String(values.get(0)));
+        assertEquals("200", new String(values.get(1)));
+        assertNull(values.get(2));
+        assertEquals("1", new String(values.get(3)));
+
+        // Pending deletes and merges are resolved through the batch, the other keys are read from the DB
+        state.delete(KEY_SPACE, new ByteArray(2).getBytes());
+        state.merge(KEY_SPACE, new ByteArray(3).getBytes(), "A".getBytes());
+        values = state.multiGet(KEY_SPACE, Arrays.asList(
+                new ByteArray(2).getBytes(),
+                new ByteArray(3).getBytes(),
+                new ByteArray(4).getBytes()
+        ));
+        assertNull(values.get(0));
+        assertArrayEquals(new byte[] { '3', BaseState.MERGE_DELIMITER, 'A' }, values.get(1));
+        assertEquals("4", new String(values.get(2)));
     }
 
     @Test
@@ -721,6 +1017,22 @@ public class RocksDBStateTest {
         assertEquals("B", value);
     }
 
+    @Test
+    public void putBatchBytes() {
+        Map<String, Object> config = createConfig(dbUri, backupUri);
+        config.put(RocksDBState.PUT_BATCH_BYTES_CONFIG, 10);
+        state.configure(config);
+        state.open();
+        state.createKeySpace(KEY_SPACE);
+
+        state.put(KEY_SPACE, "A".getBytes(), "BCDE".getBytes());
+        assertEquals(1, state.writeBatch.count());
+        // Rewriting a value keeps both copies in the batch until it is written
+        state.put(KEY_SPACE, "A".getBytes(), "FGHI".getBytes());
+        assertEquals(0, state.writeBatch.count());
+        assertEquals("FGHI", new String(state.get(KEY_SPACE, "A".getBytes())));
+    }
+
     private void corruptLatestSST() throws URISyntaxException, IOException {
         Path dir = Paths.get(new URI(backupFolder.getRoot().toURI().toString() + "/shared"));
         Optional<Path> lastFilePath = Files.list(dir)
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.topic;
+
+import com.jwplayer.southpaw.MockState;
+import com.jwplayer.southpaw.filter.BaseFilter;
+import com.jwplayer.southpaw.state.BaseState;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.serialization.Serdes;
+import org.junit.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+
+public class AsyncTopicWriterTest {
+    private BaseState state;
+    private AsyncTopicWriter writer;
+
+    @Before
+    public void setup() {
+        state = new MockState();
+        state.open();
+        writer = new AsyncTopicWriter(2, "test-writer");
+    }
+
+    @After
+    public void cleanup() {
+        writer.close();
+        state.delete();
+    }
+
+    public InMemoryTopic<String, String> createTopic() {
+        InMemoryTopic<String, String> topic = new InMemoryTopic<>(0);
+        topic.configure(new TopicConfig<String, String>()
+            .setShortName("TestTopic")
+            .setSouthpawConfig(new HashMap<>())
+            .setState(state)
+            .setKeySerde(Serdes.String())
+            .setValueSerde(Serdes.String())
+            .setFilter(new BaseFilter()));
+        return topic;
+    }
+
+    @Test
+    public void testDrainPreservesOrder() {
+        InMemoryTopic<String, String> topic = createTopic();
+        for(int i = 0; i < 100; i++) {
+            writer.write(topic, "key" + i, "value" + i);
+        }
+        writer.drain();
+        Iterator<ConsumerRecord<String, String>> records = topic.readNext();
+        int i = 0;
+        while(records.hasNext()) {
+            ConsumerRecord<String, String> record = records.next();
+            assertEquals("key" + i, record.key());
+            assertEquals("value" + i, record.value());
+            i++;
+        }
+        assertEquals(100, i);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testWriteFailure() {
+        BlackHoleTopic<String, String> topic = new BlackHoleTopic<String, String>() {
+            @Override
+            public void write(String key, String value) {
+                throw new IllegalStateException("Badger");
+            }
+        };
+        writer.write(topic, "A", "Badger");
+        writer.drain();
+    }
+}
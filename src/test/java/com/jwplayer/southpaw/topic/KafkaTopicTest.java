@@ -20,8 +20,11 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.kafka.clients.consumer.ConsumerConfig;
@@ -31,8 +34,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 import com.jwplayer.southpaw.MockState;
 import com.jwplayer.southpaw.filter.BaseFilter;
+import com.jwplayer.southpaw.partitioner.BasePartitioner;
 import com.jwplayer.southpaw.state.BaseState;
 import com.jwplayer.southpaw.util.ByteArray;
 import com.jwplayer.southpaw.util.KafkaTestServer;
@@ -46,7 +52,16 @@ public class KafkaTopicTest {
     private KafkaTopic<String, String> topic;
 
     public KafkaTopic<String, String> createTopic(String topicName) {
-        kafkaServer.createTopic(topicName, 1);
+        return createTopic(topicName, 0);
+    }
+
+    public KafkaTopic<String, String> createTopic(String topicName, int prefetchBatches) {
+        return createTopic(topicName, prefetchBatches, 1, null);
+    }
+
+    public KafkaTopic<String, String> createTopic(
+            String topicName, int prefetchBatches, int partitions, List<Integer> assignedPartitions) {
+        kafkaServer.createTopic(topicName, partitions);
         KafkaTopic<String, String> topic = new KafkaTopic<>();
         topic.setPollTimeout(1000);
         Map<String, Object> config = new HashMap<>();
@@ -54,6 +69,8 @@ public class KafkaTopicTest {
         config.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
         config.put(ConsumerConfig.GROUP_ID_CONFIG, "test-group");
         config.put(KafkaTopic.TOPIC_NAME_CONFIG, topicName);
+        config.put(KafkaTopic.PREFETCH_BATCHES, prefetchBatches);
+        if(assignedPartitions != null) config.put(KafkaTopic.PARTITIONS_CONFIG, assignedPartitions);
         topic.configure(new TopicConfig<String, String>()
             .setShortName("test")
             .setSouthpawConfig(config)
@@ -111,6 +128,48 @@ public class KafkaTopicTest {
         assertEquals(0L, topic.getLag());
     }
 
+    @Test
+    public void testMultiplePartitions() {
+        KafkaTopic<String, String> topic = createTopic("test-topic-partitions", 0, 3, null);
+        assertEquals(3L, topic.getLag());
+        Iterator<ConsumerRecord<String, String>> iter = topic.readNext();
+        while(iter.hasNext()) iter.next();
+        assertEquals(0L, topic.getLag());
+        assertEquals(3L, (long) topic.getCurrentOffset());
+
+        // Records are partitioned by key and offsets are stored by partition
+        topic.commit();
+        Map<Integer, Long> offsets = new HashMap<>();
+        for(String key: Arrays.asList("A", "B", "C")) {
+            offsets.merge(getPartition(key, 3), 1L, Long::sum);
+        }
+        assertEquals(offsets, topic.getCurrentOffsets());
+        for(int partition = 0; partition < 3; partition++) {
+            byte[] bytes = state.get("test-" + BaseTopic.OFFSETS, Ints.toByteArray(partition));
+            assertEquals(offsets.get(partition), bytes == null ? null : Longs.fromByteArray(bytes));
+        }
+    }
+
+    @Test
+    public void testAssignedPartitions() {
+        int partition = getPartition("A", 3);
+        long count = 0;
+        for(String key: Arrays.asList("A", "B", "C")) {
+            if(getPartition(key, 3) == partition) count++;
+        }
+        KafkaTopic<String, String> topic = createTopic("test-topic-assigned", 0, 3, Collections.singletonList(partition));
+        assertEquals(count, topic.getLag());
+        Iterator<ConsumerRecord<String, String>> iter = topic.readNext();
+        while(iter.hasNext()) {
+            assertEquals(partition, getPartition(iter.next().key(), 3));
+        }
+        assertEquals(Collections.singletonMap(partition, count), topic.getCurrentOffsets());
+    }
+
+    private int getPartition(String key, int numPartitions) {
+        return new BasePartitioner().partition(TEST_TOPIC, Serdes.String().serializer().serialize(TEST_TOPIC, key), numPartitions);
+    }
+
     @Test
     public void testGetTopicName() {
         KafkaTopic<String, String> topic = createTopic("test-topic");
@@ -155,6 +214,26 @@ public class KafkaTopicTest {
         assertEquals("3", record.value());
     }
 
+    @Test
+    public void testReadNextPrefetch() throws InterruptedException {
+        KafkaTopic<String, String> topic = createTopic("test-topic-prefetch", 2);
+        Map<String, String> records = new HashMap<>();
+        for(int i = 0; i < 100 && records.size() < 3; i++) {
+            Iterator<ConsumerRecord<String, String>> iter = topic.readNext();
+            while(iter.hasNext()) {
+                ConsumerRecord<String, String> record = iter.next();
+                records.put(record.key(), record.value());
+            }
+            Thread.sleep(100);
+        }
+        assertEquals(3, records.size());
+        assertEquals("1", records.get("A"));
+        assertEquals("2", records.get("B"));
+        assertEquals("3", records.get("C"));
+        assertEquals(3L, (long) topic.getCurrentOffset());
+        topic.close();
+    }
+
     @Test
     public void testToString() {
         KafkaTopic<String, String> topic = createTopic("test-topic");
@@ -18,6 +18,7 @@ package com.jwplayer.southpaw.util;
 import org.apache.commons.lang.NotImplementedException;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import static org.junit.Assert.*;
@@ -35,6 +36,29 @@ public class ByteArraySetTest {
         return set;
     }
 
+    /**
+     * Serializes a chunk the way the MULTI_CHUNK format used to
+     * bytes / min size (1 byte) / min / max size (1 byte) / max / bytes size (4 bytes)
+     */
+    public byte[] createLegacyChunk(ByteArray... values) {
+        int size = 0;
+        for(ByteArray value: values) size += 1 + value.size();
+        ByteArray min = values[0];
+        ByteArray max = values[values.length - 1];
+        int chunkSize = size + 2 + min.size() + max.size() + Integer.BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+        for(ByteArray value: values) {
+            buffer.put((byte) value.size());
+            buffer.put(value.getBytes());
+        }
+        buffer.put(min.getBytes());
+        buffer.put((byte) min.size());
+        buffer.put(max.getBytes());
+        buffer.put((byte) max.size());
+        buffer.putInt(chunkSize);
+        return buffer.array();
+    }
+
     public ByteArraySet createSmallSet() {
         ByteArraySet set = new ByteArraySet();
         List<ByteArray> numbers = new ArrayList<>();
@@ -90,6 +114,89 @@ public class ByteArraySetTest {
     public void deserialize() {
     }
 
+    @Test
+    public void deserializeLazy() {
+        ByteArraySet set = createBigSet();
+        for(int i = 1; i <= 3000; i += 3) {
+            set.remove(new ByteArray(i));
+        }
+        byte[] bytes = set.serialize();
+        ByteArraySet deSet = ByteArraySet.deserialize(bytes);
+
+        List<ByteArray> values = new ArrayList<>();
+        for(ByteArray value: deSet) values.add(value);
+        assertEquals(2000, values.size());
+        assertEquals(2000, deSet.size());
+        for(int i = 1; i <= 3000; i++) {
+            assertEquals(i % 3 != 1, deSet.contains(new ByteArray(i)));
+        }
+        for(int i = 1; i < values.size(); i++) {
+            assertTrue(values.get(i - 1).compareTo(values.get(i)) < 0);
+        }
+        assertSame(bytes, deSet.serialize());
+        assertNotNull(deSet.view);
+
+        // Adds don't decode the chunks until the fronting set is merged, removes do
+        assertTrue(deSet.add(new ByteArray(1)));
+        assertNotNull(deSet.view);
+        assertTrue(deSet.contains(new ByteArray(1)));
+        assertFalse(deSet.remove(new ByteArray(4)));
+        assertNotNull(deSet.view);
+        assertTrue(deSet.remove(new ByteArray(2)));
+        assertNull(deSet.view);
+        assertFalse(deSet.contains(new ByteArray(2)));
+        assertEquals(2000, deSet.size());
+        assertTrue(Arrays.equals(bytes, set.serialize()));
+    }
+
+    @Test
+    public void deserializeLazySingleChunk() {
+        ByteArraySet set = createSmallSet();
+        set.remove(new ByteArray(5));
+        ByteArraySet deSet = ByteArraySet.deserialize(set.serialize());
+
+        int count = 0;
+        for(ByteArray value: deSet) {
+            assertNotEquals(new ByteArray(5), value);
+            count++;
+        }
+        assertEquals(9, count);
+        assertEquals(9, deSet.size());
+        assertTrue(deSet.contains(new ByteArray(10)));
+        assertFalse(deSet.contains(new ByteArray(5)));
+        assertFalse(deSet.contains(new ByteArray(11)));
+    }
+
+    @Test
+    public void deserializeLegacyFormats() {
+        byte[] singleChunk = { ByteArraySet.FORMAT.SINGLE_CHUNK.getValue(), 1, 'a', 0, 0, 1, 'c' };
+        ByteArraySet deSet = ByteArraySet.deserialize(singleChunk);
+        assertEquals(2, deSet.size());
+        assertTrue(deSet.contains(new ByteArray("a")));
+        assertFalse(deSet.contains(new ByteArray("b")));
+        assertTrue(deSet.contains(new ByteArray("c")));
+
+        byte[] chunkA = createLegacyChunk(new ByteArray("a"), new ByteArray("b"));
+        byte[] chunkB = createLegacyChunk(new ByteArray("c"), new ByteArray("d"), new ByteArray("e"));
+        ByteBuffer buffer = ByteBuffer.allocate(1 + chunkA.length + chunkB.length);
+        buffer.put(ByteArraySet.FORMAT.MULTI_CHUNK.getValue()).put(chunkA).put(chunkB);
+        deSet = ByteArraySet.deserialize(buffer.array());
+        assertEquals(5, deSet.size());
+        assertTrue(deSet.contains(new ByteArray("b")));
+        assertTrue(deSet.contains(new ByteArray("d")));
+        assertFalse(deSet.contains(new ByteArray("f")));
+
+        // Modified legacy sets are written in the current format
+        assertTrue(deSet.remove(new ByteArray("c")));
+        byte[] bytes = deSet.serialize();
+        assertEquals(ByteArraySet.FORMAT.FRONT_CODED.getValue(), bytes[0]);
+        List<ByteArray> values = new ArrayList<>();
+        for(ByteArray value: ByteArraySet.deserialize(bytes)) values.add(value);
+        assertEquals(
+                Arrays.asList(new ByteArray("a"), new ByteArray("b"), new ByteArray("d"), new ByteArray("e")),
+                values);
+    }
+
     @Test
     public void isEmpty() {
         ByteArraySet set = createBigSet();
@@ -120,6 +227,26 @@ public class ByteArraySetTest {
         assertFalse(set.contains(new ByteArray(10)));
     }
 
+    @Test
+    public void removeMany() {
+        ByteArraySet set = createBigSet();
+        set.serialize();
+        for(int i = 1; i <= 3000; i += 2) {
+            assertTrue(set.remove(new ByteArray(i)));
+            assertFalse(set.remove(new ByteArray(i)));
+        }
+
+        ByteArraySet deSet = ByteArraySet.deserialize(set.serialize());
+        for(int i = 1; i <= 3000; i++) {
+            assertEquals(i % 2 == 0, set.contains(new ByteArray(i)));
+            assertEquals(i % 2 == 0, deSet.contains(new ByteArray(i)));
+        }
+        assertFalse(set.contains(new ByteArray(0)));
+        assertFalse(set.contains(new ByteArray(3001)));
+        assertEquals(1500, set.size());
+        assertEquals(1500, deSet.size());
+    }
+
     @Test
     public void removeAll() {
         ByteArraySet set = createBigSet();
@@ -139,6 +266,89 @@ public class ByteArraySetTest {
         assertArrayEquals(expectedBytes, actualBytes);
     }
 
+    @Test
+    public void serializeFrontCoded() {
+        ByteArraySet set = new ByteArraySet();
+        int rawSize = 0;
+        for(int i = 0; i < 1000; i++) {
+            ByteArray value = new ByteArray(String.format("account-0001|media-%08d", i * 2));
+            rawSize += value.size();
+            set.add(value);
+        }
+        byte[] bytes = set.serialize();
+        assertEquals(ByteArraySet.FORMAT.FRONT_CODED.getValue(), bytes[0]);
+        assertTrue(bytes.length < rawSize / 2);
+
+        ByteArraySet deSet = ByteArraySet.deserialize(bytes);
+        assertEquals(1000, deSet.size());
+        for(int i = -1; i < 2000; i++) {
+            ByteArray value = new ByteArray(String.format("account-0001|media-%08d", i));
+            assertEquals(value.toString(), i >= 0 && i % 2 == 0, deSet.contains(value));
+        }
+        Iterator<ByteArray> setIter = set.iterator();
+        for(ByteArray value: deSet) assertEquals(setIter.next(), value);
+        assertFalse(setIter.hasNext());
+    }
+
+    @Test
+    public void serializeFrontCodedBlocks() {
+        // Short entries fill blocks up to the max number of entries
+        ByteArraySet set = new ByteArraySet();
+        for(int i = 0; i < 1000; i++) set.add(new ByteArray(String.format("%06d", i)));
+        ByteArraySet deSet = ByteArraySet.deserialize(set.serialize());
+        assertEquals(63, deSet.view.regionStarts.length);
+        assertEquals(63, deSet.view.regionEnds.length);
+
+        // Long entries close blocks early
+        set = new ByteArraySet();
+        char[] chars = new char[ByteArraySet.FRONT_CODED_BLOCK_BYTES];
+        for(int i = 0; i < 16; i++) {
+            Arrays.fill(chars, (char) ('a' + i));
+            set.add(new ByteArray(new String(chars)));
+        }
+        deSet = ByteArraySet.deserialize(set.serialize());
+        assertEquals(16, deSet.view.regionStarts.length);
+        Iterator<ByteArray> setIter = set.iterator();
+        for(ByteArray value: deSet) assertEquals(setIter.next(), value);
+        assertFalse(setIter.hasNext());
+    }
+
+    @Test
+    public void serializeTrimsChunks() {
+        ByteArraySet set = createSmallSet();
+        set.serialize();
+        ByteArraySet.Chunk chunk = set.chunks.get(set.chunks.size() - 1);
+        assertEquals(chunk.size, chunk.bytes.length);
+
+        ByteArraySet deSet = ByteArraySet.deserialize(set.serialize());
+        deSet.add(new ByteArray(11));
+        deSet.serialize();
+        chunk = deSet.chunks.get(deSet.chunks.size() - 1);
+        assertEquals(chunk.size, chunk.bytes.length);
+        assertEquals(11, deSet.size());
+    }
+
+    @Test
+    public void serializeLongValues() {
+        ByteArraySet set = new ByteArraySet();
+        char[] chars = new char[2 * ByteArraySet.Chunk.MAX_CHUNK_SIZE];
+        for(int size: new int[] { 127, 128, 300, 5000, 2 * ByteArraySet.Chunk.MAX_CHUNK_SIZE }) {
+            Arrays.fill(chars, 0, size, 'x');
+            set.add(new ByteArray(new String(chars, 0, size)));
+        }
+        set.add(new ByteArray("a"));
+        set.add(new ByteArray("z"));
+        ByteArraySet deSet = ByteArraySet.deserialize(set.serialize());
+
+        assertEquals(7, deSet.size());
+        for(ByteArray value: set) assertTrue(deSet.contains(value));
+        assertFalse(deSet.contains(new ByteArray("xx")));
+        assertTrue(deSet.remove(new ByteArray(new String(chars, 0, 300))));
+        assertFalse(deSet.contains(new ByteArray(new String(chars, 0, 300))));
+        assertTrue(deSet.contains(new ByteArray(new String(chars, 0, 5000))));
+        assertEquals(6, ByteArraySet.deserialize(deSet.serialize()).size());
+    }
+
     @Test
     public void serializeMultiChunks() {
         ByteArraySet set = createBigSet();
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Longtail Ad Solutions (DBA JW Player)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jwplayer.southpaw.util;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+
+public class PendingKeyQueueTest {
+    @Test
+    public void add() {
+        PendingKeyQueue queue = new PendingKeyQueue();
+
+        assertTrue(queue.add(new ByteArray(1), 100L));
+        assertFalse(queue.add(new ByteArray(1), 200L));
+        assertFalse(queue.add(null, 200L));
+        assertEquals(1, queue.size());
+        // Re-queueing a key keeps its original enqueue time
+        assertEquals(100L, queue.getOldestAge(200L));
+    }
+
+    @Test
+    public void drainChanges() {
+        PendingKeyQueue queue = new PendingKeyQueue();
+        queue.addAll(Arrays.asList(new ByteArray(0), new ByteArray(1), new ByteArray(2)), 100L);
+        queue.clearChanges();
+
+        // Added, removed: no change
+        queue.add(new ByteArray(3), 200L);
+        queue.add(new ByteArray(4), 200L);
+        queue.poll(4, Long.MAX_VALUE, null);
+        // Removed, added: no change
+        queue.add(new ByteArray(0), 300L);
+        queue.add(new ByteArray(5), 300L);
+        Set<ByteArray> added = new HashSet<>();
+        Set<ByteArray> removed = new HashSet<>();
+
+        queue.drainChanges(added::add, removed::add);
+
+        assertEquals(new HashSet<>(Arrays.asList(new ByteArray(4), new ByteArray(5))), added);
+        assertEquals(new HashSet<>(Arrays.asList(new ByteArray(1), new ByteArray(2))), removed);
+        added.clear();
+        removed.clear();
+        queue.drainChanges(added::add, removed::add);
+        assertTrue(added.isEmpty());
+        assertTrue(removed.isEmpty());
+
+        queue.clear();
+        queue.drainChanges(added::add, removed::add);
+        assertEquals(new HashSet<>(Arrays.asList(new ByteArray(0), new ByteArray(4), new ByteArray(5))), removed);
+    }
+
+    @Test
+    public void getOldestAgeEmpty() {
+        assertEquals(0L, new PendingKeyQueue().getOldestAge(100L));
+    }
+
+    @Test
+    public void poll() {
+        PendingKeyQueue queue = new PendingKeyQueue();
+        queue.add(new ByteArray(3), 100L);
+        queue.add(new ByteArray(1), 100L);
+        queue.add(new ByteArray(2), 200L);
+        queue.add(new ByteArray(0), 300L);
+        List<Long> times = new ArrayList<>();
+
+        List<ByteArray> keys = queue.poll(Integer.MAX_VALUE, 200L, times::add);
+
+        assertEquals(Arrays.asList(new ByteArray(1), new ByteArray(2), new ByteArray(3)), keys);
+        assertEquals(Arrays.asList(100L, 100L, 200L), times);
+        assertEquals(1, queue.size());
+        assertTrue(queue.contains(new ByteArray(0)));
+        assertEquals(0L, queue.getOldestAge(300L));
+    }
+
+    @Test
+    public void pollMaxKeys() {
+        PendingKeyQueue queue = new PendingKeyQueue();
+        for(int i = 0; i < 10; i++) {
+            queue.add(new ByteArray(i), i);
+        }
+
+        List<ByteArray> keys = queue.poll(4, Long.MAX_VALUE, null);
+
+        assertEquals(Arrays.asList(new ByteArray(0), new ByteArray(1), new ByteArray(2), new ByteArray(3)), keys);
+        assertEquals(6, queue.size());
+        assertEquals(6L, queue.getOldestAge(10L));
+    }
+
+    @Test
+    public void pollPartialRun() {
+        PendingKeyQueue queue = new PendingKeyQueue();
+        queue.addAll(Arrays.asList(new ByteArray(0), new ByteArray(1), new ByteArray(2)), 100L);
+        queue.add(new ByteArray(3), 200L);
+        queue.add(new ByteArray(4), 100L);
+        List<Long> times = new ArrayList<>();
+
+        assertEquals(Arrays.asList(new ByteArray(0), new ByteArray(1)), queue.poll(2, Long.MAX_VALUE, times::add));
+        assertEquals(200L, queue.getOldestAge(300L));
+        assertEquals(Arrays.asList(new ByteArray(2)), queue.poll(10, 150L, times::add));
+        // Keys are polled in the order they were queued, so the key queued at 200 blocks the later one
+        assertEquals(Collections.emptyList(), queue.poll(10, 150L, times::add));
+        assertEquals(Arrays.asList(new ByteArray(3), new ByteArray(4)), queue.poll(10, 200L, times::add));
+        assertEquals(Arrays.asList(100L, 100L, 100L, 200L, 100L), times);
+        assertTrue(queue.isEmpty());
+        assertEquals(0L, queue.getOldestAge(300L));
+    }
+}
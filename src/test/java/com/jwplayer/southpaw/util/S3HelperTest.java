@@ -120,6 +120,26 @@ public class S3HelperTest {
         assertTrue(fileNames.get(2).endsWith("fileC.txt"));
     }
 
+    @Test
+    public void syncFromS3Incremental() throws Exception {
+        s3.syncFromS3(tmpDir.getRoot().toURI(), s3Uri);
+        assertEquals(3, s3.metrics.s3FilesDownloaded.getCount());
+        assertEquals(0, s3.metrics.s3FilesSkipped.getCount());
+
+        // Same size, different content
+        File fileB = new File(tmpDir.getRoot(), "fileB.txt");
+        Files.write(fileB.toPath(), "9999".getBytes());
+        // Different size
+        File fileC = new File(tmpDir.getRoot(), "fileC.txt");
+        Files.write(fileC.toPath(), "AB".getBytes());
+
+        s3.syncFromS3(tmpDir.getRoot().toURI(), s3Uri);
+        assertEquals(5, s3.metrics.s3FilesDownloaded.getCount());
+        assertEquals(1, s3.metrics.s3FilesSkipped.getCount());
+        assertEquals("1234", new String(Files.readAllBytes(fileB.toPath())));
+        assertEquals("AB34", new String(Files.readAllBytes(fileC.toPath())));
+    }
+
     @Test
     public void syncToS3() throws Exception {
         File accountFile = tmpDir.newFile("account.txt");
@@ -153,4 +173,26 @@ public class S3HelperTest {
         assertEquals("backups/" + mediaFile.getName(), keys.get(1));
         assertEquals("backups/" + playerFile.getName(), keys.get(2));
     }
+
+    @Test
+    public void syncToS3SameNameInSubdirectory() throws Exception {
+        File rootFile = tmpDir.newFile("1.sst");
+        Files.write(rootFile.toPath(), "root".getBytes());
+        File sharedFile = new File(tmpDir.newFolder("shared"), "1.sst");
+        Files.write(sharedFile.toPath(), "shared".getBytes());
+
+        URI backupUri = new URI("s3://" + bucket + "/backups");
+        s3.syncToS3(tmpDir.getRoot().toURI(), backupUri);
+        s3.waitForSyncToS3();
+        assertEquals(2, s3.metrics.s3FilesUploaded.getCount());
+
+        rootFile.delete();
+        s3.syncToS3(tmpDir.getRoot().toURI(), backupUri);
+        s3.waitForSyncToS3();
+
+        List<S3ObjectSummary> summaries = s3.listKeys(backupUri);
+        assertEquals(1, summaries.size());
+        assertEquals("backups/shared/1.sst", summaries.get(0).getKey());
+        assertEquals(1, s3.metrics.s3FilesDeleted.getCount());
+    }
 }